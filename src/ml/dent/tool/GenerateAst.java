@@ -13,34 +13,37 @@ public class GenerateAst {
 				Arrays.asList(
 						"Literal    : Object value",
 						"TrabString : List<Expr> values",
-						"Variable   : Token name",
+						"Variable   : Token name | int depth = -1, int slot = -1, boolean boxed, Global global",
 						"TrabList   : List<Expr> values, Token start",
 						"Grouping   : Expr expression",
 						"Call       : Token operator, Expr left, List<Expr> arguments",
-						"Get        : Expr left, Token name",
-						"Index      : Expr operand, Expr start, Expr end, Expr step, Token bracket",
-						"Unary      : Token operator, Expr right",
+						"Get        : Expr left, Token name | InlineCache cache = new InlineCache()",
+						"Index      : Expr operand, Expr start, Expr end, Expr step, Token bracket | int state",
+						"Unary      : Token operator, Expr right | int state",
 						"Post       : Token operator, Expr left",
-						"Binary     : Expr left, Token operator, Expr right",
+						"Binary     : Expr left, Token operator, Expr right | int state",
 						"Logical    : Expr left, Token operator, Expr right",
-						"Lambda     : List<Token> arguments, Stmt right",
-						"Assign     : Token name, Token operator, Expr value"
-						));
+						"Lambda     : List<Token> arguments, Stmt right | int slots, boolean frameCaptured, int[] captures, int[] boxes",
+						"Assign     : Token name, Token operator, Expr value | int depth = -1, int slot = -1, boolean boxed, Global global",
+						"Inline     : Variable target, Stmt definition, List<Expr> bindings, Call call, Stmt body"
+						), "int type");
 		defineAst(outputDir, "Stmt",
 				Arrays.asList(
-						 "Block      : List<Stmt> statements",
-						 "Class      : Token name, List<Stmt.Function> methods",
+						 "Block      : List<Stmt> statements | int slots, boolean flat, int[] boxes",
+						 "Class      : Token name, List<Stmt.Function> methods | int slot = -1, int slots, boolean boxed, boolean hoisted",
 						 "Expression : Expr expression",
 						 "PrintableExpression : Expr expression",
 						 "If         : Token ifToken, Expr condition, Stmt thenBranch, Stmt elseBranch",
-				      	 "Return     : Token keyword, Expr value",
-						 "Var        : Token name, Expr initializer",
-						 "While      : Token whileToken, Expr condition, Stmt body",
-						 "Function   : Token name, List<Token> arguments, Stmt body"
-						));
+				      	 "Return     : Token keyword, Expr value | boolean tail",
+						 "Var        : Token name, Expr initializer | int slot = -1, boolean boxed, boolean hoisted",
+						 "While      : Token whileToken, Expr condition, Stmt body | CountedLoop counted",
+						 "Function   : Token name, List<Token> arguments, Stmt body | int slot = -1, int slots, boolean frameCaptured,"
+								 + " boolean boxed, boolean hoisted, int[] boxes"
+						), null);
 	}
 
-	private static void defineAst(String outputDir, String baseName, List<String> types) throws IOException {
+	private static void defineAst(String outputDir, String baseName, List<String> types, String common)
+			throws IOException {
 		String path = outputDir + "/" + baseName + ".java";
 		PrintWriter writer = new PrintWriter(path, "UTF-8");
 
@@ -50,10 +53,16 @@ public class GenerateAst {
 		writer.println();
 		writer.println("abstract class " + baseName + " {");
 		defineVisitor(writer, baseName, types);
+		// Filled in after resolution for every node, by TypeInference.
+		if (common != null) {
+			writer.println();
+			writer.println("  " + common + ";");
+		}
 		for (String type : types) {
 			String className = type.split(":")[0].trim();
-			String fields = type.split(":")[1].trim();
-			defineType(writer, baseName, className, fields);
+			String fields = type.split(":")[1].split("\\|")[0].trim();
+			String resolved = type.contains("|") ? type.split("\\|")[1].trim() : null;
+			defineType(writer, baseName, className, fields, resolved);
 		}
 		writer.println();
 		writer.println("  abstract <R> R accept(Visitor<R> visitor);");
@@ -72,7 +81,8 @@ public class GenerateAst {
 		writer.println("  }");
 	}
 
-	private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
+	private static void defineType(PrintWriter writer, String baseName, String className, String fieldList,
+			String resolvedList) {
 		writer.println("  static class " + className + " extends " + baseName + " {");
 
 		// Constructor.
@@ -95,6 +105,11 @@ public class GenerateAst {
 		for (String field : fields) {
 			writer.println("    final " + field + ";");
 		}
+		// Filled in after parsing, by the Resolver or as the Interpreter specializes the node.
+		if (resolvedList != null)
+			for (String field : resolvedList.split(", ")) {
+				writer.println("    " + field + ";");
+			}
 
 		writer.println("  }");
 	}
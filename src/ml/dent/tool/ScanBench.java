@@ -0,0 +1,64 @@
+package ml.dent.tool;
+
+import ml.dent.trab.Diagnostics;
+import ml.dent.trab.Scanner;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Times the scanner on a generated script and reports throughput and the bytes it allocates.
+ * Counting allocations needs the {@code jdk.management} module; without it, as on a runtime
+ * linked without it or a module path run lacking {@code --add-modules jdk.management}, only
+ * throughput is reported.
+ * Usage: ScanBench [statements] [iterations]
+ */
+public class ScanBench {
+    public static void main(String[] args) {
+        int statements = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        String source = script(statements);
+        Diagnostics diagnostics = new Diagnostics(System.out);
+        boolean counting = ModuleLayer.boot().findModule("jdk.management").isPresent();
+        for (int i = 0; i < 3; i++) new Scanner(source, diagnostics).scan();
+        long bytes = counting ? allocatedBytes() : 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) new Scanner(source, diagnostics).scan();
+        long elapsed = System.nanoTime() - start;
+        if (counting) bytes = allocatedBytes() - bytes;
+        double megabytes = source.length() / 1e6;
+        System.out.printf("scanned %.1f MB %d times%n", megabytes, iterations);
+        System.out.printf("%.1f MB/s%n", megabytes * iterations / (elapsed / 1e9));
+        if (counting)
+            System.out.printf("%.1f bytes allocated per source byte%n", (double) bytes / iterations / source.length());
+        else System.out.println("allocations not counted: jdk.management is not available");
+    }
+
+    // Only called once jdk.management is known to be there, so the class is never loaded without it.
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * A script shaped like generated code: many short functions over a small set of names.
+     */
+    static String script(int statements) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < statements; i++) {
+            switch (i % 4) {
+                case 0:
+                    buf.append("fn f").append(i).append("(alpha, beta) -> alpha * beta + ").append(i).append("\n");
+                    break;
+                case 1:
+                    buf.append("var v").append(i).append(" = [1, 2.5, \"text ${alpha}\", beta]\n");
+                    break;
+                case 2:
+                    buf.append("if (alpha <= beta and gamma != 3) { total += alpha ** 2 }\n");
+                    break;
+                default:
+                    buf.append("while (counter < limit) counter++ // ").append(i).append("\n");
+            }
+        }
+        return buf.toString();
+    }
+}
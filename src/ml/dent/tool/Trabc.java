@@ -0,0 +1,135 @@
+package ml.dent.tool;
+
+import ml.dent.trab.Transpiler;
+import ml.dent.trab.runtime.Ops;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Ahead of time compiler. Translates a script and the standard library to Java, compiles it
+ * with the system compiler and packages it with the runtime into a runnable jar.
+ */
+public class Trabc {
+    private static final String[] STD_LIB = {"Math.trab", "List.trab"};
+    private static final String RUNTIME = "ml/dent/trab/runtime/";
+
+    public static void main(String[] args) throws IOException, URISyntaxException {
+        String output = null;
+        String script = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-o") && i + 1 < args.length) output = args[++i];
+            else if (args[i].startsWith("-")) usage();
+            else script = args[i];
+        }
+        if (script == null) usage();
+        String className = className(script);
+        if (output == null) output = className + ".jar";
+
+        List<String> programs = new ArrayList<>();
+        for (String s : STD_LIB) programs.add(read(s));
+        programs.add(read(script));
+        String source = Transpiler.transpile(className, programs);
+        if (source == null) System.exit(65);
+
+        Path build = Files.createTempDirectory("trabc");
+        Path java = build.resolve(className + ".java");
+        Files.writeString(java, source);
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            System.out.println("trabc needs a JDK to run");
+            System.exit(70);
+        }
+        // The runtime is wherever this was loaded from, which is not on java.class.path when
+        // trabc runs from the module path.
+        int result = compiler.run(null, null, null, "--release", "13", "-nowarn", "-classpath",
+                location().toString(), "-d", build.toString(), java.toString());
+        if (result != 0) System.exit(70);
+
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, className);
+        try (JarOutputStream jar = new JarOutputStream(new FileOutputStream(output), manifest)) {
+            try (Stream<Path> files = Files.list(build)) {
+                for (Path file : files.filter(f -> f.toString().endsWith(".class")).collect(Collectors.toList()))
+                    add(jar, file.getFileName().toString(), Files.readAllBytes(file));
+            }
+            runtime(jar);
+        }
+    }
+
+    private static void usage() {
+        System.out.println("Usage: trabc [-o out.jar] script");
+        System.exit(64);
+    }
+
+    private static String className(String script) {
+        String name = new File(script).getName();
+        if (name.contains(".")) name = name.substring(0, name.indexOf('.'));
+        StringBuilder buf = new StringBuilder();
+        for (char c : name.toCharArray()) buf.append(Character.isJavaIdentifierPart(c) ? c : '_');
+        if (buf.length() == 0 || !Character.isJavaIdentifierStart(buf.charAt(0))) buf.insert(0, '_');
+        buf.setCharAt(0, Character.toUpperCase(buf.charAt(0)));
+        return buf.toString();
+    }
+
+    private static String read(String fileName) throws IOException {
+        StringBuilder file = new StringBuilder();
+        for (String line : Files.readAllLines(Paths.get(fileName))) file.append(line).append("\n");
+        return file.toString();
+    }
+
+    /**
+     * Copies the runtime package and TrabNull from wherever this class was loaded.
+     */
+    private static void runtime(JarOutputStream jar) throws IOException, URISyntaxException {
+        Path location = location();
+        if (Files.isDirectory(location)) {
+            try (Stream<Path> files = Files.list(location.resolve(RUNTIME))) {
+                for (Path file : files.collect(Collectors.toList()))
+                    add(jar, RUNTIME + file.getFileName(), Files.readAllBytes(file));
+            }
+            add(jar, "ml/dent/trab/TrabNull.class", Files.readAllBytes(location.resolve("ml/dent/trab/TrabNull.class")));
+            return;
+        }
+        try (JarFile source = new JarFile(location.toFile())) {
+            Enumeration<JarEntry> entries = source.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if ((name.startsWith(RUNTIME) && name.endsWith(".class")) || name.equals("ml/dent/trab/TrabNull.class"))
+                    add(jar, name, source.getInputStream(entry).readAllBytes());
+            }
+        }
+    }
+
+    /**
+     * The directory or jar the runtime classes were loaded from.
+     */
+    private static Path location() throws URISyntaxException {
+        return Paths.get(Ops.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+    }
+
+    private static void add(JarOutputStream jar, String name, byte[] bytes) throws IOException {
+        jar.putNextEntry(new JarEntry(name));
+        jar.write(bytes);
+        jar.closeEntry();
+    }
+}
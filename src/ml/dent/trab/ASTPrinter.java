@@ -6,6 +6,7 @@ import ml.dent.trab.Expr.Call;
 import ml.dent.trab.Expr.Get;
 import ml.dent.trab.Expr.Grouping;
 import ml.dent.trab.Expr.Index;
+import ml.dent.trab.Expr.Inline;
 import ml.dent.trab.Expr.Lambda;
 import ml.dent.trab.Expr.Literal;
 import ml.dent.trab.Expr.Logical;
@@ -15,9 +16,43 @@ import ml.dent.trab.Expr.TrabString;
 import ml.dent.trab.Expr.Unary;
 import ml.dent.trab.Expr.Variable;
 
-public class ASTPrinter implements Expr.Visitor<String> {
+import java.util.List;
+
+public class ASTPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
 	public String print(Expr expr) {
-		return expr.accept(this);
+		return expr == null ? "nil" : expr.accept(this);
+	}
+
+	/**
+	 * Prints a program one top level statement per line.
+	 */
+	public String print(List<Stmt> statements) {
+		StringBuffer buf = new StringBuffer();
+		for (Stmt s : statements)
+			buf.append(print(s) + "\n");
+		return buf.toString();
+	}
+
+	public String print(Stmt stmt) {
+		return stmt == null ? "nil" : stmt.accept(this);
+	}
+
+	private String print(String head, List<? extends Stmt> statements) {
+		StringBuffer buf = new StringBuffer("(" + head);
+		for (Stmt s : statements)
+			buf.append(" " + print(s));
+		buf.append(")");
+		return buf.toString();
+	}
+
+	private String names(List<Token> tokens) {
+		StringBuffer buf = new StringBuffer("(");
+		for (Token t : tokens)
+			buf.append(t.lexeme + " ");
+		if (!tokens.isEmpty())
+			buf.setLength(buf.length() - 1);
+		buf.append(")");
+		return buf.toString();
 	}
 
 	private String paren(Expr... exprs) {
@@ -73,12 +108,7 @@ public class ASTPrinter implements Expr.Visitor<String> {
 
 	@Override
 	public String visitLambdaExpr(Lambda expr) {
-		StringBuffer buf = new StringBuffer("(lambda ");
-		for (Token e : expr.arguments)
-			buf.append(e.lexeme + " ");
-		//buf.append(print(expr.right));
-		buf.append(")");
-		return buf.toString();
+		return "(lambda " + names(expr.arguments) + " " + print(expr.right) + ")";
 	}
 
 	@Override
@@ -91,6 +121,15 @@ public class ASTPrinter implements Expr.Visitor<String> {
 		return "(" + expr.operator.lexeme + " " + print(expr.left) + " " + print(expr.right) + ")";
 	}
 
+	@Override
+	public String visitInlineExpr(Inline expr) {
+		StringBuffer buf = new StringBuffer("(inline " + print(expr.call));
+		for (Expr e : expr.bindings)
+			buf.append(" " + print(e));
+		buf.append(" " + print(expr.body) + ")");
+		return buf.toString();
+	}
+
 	@Override
 	public String visitAssignExpr(Assign expr) {
 		return "(" + expr.operator.lexeme + " " + expr.name.lexeme + " " + print(expr.value) + ")";
@@ -122,4 +161,54 @@ public class ASTPrinter implements Expr.Visitor<String> {
 		return buf.toString();
 	}
 
+	@Override
+	public String visitBlockStmt(Stmt.Block stmt) {
+		return print("block", stmt.statements);
+	}
+
+	@Override
+	public String visitClassStmt(Stmt.Class stmt) {
+		return print("class " + stmt.name.lexeme, stmt.methods);
+	}
+
+	@Override
+	public String visitExpressionStmt(Stmt.Expression stmt) {
+		return print(stmt.expression);
+	}
+
+	@Override
+	public String visitPrintableExpressionStmt(Stmt.PrintableExpression stmt) {
+		return print(stmt.expression);
+	}
+
+	@Override
+	public String visitIfStmt(Stmt.If stmt) {
+		String s = "(if " + print(stmt.condition) + " " + print(stmt.thenBranch);
+		if (stmt.elseBranch != null)
+			s += " " + print(stmt.elseBranch);
+		return s + ")";
+	}
+
+	@Override
+	public String visitReturnStmt(Stmt.Return stmt) {
+		return "(return " + print(stmt.value) + ")";
+	}
+
+	@Override
+	public String visitVarStmt(Stmt.Var stmt) {
+		if (stmt.initializer == null)
+			return "(var " + stmt.name.lexeme + ")";
+		return "(var " + stmt.name.lexeme + " " + print(stmt.initializer) + ")";
+	}
+
+	@Override
+	public String visitWhileStmt(Stmt.While stmt) {
+		return "(while " + print(stmt.condition) + " " + print(stmt.body) + ")";
+	}
+
+	@Override
+	public String visitFunctionStmt(Stmt.Function stmt) {
+		return "(fn " + stmt.name.lexeme + " " + names(stmt.arguments) + " " + print(stmt.body) + ")";
+	}
+
 }
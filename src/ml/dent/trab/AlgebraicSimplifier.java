@@ -0,0 +1,64 @@
+package ml.dent.trab;
+
+import ml.dent.trab.Expr.*;
+
+/**
+ * Drops arithmetic identities, {@code x * 1}, {@code 1 * x}, {@code x / 1}, {@code x - 0} and
+ * {@code x ** 1}, when {@code x} always produces a number. The operator would fail on anything
+ * else, so an operand that might not be a number is left alone. {@code x + 0} is kept: it
+ * turns -0 into 0, which prints differently.
+ */
+class AlgebraicSimplifier extends TreeRewriter {
+    /**
+     * Whether an expression evaluates to a number whenever it evaluates without an error.
+     */
+    static boolean isNumeric(Expr expr) {
+        if (expr instanceof Literal) return ((Literal) expr).value instanceof Double;
+        if (expr instanceof Grouping) return isNumeric(((Grouping) expr).expression);
+        if (expr instanceof Post) return true;
+        if (expr instanceof Unary) {
+            TokenType type = ((Unary) expr).operator.type;
+            return type == TokenType.MINUS || type == TokenType.PLUS_PLUS || type == TokenType.MINUS_MINUS;
+        }
+        if (expr instanceof Binary) {
+            switch (((Binary) expr).operator.type) {
+                case MINUS:
+                case STAR:
+                case SLASH:
+                case PERCENT:
+                case STAR_STAR:
+                    return true;
+                case PLUS:
+                    return isNumeric(((Binary) expr).left) && isNumeric(((Binary) expr).right);
+            }
+        }
+        return false;
+    }
+
+    private static boolean is(Expr expr, double value) {
+        // compare rather than ==, which would take -0 for 0.
+        return expr instanceof Literal && ((Literal) expr).value instanceof Double
+                && Double.compare((Double) ((Literal) expr).value, value) == 0;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Binary expr) {
+        Binary simplified = (Binary) super.visitBinaryExpr(expr);
+        Expr left = simplified.left;
+        Expr right = simplified.right;
+        switch (simplified.operator.type) {
+            case STAR:
+                if (is(right, 1) && isNumeric(left)) return left;
+                if (is(left, 1) && isNumeric(right)) return right;
+                break;
+            case SLASH:
+            case STAR_STAR:
+                if (is(right, 1) && isNumeric(left)) return left;
+                break;
+            case MINUS:
+                if (is(right, 0) && isNumeric(left)) return left;
+                break;
+        }
+        return simplified;
+    }
+}
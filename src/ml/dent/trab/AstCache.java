@@ -0,0 +1,104 @@
+package ml.dent.trab;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Parsed programs kept on disk in the {@link AstCodec} format, one file per program named
+ * after a hash of its source, along with {@link HeapImage}s of the standard library. A file that is missing, unreadable or written by another
+ * version is a miss and gets replaced. Files are written under a temporary name and moved
+ * into place, so concurrent sessions never read half a file.
+ */
+final class AstCache {
+    // Mapping a file sets up the lambda machinery on first use, which costs more than reading
+    // a small file outright.
+    private static final long MAP_THRESHOLD = 1 << 20;
+
+    private final Path directory;
+
+    AstCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * The directory named by {@code TRAB_CACHE}, or {@code ~/.cache/jtrab}.
+     */
+    static AstCache defaultCache() {
+        String configured = System.getenv("TRAB_CACHE");
+        if (configured != null && !configured.isEmpty()) return new AstCache(Paths.get(configured));
+        return new AstCache(Paths.get(System.getProperty("user.home"), ".cache", "jtrab"));
+    }
+
+    List<Stmt> load(String source) {
+        ByteBuffer buffer = read(key(source, ".ast"));
+        return buffer == null ? null : AstCodec.decode(buffer);
+    }
+
+    void store(String source, List<Stmt> statements) {
+        try {
+            write(key(source, ".ast"), AstCodec.encode(statements));
+        } catch (IllegalArgumentException e) {
+            // The cache is only an optimization; the program has already been parsed.
+        }
+    }
+
+    /**
+     * The image saved after running {@code programs}, or null if there is none.
+     */
+    ByteBuffer loadImage(List<String> programs) {
+        return read(key(String.join("\0", programs), ".img"));
+    }
+
+    void storeImage(List<String> programs, byte[] image) {
+        write(key(String.join("\0", programs), ".img"), image);
+    }
+
+    private ByteBuffer read(String name) {
+        try (FileChannel channel = FileChannel.open(directory.resolve(name), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size >= MAP_THRESHOLD) return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) ;
+            return buffer.flip();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void write(String name, byte[] bytes) {
+        try {
+            Files.createDirectories(directory);
+            Path temporary = Files.createTempFile(directory, "ast", ".tmp");
+            Files.write(temporary, bytes);
+            Files.move(temporary, directory.resolve(name), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Another run will try again.
+        }
+    }
+
+    /**
+     * Names the file after the length and two independent 64 bit hashes of the source. This
+     * is not a cryptographic digest; MessageDigest takes longer to set up than a short script
+     * takes to parse.
+     */
+    private static String key(String source, String extension) {
+        long fnv = 0xcbf29ce484222325L;
+        long polynomial = 0;
+        for (int i = 0; i < source.length(); i++) {
+            char c = source.charAt(i);
+            fnv = (fnv ^ c) * 0x100000001b3L;
+            polynomial = polynomial * 0x9e3779b97f4a7c15L + c;
+        }
+        // A StringBuilder rather than +, which would bootstrap invokedynamic string concatenation.
+        return new StringBuilder().append(source.length()).append('-').append(Long.toHexString(fnv))
+                .append(Long.toHexString(polynomial)).append(extension).toString();
+    }
+}
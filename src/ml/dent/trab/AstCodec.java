@@ -0,0 +1,582 @@
+package ml.dent.trab;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Binary form of parsed programs. Nodes are written in pre-order as a tag byte followed by
+ * their fields, with lengths and references as variable length integers. Strings and tokens
+ * are written once and referred back to afterwards, so a token shared by several nodes is
+ * shared again after decoding. Token lines are stored as the difference from the previous
+ * token and literals that follow from the lexeme are not stored at all. Only what the parser
+ * produces is kept; the resolver runs again on the decoded tree.
+ * <p>
+ * Classes, functions and lambdas are numbered in the order they are written, so a
+ * {@link HeapImage} can refer to the node a runtime object was made from.
+ */
+final class AstCodec {
+    static final int MAGIC = 0x54524142;
+    static final int VERSION = 2;
+
+    private static final int NULL = 0;
+
+    private AstCodec() {
+    }
+
+    private static boolean isSmallInteger(double d) {
+        return d >= 0 && d <= Integer.MAX_VALUE && d == Math.rint(d) && Double.doubleToRawLongBits(d) != Long.MIN_VALUE;
+    }
+
+    /**
+     * The literal the scanner gives a token of this type, except for string parts.
+     */
+    private static Object derivedLiteral(TokenType type, String lexeme) {
+        if (type == TokenType.IDENTIFIER) return lexeme;
+        if (type == TokenType.NUMBER) return Double.parseDouble(lexeme);
+        return null;
+    }
+
+    static byte[] encode(List<Stmt> statements) {
+        Writer writer = new Writer();
+        writer.putInt(MAGIC);
+        writer.putInt(VERSION);
+        writer.stmts(statements);
+        return writer.out.toByteArray();
+    }
+
+    /**
+     * Decodes a program, or returns null if the buffer is not one this version wrote.
+     */
+    static List<Stmt> decode(ByteBuffer buffer) {
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return null;
+            Reader reader = new Reader(buffer);
+            List<Stmt> statements = reader.stmts();
+            return buffer.hasRemaining() ? null : statements;
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException | ClassCastException e) {
+            return null;
+        }
+    }
+
+    static class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final Map<Object, Integer> definitions = new IdentityHashMap<>();
+        private final Map<String, Integer> strings = new HashMap<>();
+        private final Map<Token, Integer> tokens = new IdentityHashMap<>();
+        private int line;
+
+        void putInt(int i) {
+            for (int shift = 24; shift >= 0; shift -= 8) out.write(i >>> shift);
+        }
+
+        void varint(int i) {
+            while ((i & ~0x7f) != 0) {
+                out.write((i & 0x7f) | 0x80);
+                i >>>= 7;
+            }
+            out.write(i);
+        }
+
+        void string(String s) {
+            Integer index = strings.get(s);
+            if (index != null) {
+                varint(index + 1);
+                return;
+            }
+            strings.put(s, strings.size());
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            varint(NULL);
+            varint(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        void token(Token token) {
+            if (token == null) {
+                varint(NULL);
+                return;
+            }
+            Integer index = tokens.get(token);
+            if (index != null) {
+                varint(index * 2 + 1);
+                return;
+            }
+            tokens.put(token, tokens.size());
+            varint((token.type.ordinal() + 1) * 2);
+            string(token.lexeme);
+            int delta = token.line - line;
+            varint((delta << 1) ^ (delta >> 31));
+            line = token.line;
+            if (token.type == TokenType.STRING_PART) string((String) token.literal);
+            else if (!Objects.equals(token.literal, derivedLiteral(token.type, token.lexeme)))
+                throw new IllegalArgumentException("Cannot encode " + token);
+        }
+
+        void literal(Object value) {
+            if (value == null) out.write(0);
+            else if (value instanceof Double && isSmallInteger((Double) value)) {
+                out.write(6);
+                varint((int) (double) (Double) value);
+            } else if (value instanceof Double) {
+                out.write(1);
+                long bits = Double.doubleToRawLongBits((Double) value);
+                putInt((int) (bits >>> 32));
+                putInt((int) bits);
+            } else if (value instanceof String) {
+                out.write(2);
+                string((String) value);
+            } else if (value instanceof Boolean) out.write((Boolean) value ? 3 : 4);
+            else if (value instanceof TrabNull) out.write(5);
+            else throw new IllegalArgumentException("Cannot encode " + value);
+        }
+
+        void tokens(List<Token> list) {
+            varint(list.size());
+            for (Token token : list) token(token);
+        }
+
+        void expr(Expr expr) {
+            if (expr == null) out.write(NULL);
+            else expr.accept(this);
+        }
+
+        void exprs(List<Expr> list) {
+            varint(list.size());
+            for (Expr expr : list) expr(expr);
+        }
+
+        void stmt(Stmt stmt) {
+            if (stmt == null) out.write(NULL);
+            else stmt.accept(this);
+        }
+
+        void stmts(List<? extends Stmt> list) {
+            varint(list.size());
+            for (Stmt stmt : list) stmt(stmt);
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            out.write(1);
+            literal(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitTrabStringExpr(Expr.TrabString expr) {
+            out.write(2);
+            exprs(expr.values);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            out.write(3);
+            token(expr.name);
+            return null;
+        }
+
+        @Override
+        public Void visitTrabListExpr(Expr.TrabList expr) {
+            out.write(4);
+            exprs(expr.values);
+            token(expr.start);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            out.write(5);
+            expr(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            out.write(6);
+            token(expr.operator);
+            expr(expr.left);
+            exprs(expr.arguments);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            out.write(7);
+            expr(expr.left);
+            token(expr.name);
+            return null;
+        }
+
+        @Override
+        public Void visitIndexExpr(Expr.Index expr) {
+            out.write(8);
+            expr(expr.operand);
+            expr(expr.start);
+            expr(expr.end);
+            expr(expr.step);
+            token(expr.bracket);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            out.write(9);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitPostExpr(Expr.Post expr) {
+            out.write(10);
+            token(expr.operator);
+            expr(expr.left);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            out.write(11);
+            expr(expr.left);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            out.write(12);
+            expr(expr.left);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitLambdaExpr(Expr.Lambda expr) {
+            definitions.put(expr, definitions.size());
+            out.write(13);
+            tokens(expr.arguments);
+            stmt(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            out.write(14);
+            token(expr.name);
+            token(expr.operator);
+            expr(expr.value);
+            return null;
+        }
+
+        // An inlined call depends on a definition in another program, which an image cannot
+        // point at; the program is simply not saved.
+        @Override
+        public Void visitInlineExpr(Expr.Inline expr) {
+            throw new IllegalArgumentException("Cannot encode inlined call");
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            out.write(1);
+            stmts(stmt.statements);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            definitions.put(stmt, definitions.size());
+            out.write(2);
+            token(stmt.name);
+            stmts(stmt.methods);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            out.write(3);
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintableExpressionStmt(Stmt.PrintableExpression stmt) {
+            out.write(4);
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            out.write(5);
+            token(stmt.ifToken);
+            expr(stmt.condition);
+            stmt(stmt.thenBranch);
+            stmt(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            out.write(6);
+            token(stmt.keyword);
+            expr(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            out.write(7);
+            token(stmt.name);
+            expr(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            out.write(8);
+            token(stmt.whileToken);
+            expr(stmt.condition);
+            stmt(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            definitions.put(stmt, definitions.size());
+            out.write(9);
+            token(stmt.name);
+            tokens(stmt.arguments);
+            stmt(stmt.body);
+            return null;
+        }
+    }
+
+    static class Reader {
+        private static final TokenType[] TYPES = TokenType.values();
+
+        final ByteBuffer in;
+        final List<Object> definitions = new ArrayList<>();
+        private final List<String> strings = new ArrayList<>();
+        private final List<Token> tokens = new ArrayList<>();
+        private int line;
+
+        Reader(ByteBuffer in) {
+            this.in = in;
+        }
+
+        int varint() {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = in.get();
+                value |= (b & 0x7f) << shift;
+                if (b >= 0) return value;
+            }
+        }
+
+        String string() {
+            int index = varint();
+            if (index != NULL) return strings.get(index - 1);
+            byte[] bytes = new byte[varint()];
+            in.get(bytes);
+            String s = new String(bytes, StandardCharsets.UTF_8);
+            strings.add(s);
+            return s;
+        }
+
+        Token token() {
+            int index = varint();
+            if (index == NULL) return null;
+            if ((index & 1) == 1) return tokens.get(index >> 1);
+            TokenType type = TYPES[(index >> 1) - 1];
+            String lexeme = string();
+            int delta = varint();
+            line += (delta >>> 1) ^ -(delta & 1);
+            Object literal = type == TokenType.STRING_PART ? string() : derivedLiteral(type, lexeme);
+            Token token = new Token(type, lexeme, literal, line);
+            tokens.add(token);
+            return token;
+        }
+
+        Object literal() {
+            return literal(in.get());
+        }
+
+        /**
+         * Reads the rest of a literal whose tag has already been read.
+         */
+        Object literal(int tag) {
+            switch (tag) {
+                case 0:
+                    return null;
+                case 1:
+                    return in.getDouble();
+                case 2:
+                    return string();
+                case 3:
+                    return true;
+                case 4:
+                    return false;
+                case 5:
+                    return new TrabNull();
+                case 6:
+                    return (double) varint();
+            }
+            throw new IllegalArgumentException("Bad literal");
+        }
+
+        List<Token> tokens() {
+            int size = varint();
+            List<Token> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) list.add(token());
+            return list;
+        }
+
+        List<Expr> exprs() {
+            int size = varint();
+            List<Expr> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) list.add(expr());
+            return list;
+        }
+
+        List<Stmt> stmts() {
+            int size = varint();
+            List<Stmt> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) list.add(stmt());
+            return list;
+        }
+
+        /**
+         * Reserves the number of a definition before its body, which may hold more, is read.
+         */
+        private int define() {
+            definitions.add(null);
+            return definitions.size() - 1;
+        }
+
+        private <T> T defined(int definition, T node) {
+            definitions.set(definition, node);
+            return node;
+        }
+
+        Expr expr() {
+            switch (in.get()) {
+                case NULL:
+                    return null;
+                case 1:
+                    return new Expr.Literal(literal());
+                case 2:
+                    return new Expr.TrabString(exprs());
+                case 3:
+                    return new Expr.Variable(token());
+                case 4: {
+                    List<Expr> values = exprs();
+                    return new Expr.TrabList(values, token());
+                }
+                case 5:
+                    return new Expr.Grouping(expr());
+                case 6: {
+                    Token operator = token();
+                    Expr left = expr();
+                    return new Expr.Call(operator, left, exprs());
+                }
+                case 7: {
+                    Expr left = expr();
+                    return new Expr.Get(left, token());
+                }
+                case 8: {
+                    Expr operand = expr();
+                    Expr start = expr();
+                    Expr end = expr();
+                    Expr step = expr();
+                    return new Expr.Index(operand, start, end, step, token());
+                }
+                case 9: {
+                    Token operator = token();
+                    return new Expr.Unary(operator, expr());
+                }
+                case 10: {
+                    Token operator = token();
+                    return new Expr.Post(operator, expr());
+                }
+                case 11: {
+                    Expr left = expr();
+                    Token operator = token();
+                    return new Expr.Binary(left, operator, expr());
+                }
+                case 12: {
+                    Expr left = expr();
+                    Token operator = token();
+                    return new Expr.Logical(left, operator, expr());
+                }
+                case 13: {
+                    int definition = define();
+                    List<Token> arguments = tokens();
+                    return defined(definition, new Expr.Lambda(arguments, stmt()));
+                }
+                case 14: {
+                    Token name = token();
+                    Token operator = token();
+                    return new Expr.Assign(name, operator, expr());
+                }
+            }
+            throw new IllegalArgumentException("Bad expression");
+        }
+
+        Stmt stmt() {
+            switch (in.get()) {
+                case NULL:
+                    return null;
+                case 1:
+                    return new Stmt.Block(stmts());
+                case 2: {
+                    int definition = define();
+                    Token name = token();
+                    int size = varint();
+                    List<Stmt.Function> methods = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) methods.add((Stmt.Function) stmt());
+                    return defined(definition, new Stmt.Class(name, methods));
+                }
+                case 3:
+                    return new Stmt.Expression(expr());
+                case 4:
+                    return new Stmt.PrintableExpression(expr());
+                case 5: {
+                    Token ifToken = token();
+                    Expr condition = expr();
+                    Stmt thenBranch = stmt();
+                    return new Stmt.If(ifToken, condition, thenBranch, stmt());
+                }
+                case 6: {
+                    Token keyword = token();
+                    return new Stmt.Return(keyword, expr());
+                }
+                case 7: {
+                    Token name = token();
+                    return new Stmt.Var(name, expr());
+                }
+                case 8: {
+                    Token whileToken = token();
+                    Expr condition = expr();
+                    return new Stmt.While(whileToken, condition, stmt());
+                }
+                case 9: {
+                    int definition = define();
+                    Token name = token();
+                    List<Token> arguments = tokens();
+                    return defined(definition, new Stmt.Function(name, arguments, stmt()));
+                }
+            }
+            throw new IllegalArgumentException("Bad statement");
+        }
+    }
+}
@@ -0,0 +1,775 @@
+package ml.dent.trab;
+
+import ml.dent.trab.Expr.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles the statements produced by {@link Parser} into bytecode for the
+ * {@link VM}. Locals live in stack slots resolved at compile time, variables
+ * captured by nested functions become upvalues and everything else is global. A name that a
+ * nested function uses before its block declares it gets its slot when the block starts, as in
+ * the {@link Resolver}.
+ */
+class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final int MAX_LOCALS = 256;
+    private static final int MAX_ARGUMENTS = 255;
+
+    private static class Local {
+        final String name;
+        final int depth;
+        boolean captured;
+        // Declared when the block started, for nested functions, and not yet by its statement.
+        boolean ahead;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue {
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal) {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    private static class FunctionScope {
+        final FunctionScope enclosing;
+        final VMFunction function;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth;
+        int stackHeight;
+
+        FunctionScope(FunctionScope enclosing, VMFunction function) {
+            this.enclosing = enclosing;
+            this.function = function;
+        }
+    }
+
+    private final boolean isRepl;
+    private final Diagnostics diagnostics;
+    private final Map<String, Global> globals;
+    private FunctionScope current;
+    private int line = 1;
+
+    BytecodeCompiler(boolean isRepl, Diagnostics diagnostics, Map<String, Global> globals) {
+        this.isRepl = isRepl;
+        this.diagnostics = diagnostics;
+        this.globals = globals;
+    }
+
+    VMFunction compile(List<Stmt> statements) {
+        current = new FunctionScope(null, new VMFunction("script", List.of()));
+        addLocal("", 0);
+        current.stackHeight = 1;
+        current.function.maxStack = 1;
+        for (Stmt stmt : statements) {
+            if (isRepl && stmt instanceof Stmt.PrintableExpression && !isPrintCall(((Stmt.PrintableExpression) stmt).expression)) {
+                compile(((Stmt.PrintableExpression) stmt).expression);
+                emit(OpCode.REPL_PRINT, -1);
+            } else compile(stmt);
+        }
+        emitConstant(new TrabNull());
+        emit(OpCode.RETURN, -1);
+        return endFunction();
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private boolean isPrintCall(Expr expr) {
+        return expr instanceof Call && ((Call) expr).left instanceof Variable
+                && ((Variable) ((Call) expr).left).name.lexeme.equals("print");
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        declareAhead(stmt.statements);
+        for (Stmt s : stmt.statements) compile(s);
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        line = stmt.name.line;
+        int classSlot = -1;
+        if (current.scopeDepth > 0 && (classSlot = ahead(stmt.name)) < 0) {
+            declareLocal(stmt.name);
+            emitConstant(new TrabNull());
+            classSlot = current.locals.size() - 1;
+        }
+        if (stmt.methods.size() > MAX_ARGUMENTS)
+            diagnostics.error(stmt.name, "Too many methods in class");
+        // Methods see each other by name, so they are declared as locals of the class body first.
+        beginScope();
+        int first = current.locals.size();
+        for (Stmt.Function method : stmt.methods) {
+            declareLocal(method.name);
+            emitConstant(new TrabNull());
+        }
+        for (int i = 0; i < stmt.methods.size(); i++) {
+            Stmt.Function method = stmt.methods.get(i);
+            function(method.name.lexeme, method.arguments, method.body);
+            emitByte(OpCode.SET_LOCAL, first + i, 0);
+            emit(OpCode.POP, -1);
+        }
+        for (int i = 0; i < stmt.methods.size(); i++)
+            emitByte(OpCode.GET_LOCAL, first + i, 1);
+        line = stmt.name.line;
+        emitShort(OpCode.CLASS, identifier(stmt.name), 1 - stmt.methods.size());
+        current.function.chunk.write(stmt.methods.size(), line);
+        if (classSlot >= 0) {
+            emitByte(OpCode.SET_LOCAL, classSlot, 0);
+            emit(OpCode.POP, -1);
+        } else emitShort(OpCode.DEFINE_GLOBAL, global(stmt.name), -1);
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        discard(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintableExpressionStmt(Stmt.PrintableExpression stmt) {
+        discard(stmt.expression);
+        return null;
+    }
+
+    /**
+     * Compiles an expression whose value is thrown away. Counters and stores
+     * to locals get single instructions instead of a push followed by a pop.
+     */
+    private void discard(Expr expr) {
+        Token counter = null;
+        TokenType operator = null;
+        if (expr instanceof Post && ((Post) expr).left instanceof Variable) {
+            counter = ((Variable) ((Post) expr).left).name;
+            operator = ((Post) expr).operator.type;
+        } else if (expr instanceof Unary && ((Unary) expr).right instanceof Variable) {
+            counter = ((Variable) ((Unary) expr).right).name;
+            operator = ((Unary) expr).operator.type;
+        }
+        if (counter != null && (operator == TokenType.PLUS_PLUS || operator == TokenType.MINUS_MINUS)
+                && resolveLocal(current, counter.lexeme) != -1) {
+            line = counter.line;
+            emitByte(OpCode.INC_LOCAL, resolveLocal(current, counter.lexeme), 0);
+            current.function.chunk.write(operator == TokenType.PLUS_PLUS ? 1 : -1, line);
+            return;
+        }
+        if (expr instanceof Assign && resolveLocal(current, ((Assign) expr).name.lexeme) != -1) {
+            Assign assign = (Assign) expr;
+            int slot = resolveLocal(current, assign.name.lexeme);
+            if (assign.operator.type != TokenType.EQUAL) emitByte(OpCode.GET_LOCAL, slot, 1);
+            compile(assign.value);
+            line = assign.operator.line;
+            if (assign.operator.type != TokenType.EQUAL) emitArithmetic(assign.operator.type);
+            emitByte(OpCode.STORE_LOCAL, slot, -1);
+            return;
+        }
+        compile(expr);
+        emit(OpCode.POP, -1);
+    }
+
+    /**
+     * Compiles a condition and a jump taken when it is false, fusing numeric
+     * comparisons into the jump.
+     */
+    private int conditionJump(Expr condition, Token keyword) {
+        if (condition instanceof Binary) {
+            Binary binary = (Binary) condition;
+            byte op = -1;
+            switch (binary.operator.type) {
+                case LESS:
+                    op = OpCode.JUMP_UNLESS_LESS;
+                    break;
+                case LESS_EQUAL:
+                    op = OpCode.JUMP_UNLESS_LESS_EQUAL;
+                    break;
+                case GREATER:
+                    op = OpCode.JUMP_UNLESS_GREATER;
+                    break;
+                case GREATER_EQUAL:
+                    op = OpCode.JUMP_UNLESS_GREATER_EQUAL;
+                    break;
+            }
+            if (op != -1) {
+                compile(binary.left);
+                compile(binary.right);
+                line = binary.operator.line;
+                return emitJump(op, -2);
+            }
+        }
+        compile(condition);
+        line = keyword.line;
+        return emitJump(OpCode.JUMP_IF_FALSE, -1);
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        int thenJump = conditionJump(stmt.condition, stmt.ifToken);
+        compile(stmt.thenBranch);
+        if (stmt.elseBranch != null) {
+            int elseJump = emitJump(OpCode.JUMP, 0);
+            patchJump(thenJump);
+            compile(stmt.elseBranch);
+            patchJump(elseJump);
+        } else patchJump(thenJump);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.tail) {
+            // The RETURN after it is only reached when the callee is not a closure.
+            Call call = (Call) stmt.value;
+            if (call.arguments.size() > MAX_ARGUMENTS)
+                diagnostics.error(call.operator, "Too many arguments");
+            compile(call.left);
+            for (Expr e : call.arguments) compile(e);
+            line = call.operator.line;
+            emitByte(OpCode.TAIL_CALL, call.arguments.size(), -call.arguments.size());
+        } else compile(stmt.value);
+        line = stmt.keyword.line;
+        emit(OpCode.RETURN, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) compile(stmt.initializer);
+        else emitConstant(new TrabNull());
+        line = stmt.name.line;
+        int slot = current.scopeDepth > 0 ? ahead(stmt.name) : -1;
+        if (slot >= 0) {
+            emitByte(OpCode.SET_LOCAL, slot, 0);
+            emit(OpCode.POP, -1);
+        } else if (current.scopeDepth > 0) declareLocal(stmt.name);
+        else emitShort(OpCode.DEFINE_VAR, global(stmt.name), -1);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = current.function.chunk.count;
+        int exitJump = conditionJump(stmt.condition, stmt.whileToken);
+        compile(stmt.body);
+        emitLoop(loopStart);
+        patchJump(exitJump);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        line = stmt.name.line;
+        int slot = current.scopeDepth > 0 ? ahead(stmt.name) : -1;
+        if (slot >= 0) {
+            function(stmt.name.lexeme, stmt.arguments, stmt.body);
+            emitByte(OpCode.SET_LOCAL, slot, 0);
+            emit(OpCode.POP, -1);
+        } else if (current.scopeDepth > 0) {
+            // Declared before the body is compiled so the function can call itself.
+            declareLocal(stmt.name);
+            function(stmt.name.lexeme, stmt.arguments, stmt.body);
+        } else {
+            function(stmt.name.lexeme, stmt.arguments, stmt.body);
+            emitShort(OpCode.DEFINE_GLOBAL, global(stmt.name), -1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Literal expr) {
+        emitConstant(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitTrabStringExpr(TrabString expr) {
+        for (Expr e : expr.values) compile(e);
+        emitShort(OpCode.INTERPOLATE, expr.values.size(), 1 - expr.values.size());
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Variable expr) {
+        line = expr.name.line;
+        getVariable(expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitTrabListExpr(TrabList expr) {
+        for (Expr e : expr.values) compile(e);
+        line = expr.start.line;
+        emitShort(OpCode.LIST, expr.values.size(), 1 - expr.values.size());
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Call expr) {
+        if (expr.arguments.size() > MAX_ARGUMENTS)
+            diagnostics.error(expr.operator, "Too many arguments");
+        if (expr.left instanceof Get) {
+            Get get = (Get) expr.left;
+            compile(get.left);
+            for (Expr e : expr.arguments) compile(e);
+            line = expr.operator.line;
+            emitShort(OpCode.INVOKE, identifier(get.name), -expr.arguments.size());
+            current.function.chunk.write(expr.arguments.size(), line);
+        } else {
+            compile(expr.left);
+            for (Expr e : expr.arguments) compile(e);
+            line = expr.operator.line;
+            emitByte(OpCode.CALL, expr.arguments.size(), -expr.arguments.size());
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Get expr) {
+        compile(expr.left);
+        line = expr.name.line;
+        emitShort(OpCode.GET_PROPERTY, identifier(expr.name), 0);
+        return null;
+    }
+
+    @Override
+    public Void visitIndexExpr(Index expr) {
+        compile(expr.operand);
+        if (expr.start != null && expr.end == null && expr.step == null) {
+            compile(expr.start);
+            line = expr.bracket.line;
+            emit(OpCode.INDEX, -1);
+            return null;
+        }
+        int mask = 0;
+        if (expr.start != null) {
+            compile(expr.start);
+            mask |= 1;
+        }
+        if (expr.end != null) {
+            compile(expr.end);
+            mask |= 2;
+        }
+        if (expr.step != null) {
+            compile(expr.step);
+            mask |= 4;
+        }
+        line = expr.bracket.line;
+        emitByte(OpCode.SLICE, mask, -Integer.bitCount(mask));
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Unary expr) {
+        switch (expr.operator.type) {
+            case MINUS:
+                compile(expr.right);
+                line = expr.operator.line;
+                emit(OpCode.NEGATE, 0);
+                break;
+            case BANG:
+                compile(expr.right);
+                line = expr.operator.line;
+                emit(OpCode.NOT, 0);
+                break;
+            case PLUS_PLUS:
+            case MINUS_MINUS:
+                if (!(expr.right instanceof Variable)) {
+                    diagnostics.error(expr.operator, "Operand must be variable");
+                    break;
+                }
+                Token name = ((Variable) expr.right).name;
+                line = expr.operator.line;
+                getVariable(name);
+                line = expr.operator.line;
+                emit(expr.operator.type == TokenType.PLUS_PLUS ? OpCode.INCREMENT : OpCode.DECREMENT, 0);
+                setVariable(name);
+                break;
+            case QUESTION:
+                compile(expr.right);
+                line = expr.operator.line;
+                emit(OpCode.COMMAND, 0);
+                break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitPostExpr(Post expr) {
+        if (!(expr.left instanceof Variable)) {
+            diagnostics.error(expr.operator, "Operand must be variable");
+            return null;
+        }
+        Token name = ((Variable) expr.left).name;
+        line = expr.operator.line;
+        getVariable(name);
+        line = expr.operator.line;
+        emit(OpCode.DUP, 1);
+        emit(expr.operator.type == TokenType.PLUS_PLUS ? OpCode.INCREMENT : OpCode.DECREMENT, 0);
+        setVariable(name);
+        emit(OpCode.POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case PLUS:
+                emit(OpCode.ADD, -1);
+                break;
+            case MINUS:
+                emit(OpCode.SUBTRACT, -1);
+                break;
+            case STAR:
+                emit(OpCode.MULTIPLY, -1);
+                break;
+            case SLASH:
+                emit(OpCode.DIVIDE, -1);
+                break;
+            case PERCENT:
+                emit(OpCode.MODULO, -1);
+                break;
+            case STAR_STAR:
+                emit(OpCode.POWER, -1);
+                break;
+            case LESS:
+                emit(OpCode.LESS, -1);
+                break;
+            case LESS_EQUAL:
+                emit(OpCode.LESS_EQUAL, -1);
+                break;
+            case GREATER:
+                emit(OpCode.GREATER, -1);
+                break;
+            case GREATER_EQUAL:
+                emit(OpCode.GREATER_EQUAL, -1);
+                break;
+            case EQUAL_EQUAL:
+                emit(OpCode.EQUAL, -1);
+                break;
+            case BANG_EQUAL:
+                emit(OpCode.EQUAL, -1);
+                emit(OpCode.NOT, 0);
+                break;
+            default:
+                diagnostics.error(expr.operator, "Unknown operator");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Logical expr) {
+        compile(expr.left);
+        line = expr.operator.line;
+        emit(OpCode.DUP, 1);
+        if (expr.operator.type == TokenType.AND) {
+            int endJump = emitJump(OpCode.JUMP_IF_FALSE, -1);
+            emit(OpCode.POP, -1);
+            compile(expr.right);
+            line = expr.operator.line;
+            emit(OpCode.CHECK_BOOL, 0);
+            patchJump(endJump);
+        } else {
+            int elseJump = emitJump(OpCode.JUMP_IF_FALSE, -1);
+            int endJump = emitJump(OpCode.JUMP, 0);
+            patchJump(elseJump);
+            emit(OpCode.POP, -1);
+            compile(expr.right);
+            line = expr.operator.line;
+            emit(OpCode.CHECK_BOOL, 0);
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLambdaExpr(Lambda expr) {
+        function(null, expr.arguments, expr.right);
+        return null;
+    }
+
+    // The VM makes the call; it has no use for the copy of the body.
+    @Override
+    public Void visitInlineExpr(Inline expr) {
+        for (Expr binding : expr.bindings) {
+            compile(binding);
+            emit(OpCode.POP, -1);
+        }
+        compile(expr.call);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Assign expr) {
+        line = expr.name.line;
+        if (expr.operator.type == TokenType.EQUAL) {
+            compile(expr.value);
+            line = expr.name.line;
+            setVariable(expr.name);
+            return null;
+        }
+        getVariable(expr.name);
+        compile(expr.value);
+        line = expr.operator.line;
+        emitArithmetic(expr.operator.type);
+        setVariable(expr.name);
+        return null;
+    }
+
+    private void emitArithmetic(TokenType compoundOperator) {
+        switch (compoundOperator) {
+            case PLUS_EQUAL:
+                emit(OpCode.ADD, -1);
+                break;
+            case MINUS_EQUAL:
+                emit(OpCode.SUBTRACT, -1);
+                break;
+            case STAR_EQUAL:
+                emit(OpCode.MULTIPLY, -1);
+                break;
+            case SLASH_EQUAL:
+                emit(OpCode.DIVIDE, -1);
+                break;
+            case PERCENT_EQUAL:
+                emit(OpCode.MODULO, -1);
+                break;
+            case STAR_STAR_EQUAL:
+                emit(OpCode.POWER, -1);
+                break;
+        }
+    }
+
+    private void function(String name, List<Token> arguments, Stmt body) {
+        FunctionScope scope = new FunctionScope(current, new VMFunction(name, arguments));
+        current = scope;
+        scope.scopeDepth = 1;
+        addLocal("", 1);
+        for (Token argument : arguments) declareLocal(argument);
+        scope.stackHeight = scope.locals.size();
+        scope.function.maxStack = scope.stackHeight;
+        // Function bodies run directly in the function's scope, like Interpreter.executeBlock.
+        if (body instanceof Stmt.Block) {
+            declareAhead(((Stmt.Block) body).statements);
+            for (Stmt s : ((Stmt.Block) body).statements) compile(s);
+        } else compile(body);
+        emitConstant(new TrabNull());
+        emit(OpCode.RETURN, -1);
+        VMFunction function = endFunction();
+        current = scope.enclosing;
+        emitShort(OpCode.CLOSURE, makeConstant(function), 1);
+        for (Upvalue upvalue : scope.upvalues) {
+            current.function.chunk.write(upvalue.isLocal ? 1 : 0, line);
+            current.function.chunk.write(upvalue.index, line);
+        }
+    }
+
+    private VMFunction endFunction() {
+        VMFunction function = current.function;
+        function.upvalueCount = current.upvalues.size();
+        function.chunk.seal();
+        return function;
+    }
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            emit(locals.get(locals.size() - 1).captured ? OpCode.CLOSE_UPVALUE : OpCode.POP, -1);
+            locals.remove(locals.size() - 1);
+        }
+    }
+
+    private void declareLocal(Token name) {
+        for (int i = current.locals.size() - 1; i >= 0; i--) {
+            Local local = current.locals.get(i);
+            if (local.depth < current.scopeDepth) break;
+            if (local.name.equals(name.lexeme))
+                diagnostics.error(name, "Variable cannot be redefined in same context");
+        }
+        if (current.locals.size() == MAX_LOCALS) {
+            diagnostics.error(name, "Too many local variables in function");
+            return;
+        }
+        addLocal(name.lexeme, current.scopeDepth);
+    }
+
+    /**
+     * Gives the names that nested functions use before the statements declare them their slots
+     * now, holding nothing until the declaration runs.
+     */
+    private void declareAhead(List<Stmt> statements) {
+        outer:
+        for (Token name : Resolver.usedAhead(statements, new HashSet<>())) {
+            // A parameter of the same name is an error the declaration reports.
+            for (int i = current.locals.size() - 1; i >= 0 && current.locals.get(i).depth == current.scopeDepth; i--)
+                if (current.locals.get(i).name.equals(name.lexeme)) continue outer;
+            declareLocal(name);
+            current.locals.get(current.locals.size() - 1).ahead = true;
+            emitConstant(null);
+        }
+    }
+
+    /**
+     * Returns the slot given to a name declared ahead in the current block, now that its
+     * declaration is reached, or -1.
+     */
+    private int ahead(Token name) {
+        for (int i = current.locals.size() - 1; i >= 0; i--) {
+            Local local = current.locals.get(i);
+            if (local.depth < current.scopeDepth) break;
+            if (local.ahead && local.name.equals(name.lexeme)) {
+                local.ahead = false;
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void addLocal(String name, int depth) {
+        current.locals.add(new Local(name, depth));
+    }
+
+    private void getVariable(Token name) {
+        int arg = resolveLocal(current, name.lexeme);
+        if (arg != -1) emitByte(OpCode.GET_LOCAL, arg, 1);
+        else if ((arg = resolveUpvalue(current, name.lexeme)) != -1) emitByte(OpCode.GET_UPVALUE, arg, 1);
+        else emitShort(OpCode.GET_GLOBAL, global(name), 1);
+    }
+
+    private void setVariable(Token name) {
+        int arg = resolveLocal(current, name.lexeme);
+        if (arg != -1) emitByte(OpCode.SET_LOCAL, arg, 0);
+        else if ((arg = resolveUpvalue(current, name.lexeme)) != -1) emitByte(OpCode.SET_UPVALUE, arg, 0);
+        else emitShort(OpCode.SET_GLOBAL, global(name), 0);
+    }
+
+    private int resolveLocal(FunctionScope scope, String name) {
+        for (int i = scope.locals.size() - 1; i >= 0; i--) {
+            Local local = scope.locals.get(i);
+            // Only code in a nested function sees a name before its declaration.
+            if (local.name.equals(name) && !(local.ahead && scope == current)) return i;
+        }
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionScope scope, String name) {
+        if (scope.enclosing == null) return -1;
+        int local = resolveLocal(scope.enclosing, name);
+        if (local != -1) {
+            scope.enclosing.locals.get(local).captured = true;
+            return addUpvalue(scope, local, true);
+        }
+        int upvalue = resolveUpvalue(scope.enclosing, name);
+        if (upvalue != -1) return addUpvalue(scope, upvalue, false);
+        return -1;
+    }
+
+    private int addUpvalue(FunctionScope scope, int index, boolean isLocal) {
+        for (int i = 0; i < scope.upvalues.size(); i++) {
+            Upvalue upvalue = scope.upvalues.get(i);
+            if (upvalue.index == index && upvalue.isLocal == isLocal) return i;
+        }
+        if (scope.upvalues.size() == MAX_LOCALS) {
+            diagnostics.error("Too many closure variables in function", line);
+            return 0;
+        }
+        scope.upvalues.add(new Upvalue(index, isLocal));
+        return scope.upvalues.size() - 1;
+    }
+
+    // The instructions on globals take the name's cell, which the VM reads and writes directly.
+    private int global(Token name) {
+        return makeConstant(globals.computeIfAbsent(name.lexeme, Global::new));
+    }
+
+    private int identifier(Token name) {
+        return makeConstant(name.lexeme);
+    }
+
+    private int makeConstant(Object value) {
+        int index = current.function.chunk.addConstant(value);
+        if (index > 0xffff) {
+            diagnostics.error("Too many constants in one chunk", line);
+            return 0;
+        }
+        return index;
+    }
+
+    private void emitConstant(Object value) {
+        emitShort(OpCode.CONSTANT, makeConstant(value), 1);
+    }
+
+    /**
+     * Writes an instruction and records its effect on the operand stack so the
+     * VM knows how many slots each frame can need.
+     */
+    private void emit(byte op, int stackEffect) {
+        current.function.chunk.write(op, line);
+        current.stackHeight += stackEffect;
+        if (current.stackHeight > current.function.maxStack)
+            current.function.maxStack = current.stackHeight;
+    }
+
+    private void emitByte(byte op, int operand, int stackEffect) {
+        emit(op, stackEffect);
+        current.function.chunk.write(operand, line);
+    }
+
+    private void emitShort(byte op, int operand, int stackEffect) {
+        emit(op, stackEffect);
+        current.function.chunk.writeShort(operand, line);
+    }
+
+    private int emitJump(byte op, int stackEffect) {
+        emitShort(op, 0xffff, stackEffect);
+        return current.function.chunk.count - 2;
+    }
+
+    private void patchJump(int offset) {
+        Chunk chunk = current.function.chunk;
+        int jump = chunk.count - offset - 2;
+        if (jump > 0xffff) diagnostics.error("Too much code to jump over", line);
+        chunk.code[offset] = (byte) ((jump >> 8) & 0xff);
+        chunk.code[offset + 1] = (byte) (jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        emit(OpCode.LOOP, 0);
+        int offset = current.function.chunk.count - loopStart + 2;
+        if (offset > 0xffff) diagnostics.error("Loop body too large", line);
+        current.function.chunk.writeShort(offset, line);
+    }
+}
@@ -0,0 +1,135 @@
+package ml.dent.trab;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compiled unit of bytecode: the instruction stream, a line table parallel
+ * to it and the constant pool the instructions index into.
+ */
+class Chunk {
+    byte[] code = new byte[64];
+    int[] lines = new int[64];
+    int count;
+    Object[] constants;
+    private final List<Object> constantList = new ArrayList<>();
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+    void write(int b, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = (byte) b;
+        lines[count] = line;
+        count++;
+    }
+
+    void writeShort(int s, int line) {
+        write((s >> 8) & 0xff, line);
+        write(s & 0xff, line);
+    }
+
+    int addConstant(Object value) {
+        Integer existing = constantIndex.get(value);
+        if (existing != null) return existing;
+        constantList.add(value);
+        if (!(value instanceof VMFunction)) constantIndex.put(value, constantList.size() - 1);
+        return constantList.size() - 1;
+    }
+
+    int readShort(int offset) {
+        return ((code[offset] & 0xff) << 8) | (code[offset + 1] & 0xff);
+    }
+
+    /**
+     * Trims the buffers and freezes the constant pool once compilation is done.
+     */
+    void seal() {
+        code = Arrays.copyOf(code, count);
+        lines = Arrays.copyOf(lines, count);
+        constants = constantList.toArray();
+    }
+
+    String disassemble(String name) {
+        StringBuilder buf = new StringBuilder("== " + name + " ==\n");
+        int offset = 0;
+        while (offset < count) offset = disassembleInstruction(buf, offset);
+        for (Object constant : constantList) {
+            if (constant instanceof VMFunction) {
+                VMFunction function = (VMFunction) constant;
+                buf.append(function.chunk.disassemble(function.toString()));
+            }
+        }
+        return buf.toString();
+    }
+
+    private int disassembleInstruction(StringBuilder buf, int offset) {
+        byte op = code[offset];
+        buf.append(String.format("%04d %4d %-14s", offset, lines[offset], OpCode.name(op)));
+        int next;
+        switch (op) {
+            case OpCode.CONSTANT:
+            case OpCode.GET_GLOBAL:
+            case OpCode.SET_GLOBAL:
+            case OpCode.DEFINE_GLOBAL:
+            case OpCode.DEFINE_VAR:
+            case OpCode.GET_PROPERTY:
+                buf.append(" ").append(constantList.get(readShort(offset + 1)));
+                next = offset + 3;
+                break;
+            case OpCode.LIST:
+            case OpCode.INTERPOLATE:
+                buf.append(" ").append(readShort(offset + 1));
+                next = offset + 3;
+                break;
+            case OpCode.GET_LOCAL:
+            case OpCode.SET_LOCAL:
+            case OpCode.GET_UPVALUE:
+            case OpCode.SET_UPVALUE:
+            case OpCode.CALL:
+            case OpCode.TAIL_CALL:
+            case OpCode.SLICE:
+            case OpCode.STORE_LOCAL:
+                buf.append(" ").append(code[offset + 1] & 0xff);
+                next = offset + 2;
+                break;
+            case OpCode.INC_LOCAL:
+                buf.append(" ").append(code[offset + 1] & 0xff).append(" ").append(code[offset + 2]);
+                next = offset + 3;
+                break;
+            case OpCode.JUMP:
+            case OpCode.JUMP_IF_FALSE:
+            case OpCode.JUMP_UNLESS_LESS:
+            case OpCode.JUMP_UNLESS_LESS_EQUAL:
+            case OpCode.JUMP_UNLESS_GREATER:
+            case OpCode.JUMP_UNLESS_GREATER_EQUAL:
+                buf.append(" -> ").append(offset + 3 + readShort(offset + 1));
+                next = offset + 3;
+                break;
+            case OpCode.LOOP:
+                buf.append(" -> ").append(offset + 3 - readShort(offset + 1));
+                next = offset + 3;
+                break;
+            case OpCode.INVOKE:
+            case OpCode.CLASS:
+                buf.append(" ").append(constantList.get(readShort(offset + 1)))
+                        .append(" ").append(code[offset + 3] & 0xff);
+                next = offset + 4;
+                break;
+            case OpCode.CLOSURE: {
+                VMFunction function = (VMFunction) constantList.get(readShort(offset + 1));
+                buf.append(" ").append(function);
+                next = offset + 3 + 2 * function.upvalueCount;
+                break;
+            }
+            default:
+                next = offset + 1;
+        }
+        buf.append("\n");
+        return next;
+    }
+}
@@ -0,0 +1,325 @@
+package ml.dent.trab;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a JVM class file with a constructor and a single method, just enough for the
+ * {@link Jit}. Classes are emitted as version 49 so the verifier infers frame types itself
+ * and no StackMapTable has to be computed.
+ */
+class ClassEmitter {
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC2_W = 0x14;
+    static final int ILOAD = 0x15;
+    static final int ALOAD = 0x19;
+    static final int ISTORE = 0x36;
+    static final int ASTORE = 0x3a;
+    static final int AALOAD = 0x32;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int SWAP = 0x5f;
+    static final int DADD = 0x63;
+    static final int DSUB = 0x67;
+    static final int DMUL = 0x6b;
+    static final int DDIV = 0x6f;
+    static final int DREM = 0x73;
+    static final int DCMPL = 0x97;
+    static final int DCMPG = 0x98;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int GOTO = 0xa7;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int NEW = 0xbb;
+    static final int ANEWARRAY = 0xbd;
+    static final int CHECKCAST = 0xc0;
+    static final int INSTANCEOF = 0xc1;
+
+    static class Label {
+        private int position = -1;
+        private int stack = -1;
+        private final List<Integer> jumps = new ArrayList<>();
+    }
+
+    private final String name;
+    private final String superName;
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+    private final List<Label> labels = new ArrayList<>();
+    private int stack;
+    private int maxStack;
+    private int maxLocals;
+
+    ClassEmitter(String name, String superName) {
+        this.name = name;
+        this.superName = superName;
+    }
+
+    int locals(int count) {
+        maxLocals = Math.max(maxLocals, count);
+        return count;
+    }
+
+    // Constant pool.
+
+    private int utf8(String s) {
+        return entry("U" + s, out -> {
+            out.writeByte(1);
+            out.writeUTF(s);
+        }, 1);
+    }
+
+    int classRef(String internalName) {
+        int utf = utf8(internalName);
+        return entry("C" + internalName, out -> {
+            out.writeByte(7);
+            out.writeShort(utf);
+        }, 1);
+    }
+
+    private int doubleConstant(double d) {
+        return entry("D" + Double.doubleToRawLongBits(d), out -> {
+            out.writeByte(6);
+            out.writeDouble(d);
+        }, 2);
+    }
+
+    private int nameAndType(String member, String descriptor) {
+        int n = utf8(member);
+        int t = utf8(descriptor);
+        return entry("N" + member + ":" + descriptor, out -> {
+            out.writeByte(12);
+            out.writeShort(n);
+            out.writeShort(t);
+        }, 1);
+    }
+
+    private int memberRef(int tag, String owner, String member, String descriptor) {
+        int c = classRef(owner);
+        int nt = nameAndType(member, descriptor);
+        return entry(tag + owner + "." + member + ":" + descriptor, out -> {
+            out.writeByte(tag);
+            out.writeShort(c);
+            out.writeShort(nt);
+        }, 1);
+    }
+
+    private interface PoolWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private int entry(String key, PoolWriter writer, int size) {
+        Integer existing = poolIndex.get(key);
+        if (existing != null) return existing;
+        try {
+            writer.write(poolOut);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        int index = poolCount;
+        poolCount += size;
+        poolIndex.put(key, index);
+        return index;
+    }
+
+    // Instructions.
+
+    private void adjust(int delta) {
+        stack += delta;
+        maxStack = Math.max(maxStack, stack);
+    }
+
+    void op(int opcode, int delta) {
+        code.write(opcode);
+        adjust(delta);
+    }
+
+    void pushInt(int value) {
+        if (value >= -1 && value <= 5) op(ICONST_0 + value, 1);
+        else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            op(BIPUSH, 1);
+            code.write(value);
+        } else {
+            op(SIPUSH, 1);
+            writeShort(value);
+        }
+    }
+
+    void pushDouble(double value) {
+        op(LDC2_W, 2);
+        writeShort(doubleConstant(value));
+    }
+
+    void local(int opcode, int index) {
+        if (index > 255) throw new IllegalStateException("Too many locals");
+        op(opcode, opcode == ILOAD || opcode == ALOAD ? 1 : -1);
+        code.write(index);
+        locals(index + 1);
+    }
+
+    void type(int opcode, String internalName) {
+        op(opcode, opcode == NEW ? 1 : 0);
+        writeShort(classRef(internalName));
+    }
+
+    void field(int opcode, String owner, String member, String descriptor) {
+        int size = size(descriptor.charAt(0));
+        op(opcode, opcode == GETSTATIC ? size : opcode == PUTFIELD ? -size - 1 : size - 1);
+        writeShort(memberRef(9, owner, member, descriptor));
+    }
+
+    void invoke(int opcode, String owner, String member, String descriptor) {
+        int delta = returnSize(descriptor) - argumentSize(descriptor) - (opcode == INVOKESTATIC ? 0 : 1);
+        op(opcode, delta);
+        writeShort(memberRef(opcode == INVOKEINTERFACE ? 11 : 10, owner, member, descriptor));
+        if (opcode == INVOKEINTERFACE) {
+            code.write(argumentSize(descriptor) + 1);
+            code.write(0);
+        }
+    }
+
+    void jump(int opcode, Label label) {
+        op(opcode, opcode == GOTO ? 0 : -1);
+        if (label.jumps.isEmpty()) labels.add(label);
+        label.jumps.add(code.size());
+        writeShort(0);
+        label.stack = stack;
+    }
+
+    void mark(Label label) {
+        label.position = code.size();
+        if (label.stack >= 0) stack = label.stack;
+    }
+
+    /**
+     * Forgets the stack depth after an unconditional transfer; the next label marked restores it.
+     */
+    void unreachable() {
+        stack = 0;
+    }
+
+    private void writeShort(int s) {
+        code.write((s >> 8) & 0xff);
+        code.write(s & 0xff);
+    }
+
+    private static int size(char type) {
+        return type == 'V' ? 0 : type == 'D' || type == 'J' ? 2 : 1;
+    }
+
+    private static int returnSize(String descriptor) {
+        return size(descriptor.charAt(descriptor.indexOf(')') + 1));
+    }
+
+    private static int argumentSize(String descriptor) {
+        int size = 0;
+        for (int i = 1; descriptor.charAt(i) != ')'; i++) {
+            char c = descriptor.charAt(i);
+            if (c == '[') {
+                while (descriptor.charAt(i) == '[') i++;
+                c = descriptor.charAt(i);
+                size += 1;
+            } else size += size(c);
+            if (c == 'L') i = descriptor.indexOf(';', i);
+        }
+        return size;
+    }
+
+    /**
+     * Patches the jumps and returns the class file for a constructor that calls the super
+     * constructor plus the method whose body was emitted.
+     */
+    byte[] finish(String method, String descriptor) {
+        byte[] body = code.toByteArray();
+        for (Label label : labels) {
+            for (int operand : label.jumps) {
+                int offset = label.position - (operand - 1);
+                body[operand] = (byte) (offset >> 8);
+                body[operand + 1] = (byte) offset;
+            }
+        }
+        if (body.length > Short.MAX_VALUE) throw new IllegalStateException("Method too large");
+        int thisClass = classRef(name);
+        int superClass = classRef(superName);
+        int init = memberRef(10, superName, "<init>", "()V");
+        int initName = utf8("<init>");
+        int initType = utf8("()V");
+        int methodName = utf8(method);
+        int methodType = utf8(descriptor);
+        int codeName = utf8("Code");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            out.write(pool.toByteArray());
+            out.writeShort(0x0030);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(2);
+
+            out.writeShort(0);
+            out.writeShort(initName);
+            out.writeShort(initType);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + 5);
+            out.writeShort(1);
+            out.writeShort(1);
+            out.writeInt(5);
+            out.writeByte(0x2a);
+            out.writeByte(INVOKESPECIAL);
+            out.writeShort(init);
+            out.writeByte(RETURN);
+            out.writeShort(0);
+            out.writeShort(0);
+
+            out.writeShort(0);
+            out.writeShort(methodName);
+            out.writeShort(methodType);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + body.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(body.length);
+            out.write(body);
+            out.writeShort(0);
+            out.writeShort(0);
+
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,188 @@
+package ml.dent.trab;
+
+import ml.dent.trab.Expr.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads an element once when a statement reads it several times, as in
+ * {@code total += xs[i] * xs[i]}. The first read is stored in a variable declared just before
+ * the statement and the others use that. Only a variable indexed by a variable or a number
+ * counts, and only when nothing that runs between the reads can change the list or either
+ * variable: every call and assignment in the statement has to contain all of them, so that it
+ * runs after them. Reads that might not run, right of {@code and} or {@code or} or inside a
+ * lambda, are left as they are.
+ * <p>
+ * Statements outside any block are left alone, since the variable would be a global.
+ */
+class CommonSubexpressions extends TreeRewriter {
+    /**
+     * Collects the reads of a statement that always run, in the order they run, and what in
+     * it can have an effect.
+     */
+    private static class Reads extends TreeRewriter {
+        final Map<String, List<Index>> reads = new LinkedHashMap<>();
+        final List<Expr> effects = new ArrayList<>();
+        boolean steps;
+        private int conditional;
+
+        @Override
+        public Expr visitIndexExpr(Index expr) {
+            super.visitIndexExpr(expr);
+            String key = key(expr);
+            if (key != null && conditional == 0) reads.computeIfAbsent(key, k -> new ArrayList<>()).add(expr);
+            return expr;
+        }
+
+        @Override
+        public Expr visitLogicalExpr(Logical expr) {
+            rewrite(expr.left);
+            conditional++;
+            rewrite(expr.right);
+            conditional--;
+            return expr;
+        }
+
+        @Override
+        public Expr visitLambdaExpr(Lambda expr) {
+            return expr;
+        }
+
+        @Override
+        public Expr visitCallExpr(Call expr) {
+            effects.add(expr);
+            return super.visitCallExpr(expr);
+        }
+
+        // The variables this pass declares start with '$', which no identifier can.
+        @Override
+        public Expr visitAssignExpr(Assign expr) {
+            if (!expr.name.lexeme.startsWith("$")) effects.add(expr);
+            return super.visitAssignExpr(expr);
+        }
+
+        // Increments write through their operand, so statements with one are left alone.
+        @Override
+        public Expr visitPostExpr(Post expr) {
+            steps = true;
+            return expr;
+        }
+
+        @Override
+        public Expr visitUnaryExpr(Unary expr) {
+            if (expr.operator.type == TokenType.PLUS_PLUS || expr.operator.type == TokenType.MINUS_MINUS) steps = true;
+            return super.visitUnaryExpr(expr);
+        }
+    }
+
+    /**
+     * Replaces the given reads, the first with an assignment to the variable and the rest with
+     * the variable.
+     */
+    private static class Reuse extends TreeRewriter {
+        private final List<Index> reads;
+        private final Token name;
+
+        Reuse(List<Index> reads, Token name) {
+            this.reads = reads;
+            this.name = name;
+        }
+
+        @Override
+        public Expr visitIndexExpr(Index expr) {
+            if (expr == reads.get(0)) return new Assign(name, new Token(TokenType.EQUAL, "=", null, name.line), expr);
+            if (reads.contains(expr)) return new Variable(name);
+            return super.visitIndexExpr(expr);
+        }
+    }
+
+    private int temporaries;
+
+    private static String key(Index expr) {
+        if (expr.end != null || expr.step != null || !(expr.operand instanceof Variable)) return null;
+        String list = ((Variable) expr.operand).name.lexeme;
+        if (expr.start instanceof Variable) return list + "[" + ((Variable) expr.start).name.lexeme + "]";
+        if (expr.start instanceof Literal && ((Literal) expr.start).value instanceof Double)
+            return list + "[" + ((Literal) expr.start).value + "]";
+        return null;
+    }
+
+    private static Set<Expr> indexes(Expr root) {
+        Set<Expr> found = Collections.newSetFromMap(new IdentityHashMap<>());
+        new TreeRewriter() {
+            @Override
+            public Expr visitIndexExpr(Index expr) {
+                found.add(expr);
+                return super.visitIndexExpr(expr);
+            }
+        }.rewrite(root);
+        return found;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        Stmt.Block block = (Stmt.Block) super.visitBlockStmt(stmt);
+        List<Stmt> statements = null;
+        for (int i = 0; i < block.statements.size(); i++) {
+            Stmt original = block.statements.get(i);
+            List<Stmt> before = new ArrayList<>();
+            Stmt rewritten = reuse(original, before);
+            if (rewritten != original && statements == null) statements = new ArrayList<>(block.statements.subList(0, i));
+            if (statements != null) {
+                statements.addAll(before);
+                statements.add(rewritten);
+            }
+        }
+        return statements == null ? block : new Stmt.Block(statements);
+    }
+
+    /**
+     * Rewrites the repeated reads of a statement, adding the declarations it needs to
+     * {@code before}.
+     */
+    private Stmt reuse(Stmt stmt, List<Stmt> before) {
+        for (; ; ) {
+            Expr expression = expression(stmt);
+            if (expression == null) return stmt;
+            Reads reads = new Reads();
+            reads.rewrite(expression);
+            if (reads.steps) return stmt;
+            List<Index> repeated = null;
+            for (List<Index> candidate : reads.reads.values()) {
+                if (candidate.size() < 2) continue;
+                boolean contained = true;
+                for (Expr effect : reads.effects)
+                    if (!indexes(effect).containsAll(candidate)) contained = false;
+                if (contained) {
+                    repeated = candidate;
+                    break;
+                }
+            }
+            if (repeated == null) return stmt;
+            Token name = new Token(TokenType.IDENTIFIER, "$" + temporaries++, null, repeated.get(0).bracket.line);
+            before.add(new Stmt.Var(name, null));
+            stmt = replace(stmt, new Reuse(repeated, name).rewrite(expression));
+        }
+    }
+
+    private static Expr expression(Stmt stmt) {
+        if (stmt instanceof Stmt.Expression) return ((Stmt.Expression) stmt).expression;
+        if (stmt instanceof Stmt.PrintableExpression) return ((Stmt.PrintableExpression) stmt).expression;
+        if (stmt instanceof Stmt.Var) return ((Stmt.Var) stmt).initializer;
+        if (stmt instanceof Stmt.Return) return ((Stmt.Return) stmt).value;
+        return null;
+    }
+
+    private static Stmt replace(Stmt stmt, Expr expression) {
+        if (stmt instanceof Stmt.Expression) return new Stmt.Expression(expression);
+        if (stmt instanceof Stmt.PrintableExpression) return new Stmt.PrintableExpression(expression);
+        if (stmt instanceof Stmt.Var) return new Stmt.Var(((Stmt.Var) stmt).name, expression);
+        return new Stmt.Return(((Stmt.Return) stmt).keyword, expression);
+    }
+}
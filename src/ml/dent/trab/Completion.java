@@ -0,0 +1,9 @@
+package ml.dent.trab;
+
+/**
+ * How a statement finished. A {@link #RETURN} unwinds through the enclosing blocks and loops
+ * to the call, which picks up the value from {@link Interpreter#takeReturnValue()}.
+ */
+enum Completion {
+    NORMAL, RETURN
+}
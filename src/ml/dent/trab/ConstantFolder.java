@@ -0,0 +1,87 @@
+package ml.dent.trab;
+
+import ml.dent.trab.Expr.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Evaluates operators whose operands are all literals. An operation that would fail at run
+ * time is left alone so the error is still reported when, and if, it is reached.
+ */
+class ConstantFolder extends TreeRewriter {
+    static boolean isConstant(Expr expr) {
+        if (!(expr instanceof Literal)) return false;
+        Object value = ((Literal) expr).value;
+        return value instanceof Double || value instanceof String || value instanceof Boolean;
+    }
+
+    private static Object value(Expr expr) {
+        return ((Literal) expr).value;
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Grouping expr) {
+        Expr folded = super.visitGroupingExpr(expr);
+        Expr expression = ((Grouping) folded).expression;
+        return isConstant(expression) ? expression : folded;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Unary expr) {
+        Unary folded = (Unary) super.visitUnaryExpr(expr);
+        if (!isConstant(folded.right)) return folded;
+        Object right = value(folded.right);
+        if (folded.operator.type == TokenType.MINUS && right instanceof Double) return new Literal(-1.0 * (Double) right);
+        if (folded.operator.type == TokenType.BANG && right instanceof Boolean) return new Literal(!(Boolean) right);
+        return folded;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Binary expr) {
+        Binary folded = (Binary) super.visitBinaryExpr(expr);
+        if (!isConstant(folded.left) || !isConstant(folded.right)) return folded;
+        try {
+            Object result = Interpreter.binary(folded.operator, value(folded.left), value(folded.right));
+            return result == null ? folded : new Literal(result);
+        } catch (RuntimeError e) {
+            return folded;
+        }
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Logical expr) {
+        Logical folded = (Logical) super.visitLogicalExpr(expr);
+        if (!isConstant(folded.left) || !(value(folded.left) instanceof Boolean)) return folded;
+        boolean left = (Boolean) value(folded.left);
+        // false and x, true or x: the right side is never evaluated.
+        if (folded.operator.type == TokenType.AND && !left) return new Literal(false);
+        if (folded.operator.type == TokenType.OR && left) return new Literal(true);
+        if (isConstant(folded.right) && value(folded.right) instanceof Boolean) return folded.right;
+        return folded;
+    }
+
+    /**
+     * Joins neighbouring literal parts of an interpolated string, and the whole string when
+     * every part is a literal.
+     */
+    @Override
+    public Expr visitTrabStringExpr(TrabString expr) {
+        TrabString folded = (TrabString) super.visitTrabStringExpr(expr);
+        List<Expr> parts = new ArrayList<>();
+        StringBuilder run = null;
+        for (Expr part : folded.values) {
+            if (isConstant(part)) {
+                if (run == null) run = new StringBuilder();
+                run.append(Interpreter.stringify(value(part)));
+                continue;
+            }
+            if (run != null) parts.add(new Literal(run.toString()));
+            run = null;
+            parts.add(part);
+        }
+        if (run != null) parts.add(new Literal(run.toString()));
+        if (parts.size() == 1 && isConstant(parts.get(0))) return parts.get(0);
+        return parts.size() == folded.values.size() ? folded : new TrabString(parts);
+    }
+}
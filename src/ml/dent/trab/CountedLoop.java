@@ -0,0 +1,30 @@
+package ml.dent.trab;
+
+/**
+ * A for loop that steps a numeric counter by a constant, found by {@link CountedLoops}. The
+ * interpreter keeps the counter in a Java double while the loop runs and stores it in its slot
+ * only before the body runs, when the body reads it, and once the loop is left.
+ */
+final class CountedLoop {
+    // The left side of the condition, which the resolver gives the counter's depth and slot.
+    final Expr.Variable counter;
+    final Token operator;
+    final Expr bound;
+    final double step;
+    // Its last statement is the increment, which the interpreter does itself.
+    final Stmt.Block body;
+    final boolean observed;
+    // Set by LoopInvariants: the bound is the same on every iteration, or it is the length of
+    // the list this variable holds, which stays the same list.
+    boolean invariantBound;
+    Expr.Variable sizeOf;
+
+    CountedLoop(Expr.Variable counter, Token operator, Expr bound, double step, Stmt.Block body, boolean observed) {
+        this.counter = counter;
+        this.operator = operator;
+        this.bound = bound;
+        this.step = step;
+        this.body = body;
+        this.observed = observed;
+    }
+}
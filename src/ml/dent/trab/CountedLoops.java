@@ -0,0 +1,155 @@
+package ml.dent.trab;
+
+import ml.dent.trab.Expr.*;
+
+/**
+ * Finds the loops {@link Parser#forStmt} builds from {@code for (var i = a; i < b; i++)}: a
+ * block declaring the counter followed by a while comparing it against a bound, whose body
+ * ends in a constant step. The counter's scope holds nothing but the loop, so only the loop
+ * can see it. The loop is marked as a {@link CountedLoop} when nothing in it but the final
+ * step writes the counter and it creates no closure that could.
+ */
+class CountedLoops extends TreeRewriter {
+    /**
+     * Counts what a subtree does with one name.
+     */
+    private static class Uses extends TreeRewriter {
+        private final String name;
+        int reads;
+        int writes;
+        int closures;
+
+        Uses(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Expr visitVariableExpr(Variable expr) {
+            if (expr.name.lexeme.equals(name)) reads++;
+            return expr;
+        }
+
+        @Override
+        public Expr visitAssignExpr(Assign expr) {
+            if (expr.name.lexeme.equals(name)) writes++;
+            return super.visitAssignExpr(expr);
+        }
+
+        @Override
+        public Expr visitPostExpr(Post expr) {
+            if (isCounter(expr.left, name)) writes++;
+            return super.visitPostExpr(expr);
+        }
+
+        @Override
+        public Expr visitUnaryExpr(Unary expr) {
+            TokenType type = expr.operator.type;
+            if ((type == TokenType.PLUS_PLUS || type == TokenType.MINUS_MINUS) && isCounter(expr.right, name)) writes++;
+            return super.visitUnaryExpr(expr);
+        }
+
+        // A shadowing declaration counts as a write: the final step would go to it instead.
+        @Override
+        public Stmt visitVarStmt(Stmt.Var stmt) {
+            if (stmt.name.lexeme.equals(name)) writes++;
+            return super.visitVarStmt(stmt);
+        }
+
+        @Override
+        public Expr visitLambdaExpr(Lambda expr) {
+            closures++;
+            return expr;
+        }
+
+        @Override
+        public Stmt visitClassStmt(Stmt.Class stmt) {
+            closures++;
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitFunctionStmt(Stmt.Function stmt) {
+            closures++;
+            return stmt;
+        }
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        Stmt result = super.visitBlockStmt(stmt);
+        if (stmt.statements.size() == 2 && stmt.statements.get(0) instanceof Stmt.Var
+                && stmt.statements.get(1) instanceof Stmt.While)
+            mark((Stmt.Var) stmt.statements.get(0), (Stmt.While) stmt.statements.get(1));
+        return result;
+    }
+
+    private static void mark(Stmt.Var declaration, Stmt.While loop) {
+        String name = declaration.name.lexeme;
+        if (!(loop.condition instanceof Binary)) return;
+        Binary condition = (Binary) loop.condition;
+        switch (condition.operator.type) {
+            case LESS:
+            case LESS_EQUAL:
+            case GREATER:
+            case GREATER_EQUAL:
+                break;
+            default:
+                return;
+        }
+        if (!(condition.left instanceof Variable) || !((Variable) condition.left).name.lexeme.equals(name)) return;
+        Uses bound = new Uses(name);
+        bound.rewrite(condition.right);
+        if (bound.reads + bound.writes + bound.closures > 0) return;
+
+        // The parser wraps loop bodies in blocks; look through those that declare nothing.
+        Stmt body = loop.body;
+        while (body instanceof Stmt.Block && ((Stmt.Block) body).flat && ((Stmt.Block) body).statements.size() == 1
+                && ((Stmt.Block) body).statements.get(0) instanceof Stmt.Block)
+            body = ((Stmt.Block) body).statements.get(0);
+        if (!(body instanceof Stmt.Block) || ((Stmt.Block) body).statements.isEmpty()) return;
+        Stmt.Block block = (Stmt.Block) body;
+        Stmt last = block.statements.get(block.statements.size() - 1);
+        if (!(last instanceof Stmt.Expression)) return;
+        Double step = step(name, ((Stmt.Expression) last).expression);
+        if (step == null) return;
+
+        Uses uses = new Uses(name);
+        uses.rewrite(block.statements.subList(0, block.statements.size() - 1));
+        if (uses.writes + uses.closures > 0) return;
+        loop.counted = new CountedLoop((Variable) condition.left, condition.operator, condition.right, step, block,
+                uses.reads > 0);
+    }
+
+    /**
+     * The constant an expression adds to the counter, or null if it does anything else.
+     */
+    private static Double step(String name, Expr increment) {
+        if (increment instanceof Post && isCounter(((Post) increment).left, name))
+            return ((Post) increment).operator.type == TokenType.PLUS_PLUS ? 1.0 : -1.0;
+        if (increment instanceof Unary && isCounter(((Unary) increment).right, name)) {
+            TokenType type = ((Unary) increment).operator.type;
+            if (type == TokenType.PLUS_PLUS) return 1.0;
+            if (type == TokenType.MINUS_MINUS) return -1.0;
+            return null;
+        }
+        if (!(increment instanceof Assign) || !((Assign) increment).name.lexeme.equals(name)) return null;
+        Assign assign = (Assign) increment;
+        Expr amount = assign.value;
+        TokenType type = assign.operator.type;
+        if (type == TokenType.EQUAL) {
+            if (!(amount instanceof Binary) || !isCounter(((Binary) amount).left, name)) return null;
+            type = ((Binary) amount).operator.type == TokenType.PLUS ? TokenType.PLUS_EQUAL
+                    : ((Binary) amount).operator.type == TokenType.MINUS ? TokenType.MINUS_EQUAL : null;
+            amount = ((Binary) amount).right;
+        }
+        if (!(amount instanceof Literal) || !(((Literal) amount).value instanceof Double)) return null;
+        double d = (Double) ((Literal) amount).value;
+        if (type == TokenType.PLUS_EQUAL) return d;
+        if (type == TokenType.MINUS_EQUAL) return -d;
+        return null;
+    }
+
+    private static boolean isCounter(Expr expr, String name) {
+        return expr instanceof Variable && ((Variable) expr).name.lexeme.equals(name);
+    }
+}
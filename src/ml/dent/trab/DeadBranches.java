@@ -0,0 +1,25 @@
+package ml.dent.trab;
+
+/**
+ * Removes the branch of an if that a literal condition rules out, and loops whose condition
+ * is literally false. Conditions that are literals of another type still fail at run time.
+ */
+class DeadBranches extends TreeRewriter {
+    private static boolean isLiteral(Expr condition, boolean value) {
+        return condition instanceof Expr.Literal && Boolean.valueOf(value).equals(((Expr.Literal) condition).value);
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Stmt.If rewritten = (Stmt.If) super.visitIfStmt(stmt);
+        if (isLiteral(rewritten.condition, true)) return rewritten.thenBranch;
+        if (isLiteral(rewritten.condition, false)) return rewritten.elseBranch;
+        return rewritten;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Stmt.While rewritten = (Stmt.While) super.visitWhileStmt(stmt);
+        return isLiteral(rewritten.condition, false) ? null : rewritten;
+    }
+}
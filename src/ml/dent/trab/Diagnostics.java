@@ -0,0 +1,90 @@
+package ml.dent.trab;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Errors and warnings reported while scanning, parsing, resolving, compiling and running the
+ * programs of one session. Each message is printed to the session's output as it is reported
+ * and kept so that callers without a console can read them back, errors and warnings apart.
+ */
+public class Diagnostics {
+    private final PrintStream out;
+    boolean isRepl;
+    private final List<String> messages = new ArrayList<>();
+    private final List<String> warnings = new ArrayList<>();
+    private boolean hadError;
+    private boolean hadRuntimeError;
+
+    public Diagnostics(PrintStream out) {
+        this.out = out;
+    }
+
+    void error(int line) {
+        report("Error at line " + line);
+        hadError = true;
+    }
+
+    void error(Token token) {
+        error("Error at token " + token.lexeme, token.line);
+    }
+
+    void error(Token token, String message) {
+        error(message, token.line);
+    }
+
+    void error(String message, int line) {
+        report(isRepl ? message : message + " at line " + line);
+        hadError = true;
+    }
+
+    /**
+     * Reports a problem that does not stop the program, such as an operation that will fail
+     * if it ever runs.
+     */
+    void warning(Token token, String message) {
+        String warning = isRepl ? "Warning: " + message : "Warning: " + message + " at line " + token.line;
+        warnings.add(warning);
+        out.println(warning);
+    }
+
+    void runtimeError(RuntimeError error) {
+        hadRuntimeError = true;
+        error(error.token, error.getMessage());
+        for (String call : error.trace) report("  " + call);
+    }
+
+    private void report(String message) {
+        messages.add(message);
+        out.println(message);
+    }
+
+    public boolean hadError() {
+        return hadError;
+    }
+
+    public boolean hadRuntimeError() {
+        return hadRuntimeError;
+    }
+
+    /**
+     * The errors reported so far, with the call traces of runtime errors.
+     */
+    public List<String> messages() {
+        return Collections.unmodifiableList(messages);
+    }
+
+    public List<String> warnings() {
+        return Collections.unmodifiableList(warnings);
+    }
+
+    /**
+     * Clears the error flags so the next REPL line starts clean. Messages are kept.
+     */
+    void reset() {
+        hadError = false;
+        hadRuntimeError = false;
+    }
+}
@@ -0,0 +1,100 @@
+package ml.dent.trab;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs independent scripts on a fixed pool of threads. Every script gets a fresh
+ * {@link Session} with the standard library loaded, and its output is captured rather than
+ * written to the console.
+ */
+public class Engine implements AutoCloseable {
+    public static class Result {
+        public final String output;
+        public final List<String> errors;
+        public final List<String> warnings;
+
+        Result(String output, List<String> errors, List<String> warnings) {
+            this.output = output;
+            this.errors = errors;
+            this.warnings = warnings;
+        }
+
+        /**
+         * Whether the script ran without errors. Warnings do not count against it.
+         */
+        public boolean succeeded() {
+            return errors.isEmpty();
+        }
+    }
+
+    private final ExecutorService pool;
+    private final List<String> standardLibrary;
+    private final Options options;
+
+    public Engine(int threads, List<String> standardLibrary, boolean useVm) {
+        this(threads, standardLibrary, useVm, false);
+    }
+
+    /**
+     * An engine whose sessions are verbose, so each script's output also says what was inlined
+     * and compiled for it.
+     */
+    public Engine(int threads, List<String> standardLibrary, boolean useVm, boolean verbose) {
+        this(threads, standardLibrary, Options.DEFAULT.vm(useVm).verbose(verbose));
+    }
+
+    /**
+     * An engine whose sessions all run with {@code options}. Engines with different options
+     * can run side by side.
+     */
+    public Engine(int threads, List<String> standardLibrary, Options options) {
+        this.pool = Executors.newFixedThreadPool(threads,
+                task -> Interpreter.newThread(task, "trab-engine", options.maxDepth));
+        this.standardLibrary = List.copyOf(standardLibrary);
+        this.options = options;
+    }
+
+    public Future<Result> submit(String program, String stin) {
+        return pool.submit(() -> run(program, stin));
+    }
+
+    /**
+     * Runs every program and waits for them all, returning the results in the same order.
+     */
+    public List<Result> runAll(List<String> programs, String stin) throws InterruptedException {
+        List<Future<Result>> futures = new ArrayList<>();
+        for (String program : programs) futures.add(submit(program, stin));
+        List<Result> results = new ArrayList<>();
+        for (Future<Result> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                results.add(new Result("", List.of(String.valueOf(e.getCause())), List.of()));
+            }
+        }
+        return results;
+    }
+
+    private Result run(String program, String stin) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes, true, StandardCharsets.UTF_8);
+        Session session = new Session(options, out);
+        if (session.loadStandardLibrary(standardLibrary)) session.run(program, false, stin);
+        out.flush();
+        Diagnostics diagnostics = session.diagnostics();
+        return new Result(bytes.toString(StandardCharsets.UTF_8), diagnostics.messages(), diagnostics.warnings());
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+}
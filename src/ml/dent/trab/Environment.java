@@ -1,49 +1,35 @@
 package ml.dent.trab;
 
-import java.util.HashMap;
+import java.util.Arrays;
 
+/**
+ * A local scope. Slots are assigned by the {@link Resolver}; globals live in the {@link Interpreter}.
+ */
 public class Environment {
-    final HashMap<String, Object> variables;
-    final Environment parent;
+    final Object[] values;
+    Environment parent;
 
-    public Environment() {
-        variables = new HashMap<>();
-        parent = null;
-    }
-
-    public Environment(Environment parent) {
-        variables = new HashMap<>();
+    public Environment(Environment parent, int size) {
+        this.values = new Object[size];
         this.parent = parent;
     }
 
-    public Object get(String s) {
-        Object o = variables.get(s);
-        if (o == null && parent != null) return parent.get(s);
-        return o;
+    public Object get(int depth, int slot) {
+        return ancestor(depth).values[slot];
     }
 
-    public Object define(String s, Object o) {
-        return variables.put(s, o);
+    public void set(int depth, int slot, Object o) {
+        ancestor(depth).values[slot] = o;
     }
 
-    public Object update(String s, Object o) {
-        if (variables.containsKey(s)) {
-            variables.put(s, o);
-            return o;
-        } else if (parent != null) return parent.update(s, o);
-        else return null;
+    Environment ancestor(int depth) {
+        Environment environment = this;
+        for (int i = 0; i < depth; i++) environment = environment.parent;
+        return environment;
     }
 
-    public boolean isDefined(String s) {
-        return variables.containsKey(s) || (parent != null && parent.isDefined(s));
-    }
-
-    public boolean isDefinedInClosure(String s) {
-        return variables.containsKey(s);
-    }
-    public String toString()
-    {
-        return variables.toString();
+    public String toString() {
+        return Arrays.toString(values);
     }
 
 }
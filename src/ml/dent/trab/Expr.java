@@ -18,7 +18,10 @@ abstract class Expr {
     R visitLogicalExpr(Logical expr);
     R visitLambdaExpr(Lambda expr);
     R visitAssignExpr(Assign expr);
+    R visitInlineExpr(Inline expr);
   }
+
+  int type;
   static class Literal extends Expr {
     Literal(Object value) {
       this.value = value;
@@ -51,6 +54,10 @@ abstract class Expr {
     }
 
     final Token name;
+    int depth = -1;
+    int slot = -1;
+    boolean boxed;
+    Global global;
   }
   static class TrabList extends Expr {
     TrabList(List<Expr> values, Token start) {
@@ -103,6 +110,7 @@ abstract class Expr {
 
     final Expr left;
     final Token name;
+    InlineCache cache = new InlineCache();
   }
   static class Index extends Expr {
     Index(Expr operand, Expr start, Expr end, Expr step, Token bracket) {
@@ -122,6 +130,7 @@ abstract class Expr {
     final Expr end;
     final Expr step;
     final Token bracket;
+    int state;
   }
   static class Unary extends Expr {
     Unary(Token operator, Expr right) {
@@ -135,6 +144,7 @@ abstract class Expr {
 
     final Token operator;
     final Expr right;
+    int state;
   }
   static class Post extends Expr {
     Post(Token operator, Expr left) {
@@ -163,6 +173,7 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+    int state;
   }
   static class Logical extends Expr {
     Logical(Expr left, Token operator, Expr right) {
@@ -191,6 +202,10 @@ abstract class Expr {
 
     final List<Token> arguments;
     final Stmt right;
+    int slots;
+    boolean frameCaptured;
+    int[] captures;
+    int[] boxes;
   }
   static class Assign extends Expr {
     Assign(Token name, Token operator, Expr value) {
@@ -206,6 +221,29 @@ abstract class Expr {
     final Token name;
     final Token operator;
     final Expr value;
+    int depth = -1;
+    int slot = -1;
+    boolean boxed;
+    Global global;
+  }
+  static class Inline extends Expr {
+    Inline(Variable target, Stmt definition, List<Expr> bindings, Call call, Stmt body) {
+      this.target = target;
+      this.definition = definition;
+      this.bindings = bindings;
+      this.call = call;
+      this.body = body;
+    }
+
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitInlineExpr(this);
+    }
+
+    final Variable target;
+    final Stmt definition;
+    final List<Expr> bindings;
+    final Call call;
+    final Stmt body;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
@@ -0,0 +1,36 @@
+package ml.dent.trab;
+
+import java.util.Arrays;
+
+/**
+ * Recycles the call frames of functions whose environment no closure can
+ * outlive. Frames are kept per size so a recursive call just pops the next one.
+ */
+class FramePool {
+    private static final int MAX_SLOTS = 16;
+    private static final int MAX_PER_SIZE = 4096;
+
+    private final Environment[][] free = new Environment[MAX_SLOTS + 1][];
+    private final int[] count = new int[MAX_SLOTS + 1];
+
+    FramePool() {
+        for (int i = 0; i <= MAX_SLOTS; i++) free[i] = new Environment[16];
+    }
+
+    Environment acquire(Environment parent, int size) {
+        if (size > MAX_SLOTS || count[size] == 0) return new Environment(parent, size);
+        Environment frame = free[size][--count[size]];
+        free[size][count[size]] = null;
+        frame.parent = parent;
+        return frame;
+    }
+
+    void release(Environment frame) {
+        int size = frame.values.length;
+        if (size > MAX_SLOTS || count[size] == MAX_PER_SIZE) return;
+        Arrays.fill(frame.values, null);
+        frame.parent = null;
+        if (count[size] == free[size].length) free[size] = Arrays.copyOf(free[size], count[size] * 2);
+        free[size][count[size]++] = frame;
+    }
+}
@@ -0,0 +1,49 @@
+package ml.dent.trab;
+
+/**
+ * The binding of one global name in an {@link Interpreter} or a {@link VM}. The {@link Resolver}
+ * hands every use of a global the cell for its name, and the {@link BytecodeCompiler} puts it in
+ * the constant pool, so reading or assigning it is a field access rather than a lookup by name. A name that has been used but not yet defined has a cell too, which
+ * is filled in when the definition runs; redefining a name in the REPL replaces its value.
+ */
+final class Global {
+    final String name;
+    private Object value;
+    private boolean defined;
+
+    Global(String name) {
+        this.name = name;
+    }
+
+    boolean isDefined() {
+        return defined;
+    }
+
+    Object value() {
+        return value;
+    }
+
+    Object get(Token token) {
+        if (!defined) throw new RuntimeError(token, "Cannot access unassigned variable");
+        return value;
+    }
+
+    void check(Token token) {
+        if (!defined) throw new RuntimeError(token, "Cannot assign undefined variable");
+    }
+
+    void set(Token token, Object value) {
+        check(token);
+        this.value = value;
+    }
+
+    void define(Object value) {
+        this.value = value;
+        defined = true;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,263 @@
+package ml.dent.trab;
+
+import ml.dent.trab.runtime.Box;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The globals of an interpreter after it has run some programs, saved so another interpreter
+ * can start from them instead of running those programs again. An image holds the programs in
+ * {@link AstCodec} form followed by every object the globals reach. Classes, functions and
+ * lambdas refer to the node they were made from by number and builtins are recorded by name,
+ * then linked to the restoring interpreter's own.
+ * <p>
+ * Objects are written in two passes, first what each one is and then what it refers to, so
+ * cycles such as a method closing over the environment that holds it come back as cycles.
+ */
+final class HeapImage {
+    static final int MAGIC = 0x5452494d;
+
+    // Values share the literal tags of AstCodec and add these two.
+    private static final int OBJECT = 7;
+    private static final int NATIVE = 8;
+
+    private static final int ENVIRONMENT = 1;
+    private static final int LIST = 2;
+    private static final int CLASS = 3;
+    private static final int FUNCTION = 4;
+    private static final int LAMBDA = 5;
+    private static final int SHUNTED = 6;
+    private static final int BOX = 7;
+
+    private HeapImage() {
+    }
+
+    /**
+     * Saves the globals of {@code interpreter}, which must have been made only by
+     * {@code programs}. Throws IllegalArgumentException if they hold anything that cannot be
+     * saved.
+     */
+    static byte[] write(List<List<Stmt>> programs, Interpreter interpreter) {
+        AstCodec.Writer writer = new AstCodec.Writer();
+        writer.putInt(MAGIC);
+        writer.putInt(AstCodec.VERSION);
+        writer.varint(programs.size());
+        for (List<Stmt> program : programs) writer.stmts(program);
+
+        Map<Object, String> natives = new IdentityHashMap<>();
+        for (Map.Entry<String, Object> entry : interpreter.natives.entrySet()) natives.put(entry.getValue(), entry.getKey());
+        Map<Object, Integer> ids = new IdentityHashMap<>();
+        List<Object> objects = new ArrayList<>();
+        ids.put(interpreter.environment, 0);
+        objects.add(interpreter.environment);
+        ArrayDeque<Object> pending = new ArrayDeque<>();
+        for (Global global : interpreter.globals.values())
+            if (saved(global)) push(pending, global.value());
+        while (!pending.isEmpty()) {
+            Object o = pending.pop();
+            if (natives.containsKey(o) || ids.containsKey(o) || isLiteral(o)) continue;
+            ids.put(o, objects.size());
+            objects.add(o);
+            references(o, pending);
+        }
+
+        writer.varint(objects.size() - 1);
+        for (Object o : objects.subList(1, objects.size())) {
+            if (o instanceof Environment) {
+                writer.out.write(ENVIRONMENT);
+                writer.varint(((Environment) o).values.length);
+            } else if (o instanceof List) writer.out.write(LIST);
+            else if (o instanceof TrabClass) {
+                writer.out.write(CLASS);
+                writer.varint(definition(writer, ((TrabClass) o).stmt));
+            } else if (o instanceof TrabFunction) {
+                writer.out.write(FUNCTION);
+                writer.varint(definition(writer, ((TrabFunction) o).fun));
+            } else if (o instanceof TrabLambda) {
+                writer.out.write(LAMBDA);
+                writer.varint(definition(writer, ((TrabLambda) o).lambda));
+            } else if (o instanceof Box) writer.out.write(BOX);
+            else writer.out.write(SHUNTED);
+        }
+        for (Object o : objects.subList(1, objects.size())) {
+            if (o instanceof Environment) {
+                Environment environment = (Environment) o;
+                value(writer, ids, natives, environment.parent);
+                for (Object value : environment.values) value(writer, ids, natives, value);
+            } else if (o instanceof List) {
+                List<?> list = (List<?>) o;
+                writer.varint(list.size());
+                for (Object value : list) value(writer, ids, natives, value);
+            } else if (o instanceof TrabClass) {
+                TrabClass trabClass = (TrabClass) o;
+                value(writer, ids, natives, trabClass.closure);
+                writer.varint(trabClass.methods.size());
+                for (Map.Entry<String, TrabFunction> method : trabClass.methods.entrySet()) {
+                    writer.string(method.getKey());
+                    value(writer, ids, natives, method.getValue());
+                }
+            } else if (o instanceof TrabClosure) value(writer, ids, natives, ((TrabClosure) o).closure);
+            else if (o instanceof Box) value(writer, ids, natives, ((Box) o).value);
+            else {
+                value(writer, ids, natives, ((ShuntedFunction) o).func);
+                value(writer, ids, natives, ((ShuntedFunction) o).shunt);
+            }
+        }
+
+        int saved = 0;
+        for (Global global : interpreter.globals.values()) if (saved(global)) saved++;
+        writer.varint(saved);
+        for (Global global : interpreter.globals.values()) {
+            if (!saved(global)) continue;
+            writer.string(global.name);
+            value(writer, ids, natives, global.value());
+        }
+        return writer.out.toByteArray();
+    }
+
+    private static boolean saved(Global global) {
+        return global.isDefined() && !global.name.equals("stin");
+    }
+
+    private static boolean isLiteral(Object o) {
+        return o == null || o instanceof Double || o instanceof String || o instanceof Boolean || o instanceof TrabNull;
+    }
+
+    private static void references(Object o, ArrayDeque<Object> pending) {
+        if (o instanceof Environment) {
+            Environment environment = (Environment) o;
+            push(pending, environment.parent);
+            for (Object value : environment.values) push(pending, value);
+        } else if (o instanceof List) {
+            for (Object value : (List<?>) o) push(pending, value);
+        } else if (o instanceof TrabClass) {
+            push(pending, ((TrabClass) o).closure);
+            for (Object method : ((TrabClass) o).methods.values()) push(pending, method);
+        } else if (o instanceof TrabClosure) push(pending, ((TrabClosure) o).closure);
+        else if (o instanceof Box) push(pending, ((Box) o).value);
+        else if (o instanceof ShuntedFunction) {
+            push(pending, ((ShuntedFunction) o).func);
+            push(pending, ((ShuntedFunction) o).shunt);
+        } else throw new IllegalArgumentException("Cannot save " + o);
+    }
+
+    // ArrayDeque holds no nulls, and there is nothing to save behind one anyway.
+    private static void push(ArrayDeque<Object> pending, Object o) {
+        if (o != null) pending.push(o);
+    }
+
+    private static int definition(AstCodec.Writer writer, Object node) {
+        Integer definition = writer.definitions.get(node);
+        if (definition == null) throw new IllegalArgumentException("Not defined by the saved programs");
+        return definition;
+    }
+
+    private static void value(AstCodec.Writer writer, Map<Object, Integer> ids, Map<Object, String> natives, Object value) {
+        String name = natives.get(value);
+        Integer id = ids.get(value);
+        if (name != null) {
+            writer.out.write(NATIVE);
+            writer.string(name);
+        } else if (id != null) {
+            writer.out.write(OBJECT);
+            writer.varint(id);
+        } else writer.literal(value);
+    }
+
+    /**
+     * Loads an image into a fresh interpreter, analysing, resolving and typing its programs
+     * again on the way, and has the session's {@link Inliner} learn their definitions. Returns
+     * false, leaving the interpreter untouched, if the image is damaged or was written by
+     * another version.
+     */
+    static boolean restore(ByteBuffer buffer, Interpreter interpreter, Inliner inliner, Diagnostics diagnostics) {
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != AstCodec.VERSION) return false;
+            AstCodec.Reader reader = new AstCodec.Reader(buffer);
+            List<List<Stmt>> programs = new ArrayList<>();
+            int count = reader.varint();
+            for (int i = 0; i < count; i++) {
+                List<Stmt> program = reader.stmts();
+                programs.add(program);
+                Optimizer.analyze(program);
+                new Resolver(diagnostics, interpreter.globals).resolve(program);
+                if (diagnostics.hadError()) return false;
+                new TypeInference(diagnostics).infer(program);
+            }
+
+            List<Object> objects = new ArrayList<>();
+            objects.add(interpreter.environment);
+            count = reader.varint();
+            for (int i = 0; i < count; i++) {
+                int kind = buffer.get();
+                if (kind == ENVIRONMENT) objects.add(new Environment(null, reader.varint()));
+                else if (kind == LIST) objects.add(new ArrayList<>());
+                else if (kind == CLASS) objects.add(new TrabClass((Stmt.Class) reader.definitions.get(reader.varint())));
+                else if (kind == FUNCTION)
+                    objects.add(new TrabFunction((Stmt.Function) reader.definitions.get(reader.varint()), null));
+                else if (kind == LAMBDA)
+                    objects.add(new TrabLambda((Expr.Lambda) reader.definitions.get(reader.varint()), null));
+                else if (kind == SHUNTED) objects.add(new ShuntedFunction(null, null));
+                else if (kind == BOX) objects.add(new Box(null));
+                else throw new IllegalArgumentException("Bad object");
+            }
+            for (Object o : objects.subList(1, objects.size())) {
+                if (o instanceof Environment) {
+                    Environment environment = (Environment) o;
+                    environment.parent = (Environment) value(reader, objects, interpreter);
+                    for (int i = 0; i < environment.values.length; i++)
+                        environment.values[i] = value(reader, objects, interpreter);
+                } else if (o instanceof List) {
+                    @SuppressWarnings("unchecked")
+                    List<Object> list = (List<Object>) o;
+                    int size = reader.varint();
+                    for (int i = 0; i < size; i++) list.add(value(reader, objects, interpreter));
+                } else if (o instanceof TrabClass) {
+                    TrabClass trabClass = (TrabClass) o;
+                    trabClass.closure = (Environment) value(reader, objects, interpreter);
+                    int size = reader.varint();
+                    for (int i = 0; i < size; i++) {
+                        String name = reader.string();
+                        trabClass.methods.put(name, (TrabFunction) value(reader, objects, interpreter));
+                    }
+                } else if (o instanceof TrabClosure)
+                    ((TrabClosure) o).closure = (Environment) value(reader, objects, interpreter);
+                else if (o instanceof Box) ((Box) o).value = value(reader, objects, interpreter);
+                else {
+                    ((ShuntedFunction) o).func = (TrabCallable) value(reader, objects, interpreter);
+                    ((ShuntedFunction) o).shunt = value(reader, objects, interpreter);
+                }
+            }
+
+            Map<String, Object> globals = new HashMap<>();
+            int size = reader.varint();
+            for (int i = 0; i < size; i++) {
+                String name = reader.string();
+                globals.put(name, value(reader, objects, interpreter));
+            }
+            if (buffer.hasRemaining()) return false;
+            for (Map.Entry<String, Object> global : globals.entrySet())
+                interpreter.global(global.getKey()).define(global.getValue());
+            if (inliner != null) for (List<Stmt> program : programs) inliner.learn(program);
+            return true;
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException | ClassCastException e) {
+            return false;
+        }
+    }
+
+    private static Object value(AstCodec.Reader reader, List<Object> objects, Interpreter interpreter) {
+        int tag = reader.in.get();
+        if (tag == OBJECT) return objects.get(reader.varint());
+        if (tag != NATIVE) return reader.literal(tag);
+        Object builtin = interpreter.natives.get(reader.string());
+        if (builtin == null) throw new IllegalArgumentException("Unknown builtin");
+        return builtin;
+    }
+}
@@ -0,0 +1,28 @@
+package ml.dent.trab;
+
+/**
+ * Remembers the methods a single {@link Expr.Get} site has resolved, keyed by the class (or
+ * {@link Natives#INTERNAL_LIST} for lists) it was looked up on. Sites that see more than
+ * {@link #MAX_ENTRIES} classes stop caching.
+ */
+final class InlineCache {
+    private static final int MAX_ENTRIES = 4;
+
+    private final Object[] receivers = new Object[MAX_ENTRIES];
+    private final TrabCallable[] targets = new TrabCallable[MAX_ENTRIES];
+    private int size;
+
+    TrabCallable lookup(Object receiver) {
+        for (int i = 0; i < size; i++) {
+            if (receivers[i] == receiver) return targets[i];
+        }
+        return null;
+    }
+
+    void add(Object receiver, TrabCallable target) {
+        if (size == MAX_ENTRIES) return;
+        receivers[size] = receiver;
+        targets[size] = target;
+        size++;
+    }
+}
@@ -0,0 +1,322 @@
+package ml.dent.trab;
+
+import ml.dent.trab.Expr.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Copies the bodies of small functions into the code that calls them, as an {@link Inline}.
+ * A session keeps one, which learns the functions and classes every program it runs defines at
+ * top level, so a call to {@code Math.max} or to an arrow function defined earlier can be
+ * replaced by the few statements it would run. The arguments go in variables declared just
+ * before the statement, which the copy reads in place of the parameters. The interpreter runs
+ * the copy only while the name still holds that definition and makes the call when it has been
+ * reassigned or defined again.
+ * <p>
+ * A function is copied when its body is at most {@link #MAX_SIZE} nodes of returns, ifs and
+ * expressions, creates nothing, does not assign its parameters and does not name itself, its
+ * class or the other methods of its class. The call has to be in a block, so the variables are
+ * locals, and no local there may shadow the callee or any name the body uses. Copies are not
+ * searched for further calls.
+ */
+class Inliner extends TreeRewriter {
+    static final int MAX_SIZE = 24;
+
+    /**
+     * Measures a body and collects the names it uses, finding whether it can be copied.
+     */
+    private static class Shape extends TreeRewriter {
+        final Set<String> names = new HashSet<>();
+        private final List<Token> parameters;
+        int size;
+        boolean copyable = true;
+
+        Shape(List<Token> parameters) {
+            this.parameters = parameters;
+        }
+
+        private boolean parameter(Token name) {
+            for (Token parameter : parameters) if (parameter.lexeme.equals(name.lexeme)) return true;
+            return false;
+        }
+
+        @Override
+        Expr rewrite(Expr expr) {
+            if (expr != null) size++;
+            return super.rewrite(expr);
+        }
+
+        @Override
+        Stmt rewrite(Stmt stmt) {
+            if (stmt != null) size++;
+            return super.rewrite(stmt);
+        }
+
+        @Override
+        Stmt rewriteBody(Stmt stmt) {
+            if (stmt != null) size++;
+            return super.rewriteBody(stmt);
+        }
+
+        @Override
+        public Expr visitVariableExpr(Variable expr) {
+            if (!parameter(expr.name)) names.add(expr.name.lexeme);
+            return expr;
+        }
+
+        @Override
+        public Expr visitAssignExpr(Assign expr) {
+            if (parameter(expr.name)) copyable = false;
+            names.add(expr.name.lexeme);
+            return super.visitAssignExpr(expr);
+        }
+
+        @Override
+        public Expr visitPostExpr(Post expr) {
+            if (expr.left instanceof Variable && parameter(((Variable) expr.left).name)) copyable = false;
+            return super.visitPostExpr(expr);
+        }
+
+        @Override
+        public Expr visitUnaryExpr(Unary expr) {
+            TokenType type = expr.operator.type;
+            if ((type == TokenType.PLUS_PLUS || type == TokenType.MINUS_MINUS) && expr.right instanceof Variable
+                    && parameter(((Variable) expr.right).name))
+                copyable = false;
+            return super.visitUnaryExpr(expr);
+        }
+
+        @Override
+        public Expr visitLambdaExpr(Lambda expr) {
+            copyable = false;
+            return expr;
+        }
+
+        @Override
+        public Expr visitInlineExpr(Inline expr) {
+            copyable = false;
+            return expr;
+        }
+
+        @Override
+        public Stmt visitVarStmt(Stmt.Var stmt) {
+            copyable = false;
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitFunctionStmt(Stmt.Function stmt) {
+            copyable = false;
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitClassStmt(Stmt.Class stmt) {
+            copyable = false;
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitWhileStmt(Stmt.While stmt) {
+            copyable = false;
+            return stmt;
+        }
+    }
+
+    /**
+     * Replaces the parameters of a body with the variables holding the arguments.
+     */
+    private static class Substitution extends TreeRewriter {
+        private final Map<String, Token> names;
+
+        Substitution(Map<String, Token> names) {
+            this.names = names;
+        }
+
+        @Override
+        public Expr visitVariableExpr(Variable expr) {
+            Token name = names.get(expr.name.lexeme);
+            return name == null ? expr : new Variable(name);
+        }
+
+        // The Resolver marks the returns of the definition as tail calls, so the copy needs
+        // returns of its own.
+        @Override
+        public Stmt visitReturnStmt(Stmt.Return stmt) {
+            return new Stmt.Return(stmt.keyword, rewrite(stmt.value));
+        }
+    }
+
+    // Each name defined at top level maps to its Stmt.Function or Stmt.Class.
+    private final Map<String, Stmt> definitions = new HashMap<>();
+    private final List<Set<String>> scopes = new ArrayList<>();
+    // The declarations for the statement being rewritten, or null where there is no block.
+    private List<Stmt> before;
+    private int functions;
+    private int temporaries;
+    final List<String> sites = new ArrayList<>();
+
+    /**
+     * Remembers the top level definitions of a program that has been run or is about to be.
+     */
+    void learn(List<Stmt> program) {
+        for (Stmt stmt : program) {
+            if (stmt instanceof Stmt.Function) definitions.put(((Stmt.Function) stmt).name.lexeme, stmt);
+            else if (stmt instanceof Stmt.Class) definitions.put(((Stmt.Class) stmt).name.lexeme, stmt);
+        }
+    }
+
+    List<Stmt> inline(List<Stmt> program) {
+        learn(program);
+        return rewrite(program);
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> enclosing = before;
+        scopes.add(new HashSet<>());
+        declareAhead(stmt.statements);
+        List<Stmt> statements = null;
+        for (int i = 0; i < stmt.statements.size(); i++) {
+            Stmt original = stmt.statements.get(i);
+            before = new ArrayList<>();
+            Stmt rewritten = rewrite(original);
+            if ((rewritten != original || !before.isEmpty()) && statements == null)
+                statements = new ArrayList<>(stmt.statements.subList(0, i));
+            if (statements != null) {
+                statements.addAll(before);
+                if (rewritten != null) statements.add(rewritten);
+            }
+        }
+        scopes.remove(scopes.size() - 1);
+        before = enclosing;
+        return statements == null ? stmt : new Stmt.Block(statements);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Stmt result = super.visitVarStmt(stmt);
+        declare(stmt.name);
+        return result;
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        declare(stmt.name);
+        Stmt body = function(stmt.arguments, stmt.body);
+        return body == stmt.body ? stmt : new Stmt.Function(stmt.name, stmt.arguments, body);
+    }
+
+    @Override
+    public Expr visitLambdaExpr(Lambda expr) {
+        Stmt right = function(expr.arguments, expr.right);
+        return right == expr.right ? expr : new Lambda(expr.arguments, right);
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        declare(stmt.name);
+        Set<String> methods = new HashSet<>();
+        scopes.add(methods);
+        for (Stmt.Function method : stmt.methods) methods.add(method.name.lexeme);
+        Stmt result = super.visitClassStmt(stmt);
+        scopes.remove(scopes.size() - 1);
+        return result;
+    }
+
+    private Stmt function(List<Token> arguments, Stmt body) {
+        List<Stmt> enclosing = before;
+        before = null;
+        Set<String> scope = new HashSet<>();
+        for (Token argument : arguments) scope.add(argument.lexeme);
+        scopes.add(scope);
+        functions++;
+        Stmt result = rewriteBody(body);
+        functions--;
+        scopes.remove(scopes.size() - 1);
+        before = enclosing;
+        return result;
+    }
+
+    // A function returning a call makes it as a tail call, without a frame, which is left be.
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if (functions == 0 || !(stmt.value instanceof Call) || ((Call) stmt.value).left instanceof Get)
+            return super.visitReturnStmt(stmt);
+        Call call = (Call) stmt.value;
+        Expr left = rewrite(call.left);
+        List<Expr> arguments = rewriteAll(call.arguments);
+        if (left == call.left && arguments == call.arguments) return stmt;
+        return new Stmt.Return(stmt.keyword, new Call(call.operator, left, arguments));
+    }
+
+    // Top level declarations are the globals being inlined, not something shadowing them.
+    private void declare(Token name) {
+        if (!scopes.isEmpty()) scopes.get(scopes.size() - 1).add(name.lexeme);
+    }
+
+    // Functions and lambdas see the locals declared after them, as the Resolver has it.
+    private void declareAhead(List<Stmt> statements) {
+        for (Token name : Resolver.usedAhead(statements, new HashSet<>())) declare(name);
+    }
+
+    private boolean shadowed(String name) {
+        for (Set<String> scope : scopes) if (scope.contains(name)) return true;
+        return false;
+    }
+
+    @Override
+    public Expr visitCallExpr(Call expr) {
+        Call call = (Call) super.visitCallExpr(expr);
+        if (before == null) return call;
+        Token target;
+        Stmt definition;
+        Stmt.Function function;
+        Set<String> own = new HashSet<>();
+        if (call.left instanceof Variable) {
+            target = ((Variable) call.left).name;
+            definition = definitions.get(target.lexeme);
+            if (!(definition instanceof Stmt.Function)) return call;
+            function = (Stmt.Function) definition;
+        } else if (call.left instanceof Get && ((Get) call.left).left instanceof Variable) {
+            Get get = (Get) call.left;
+            target = ((Variable) get.left).name;
+            definition = definitions.get(target.lexeme);
+            if (!(definition instanceof Stmt.Class)) return call;
+            function = null;
+            for (Stmt.Function method : ((Stmt.Class) definition).methods) {
+                own.add(method.name.lexeme);
+                if (method.name.lexeme.equals(get.name.lexeme)) function = method;
+            }
+            if (function == null) return call;
+        } else return call;
+        own.add(target.lexeme);
+        if (shadowed(target.lexeme) || function.arguments.size() != call.arguments.size()) return call;
+
+        Shape shape = new Shape(function.arguments);
+        shape.rewriteBody(function.body);
+        if (!shape.copyable || shape.size > MAX_SIZE) return call;
+        for (String name : shape.names) if (own.contains(name) || shadowed(name)) return call;
+
+        Map<String, Token> names = new HashMap<>();
+        List<Expr> bindings = new ArrayList<>();
+        List<Expr> arguments = new ArrayList<>();
+        for (int i = 0; i < function.arguments.size(); i++) {
+            Token parameter = function.arguments.get(i);
+            Token name = new Token(TokenType.IDENTIFIER, "$" + parameter.lexeme + temporaries++, null, call.operator.line);
+            before.add(new Stmt.Var(name, null));
+            names.put(parameter.lexeme, name);
+            bindings.add(new Assign(name, new Token(TokenType.EQUAL, "=", null, name.line), call.arguments.get(i)));
+            arguments.add(new Variable(name));
+        }
+        Stmt body = new Substitution(names).rewriteBody(function.body);
+        String callee = call.left instanceof Get ? target.lexeme + "." + function.name.lexeme : target.lexeme;
+        sites.add("Inlined " + callee + " at line " + call.operator.line);
+        return new Inline(new Variable(target), definition, bindings, new Call(call.operator, call.left, arguments), body);
+    }
+}
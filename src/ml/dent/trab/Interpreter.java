@@ -1,149 +1,123 @@
 package ml.dent.trab;
 
 import ml.dent.trab.Expr.*;
+import ml.dent.trab.runtime.Box;
+import ml.dent.trab.runtime.Ops;
+import ml.dent.trab.runtime.TrabError;
 
 import java.io.BufferedReader;
+import java.io.PrintStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
 
 import static ml.dent.trab.TokenType.*;
 
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-    private final Environment globals = new Environment();
-    Environment environment = globals;
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Completion> {
+    // What a function returns instead of a value when it ends in a tail call, which it leaves
+    // in tailCallee and tailArguments.
+    static final Object TAIL_CALL = new Object();
+    // How deeply calls may nest before a program fails with a stack overflow.
+    final int maxDepth;
+
+    final Map<String, Global> globals = new HashMap<>();
+    final Map<String, Object> natives;
+    Environment environment = new Environment(null, 0);
+    final FramePool frames = new FramePool();
     private boolean isRepl;
     private boolean print;
-
-    public Interpreter() {
-        globals.define("print", new TrabCallable() {
-
-            @Override
-            public int arity() {
-                return 1;
-            }
-
-            @Override
-            public Object call(Interpreter interpreter, Token callee, List<Object> arguments) {
-                System.out.println(interpreter.stringify(arguments.get(0)));
-                return new TrabNull();
-            }
-
-            @Override
-            public String toString() {
-                return "<native fn>";
-            }
-        });
-        globals.define("clock", new TrabCallable() {
-
-            @Override
-            public int arity() {
-                return 0;
-            }
-
-            @Override
-            public Object call(Interpreter interpreter, Token callee, List<Object> arguments) {
-                return System.currentTimeMillis();
-            }
-
-            @Override
-            public String toString() {
-                return "<native fn>";
-            }
-        });
-        globals.define("InternalList", new TrabClassable() {
-            @Override
-            public TrabCallable getFunction(String s) {
-                switch (s) {
-                    case "add":
-                        return new TrabCallable() {
-
-                            @Override
-                            public int arity() {
-                                return 2;
-                            }
-
-                            @Override
-                            public Object call(Interpreter interpreter, Token callee, List<Object> arguments) {
-                                interpreter.checkListOperand(callee, arguments.get(0));
-                                List list = (List) arguments.get(0);
-                                Object add = arguments.get(1);
-                                list.add(add);
-                                return new TrabNull();
-                            }
-
-                            @Override
-                            public String toString() {
-                                return "<native fn>";
-                            }
-                        };
-                    case "set":
-                        return new TrabCallable() {
-
-                            @Override
-                            public int arity() {
-                                return 3;
-                            }
-
-                            @Override
-                            public Object call(Interpreter interpreter, Token callee, List<Object> arguments) {
-                                interpreter.checkListOperand(callee, arguments.get(0));
-                                interpreter.checkNumberOperand(callee, arguments.get(1));
-                                List list = (List) arguments.get(0);
-                                int index = (int) (double) arguments.get(1);
-                                Object element = arguments.get(2);
-                                list.set(index, element);
-                                return new TrabNull();
-                            }
-
-                            @Override
-                            public String toString() {
-                                return "<native fn>";
-                            }
-                        };
-                    case "length":
-                        return new TrabCallable() {
-
-                            @Override
-                            public int arity() {
-                                return 1;
-                            }
-
-                            @Override
-                            public Object call(Interpreter interpreter, Token callee, List<Object> arguments) {
-                                interpreter.checkListOperand(callee, arguments.get(0));
-                                List list = (List) arguments.get(0);
-                                return (Double) (double) list.size();
-                            }
-
-                            @Override
-                            public String toString() {
-                                return "<native fn>";
-                            }
-                        };
-                }
-                return null;
-            }
-
-            @Override
-            public String toString() {
-                return "<native class>";
-            }
-        });
+    private Object returnValue;
+    private TailCallable tailCallee;
+    private Object[] tailArguments;
+    // The calls being made, outermost first: where each was made and what it called.
+    private Token[] callSites = new Token[64];
+    private TrabCallable[] callees = new TrabCallable[64];
+    private int depth;
+    private boolean missed;
+    private Object missedValue;
+    int backEdges;
+    // Whether hot functions and lambdas get compiled, and where the JIT says what it compiled,
+    // under --verbose; null otherwise.
+    boolean jit = true;
+    PrintStream jitLog;
+
+    private final Diagnostics diagnostics;
+    private final PrintStream out;
+
+    public Interpreter(Diagnostics diagnostics, PrintStream out) {
+        this(diagnostics, out, Options.DEFAULT.maxDepth);
+    }
+
+    public Interpreter(Diagnostics diagnostics, PrintStream out, int maxDepth) {
+        this.diagnostics = diagnostics;
+        this.out = out;
+        this.maxDepth = maxDepth;
+        natives = Natives.table(out);
+        global("print").define(natives.get("print"));
+        global("clock").define(natives.get("clock"));
+        global("InternalList").define(natives.get("InternalList"));
     }
 
     public void run(List<Stmt> statements, boolean isRepl, String stin) {
         this.isRepl = isRepl;
-        globals.define("stin", stin);
+        global("stin").define(stin);
         try {
             for (Stmt stmt : statements) {
                 print = true;
-                execute(stmt);
+                if (execute(stmt) == Completion.RETURN) break;
             }
         } catch (RuntimeError error) {
-            Trab.runtimeError(error);
+            diagnostics.runtimeError(error);
+        } catch (StackOverflowError error) {
+            // Ran out of Java stack outside of any call; calls turn that into an overflow() themselves.
+            diagnostics.runtimeError(new RuntimeError(new Token(EOF, "", null, 0), "Stack overflow"));
         }
+        depth = 0;
+    }
+
+    /**
+     * Enters a call of a function or lambda, failing when that would nest calls more than
+     * {@link #maxDepth} deep. The Java stack of a thread from {@link #newThread} has room for
+     * that many.
+     */
+    void push(Token site, TrabCallable callee) {
+        // The script counts as the first level, as its frame does in the VM.
+        if (depth + 1 >= maxDepth) throw overflow(site);
+        if (depth == callSites.length) {
+            callSites = Arrays.copyOf(callSites, Math.min(depth * 2, maxDepth));
+            callees = Arrays.copyOf(callees, callSites.length);
+        }
+        callSites[depth] = site;
+        callees[depth++] = callee;
+    }
+
+    void pop() {
+        callees[--depth] = null;
+    }
+
+    /**
+     * The error for a call that nests too deeply, or runs out of Java stack anyway.
+     */
+    RuntimeError overflow(Token site) {
+        List<String> calls = new ArrayList<>();
+        for (int i = depth - 1; i >= 0; i--) {
+            TrabCallable callee = callees[i];
+            String name = callee instanceof TrabClosure ? ((TrabClosure) callee).name() : callee.toString();
+            calls.add("in " + name + ", called at line " + callSites[i].line);
+        }
+        return new RuntimeError(site, "Stack overflow", calls);
+    }
+
+    /**
+     * A thread to run programs on, with a stack deep enough for {@code maxDepth} calls of
+     * ordinary size, up to a gigabyte. Past that, calls that run out of stack fail with
+     * {@link #overflow} all the same.
+     */
+    static Thread newThread(Runnable body, String name, int maxDepth) {
+        return new Thread(null, body, name, Math.min((8L << 20) + maxDepth * 2048L, 1L << 30));
     }
 
     public Object evaluate(Expr expr) {
@@ -151,79 +125,215 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return expr.accept(this);
     }
 
-    public void execute(Stmt stmt) {
-        stmt.accept(this);
+    public Completion execute(Stmt stmt) {
+        return stmt.accept(this);
     }
 
-    public void executeBlock(Stmt.Block block, Environment newEnv) {
+    public Completion executeBlock(Stmt.Block block, Environment newEnv) {
+        return executeBlock(block, block.statements.size(), newEnv);
+    }
+
+    /**
+     * Runs the first {@code count} statements of a block in the given environment.
+     */
+    private Completion executeBlock(Stmt.Block block, int count, Environment newEnv) {
+        Environment previous = this.environment;
         this.environment = newEnv;
-        for (Stmt stmt : block.statements) execute(stmt);
-        this.environment = this.environment.parent;
+        try {
+            return executeStatements(block.statements, count);
+        } finally {
+            this.environment = previous;
+        }
+    }
+
+    private Completion executeStatements(List<Stmt> statements, int count) {
+        for (int i = 0; i < count; i++) {
+            if (execute(statements.get(i)) == Completion.RETURN) return Completion.RETURN;
+        }
+        return Completion.NORMAL;
+    }
+
+    /**
+     * Hands the value of the last completed return to the caller and clears it.
+     */
+    Object takeReturnValue() {
+        Object value = returnValue;
+        returnValue = null;
+        return value;
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt, new Environment(environment));
-        return null;
+    public Completion visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.flat) {
+            if (stmt.boxes != null) for (int slot : stmt.boxes) environment.values[slot] = new Box(null);
+            return executeStatements(stmt.statements, stmt.statements.size());
+        }
+        Environment scope = new Environment(environment, stmt.slots);
+        if (stmt.boxes != null) for (int slot : stmt.boxes) scope.values[slot] = new Box(null);
+        return executeBlock(stmt, scope);
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
-        environment.define(stmt.name.lexeme, new TrabClass(stmt, new Environment(environment)));
-        return null;
+    public Completion visitClassStmt(Stmt.Class stmt) {
+        define(stmt.name, stmt.slot, stmt.boxed, stmt.hoisted, new TrabClass(stmt, new Environment(environment, stmt.slots)));
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Completion visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitPrintableExpressionStmt(Stmt.PrintableExpression stmt) {
-        if (print) {
-            if (stmt.expression instanceof Call && ((Call) stmt.expression).left instanceof Variable) {
-                if (((Variable) ((Call) stmt.expression).left).name.lexeme.equals("print")) {
-                    print = false;
-                    evaluate(stmt.expression);
-                    return null;
-                }
-            }
-            print = false;
-            Object o = evaluate(stmt.expression);
-            if (o != null && isRepl) System.out.println(stringify(o));
-        } else evaluate(stmt.expression);
-        return null;
+    public Completion visitPrintableExpressionStmt(Stmt.PrintableExpression stmt) {
+        boolean echo = startPrintable(stmt);
+        echo(echo, evaluate(stmt.expression));
+        return Completion.NORMAL;
+    }
+
+    /**
+     * Only the first printable expression of a top level statement is echoed by the REPL, and
+     * never a call to print. Returns whether this one should be.
+     */
+    boolean startPrintable(Stmt.PrintableExpression stmt) {
+        if (!print) return false;
+        print = false;
+        if (stmt.expression instanceof Call && ((Call) stmt.expression).left instanceof Variable)
+            return !((Variable) ((Call) stmt.expression).left).name.lexeme.equals("print");
+        return true;
+    }
+
+    void echo(boolean echo, Object o) {
+        if (echo && o != null && isRepl) out.println(stringify(o));
     }
 
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
-        if (isTruthy(stmt.ifToken, evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
-        } else execute(stmt.elseBranch);
-        return null;
+    public Completion visitIfStmt(Stmt.If stmt) {
+        if (truthy(stmt.ifToken, stmt.condition)) {
+            return execute(stmt.thenBranch);
+        } else if (stmt.elseBranch != null) return execute(stmt.elseBranch);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
-        throw new Return(evaluate(stmt.value));
+    public Completion visitReturnStmt(Stmt.Return stmt) {
+        returnValue = stmt.tail ? tailCall((Call) stmt.value) : evaluate(stmt.value);
+        return Completion.RETURN;
+    }
+
+    private Object tailCall(Call expr) {
+        Object o = evaluate(expr.left);
+        if (!(o instanceof TrabCallable))
+            throw new RuntimeError(expr.operator, "Only Lambdas, Functions, and Methods can be called");
+        TrabCallable callee = (TrabCallable) o;
+        List<Expr> arguments = expr.arguments;
+        if (arguments.size() != callee.arity())
+            throw new RuntimeError(expr.operator, "Expected " + callee.arity() + " arguments but got " + arguments.size());
+        Object[] args = new Object[arguments.size()];
+        for (int i = 0; i < args.length; i++) args[i] = evaluate(arguments.get(i));
+        return tailCall(callee, expr.operator, args);
+    }
+
+    /**
+     * Makes a call a function returns. Another function or lambda is not called but left for
+     * {@link #complete}, once the returning function's frame is gone.
+     */
+    Object tailCall(TrabCallable callee, Token operator, Object[] arguments) {
+        if (!(callee instanceof TailCallable)) return callee.callN(this, operator, arguments);
+        tailCallee = (TailCallable) callee;
+        tailArguments = arguments;
+        return TAIL_CALL;
+    }
+
+    /**
+     * Turns what a call of a function or lambda returned into its value, making the tail calls
+     * it ended in one after another.
+     */
+    Object complete(Object result) {
+        while (result == TAIL_CALL) {
+            TailCallable callee = tailCallee;
+            Object[] arguments = tailArguments;
+            tailCallee = null;
+            tailArguments = null;
+            result = callee.enter(this, arguments);
+        }
+        return result;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
-        if (environment.isDefinedInClosure(stmt.name.lexeme))
+    public Completion visitVarStmt(Stmt.Var stmt) {
+        if (stmt.slot < 0 && global(stmt.name.lexeme).isDefined())
             throw new RuntimeError(stmt.name, "Variable cannot be redefined in same context");
-        environment.define(stmt.name.lexeme, evaluate(stmt.initializer));
-        return null;
+        define(stmt.name, stmt.slot, stmt.boxed, stmt.hoisted, evaluate(stmt.initializer));
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
-        while (isTruthy(stmt.whileToken, evaluate(stmt.condition))) {
-            execute(stmt.body);
+    public Completion visitWhileStmt(Stmt.While stmt) {
+        if (stmt.counted != null) {
+            Environment frame = environment.ancestor(stmt.counted.counter.depth);
+            if (frame.values[stmt.counted.counter.slot] instanceof Double) return countedLoop(stmt.counted, frame);
+        }
+        while (truthy(stmt.whileToken, stmt.condition)) {
+            if (execute(stmt.body) == Completion.RETURN) return Completion.RETURN;
+            backEdges++;
+        }
+        return Completion.NORMAL;
+    }
+
+    /**
+     * Runs a {@link CountedLoop} whose counter holds a number. The steps match what the
+     * condition and the increment would do to a boxed counter, so the results are the same.
+     * A bound {@link LoopInvariants} found invariant is evaluated once, before the first test.
+     */
+    private Completion countedLoop(CountedLoop loop, Environment frame) {
+        int slot = loop.counter.slot;
+        Stmt.Block body = loop.body;
+        int count = body.statements.size() - 1;
+        double i = (Double) frame.values[slot];
+        double bound = 0;
+        List<?> sized = null;
+        if (loop.invariantBound) {
+            bound = evaluateDouble(loop.bound);
+            if (missed) checkNumberOperands(loop.operator, i, takeMissed());
+        } else if (loop.sizeOf != null) {
+            Object receiver = evaluate(loop.sizeOf);
+            if (receiver instanceof List) sized = (List<?>) receiver;
+        }
+        try {
+            for (; ; ) {
+                if (sized != null) bound = sized.size();
+                else if (!loop.invariantBound) {
+                    bound = evaluateDouble(loop.bound);
+                    if (missed) checkNumberOperands(loop.operator, i, takeMissed());
+                }
+                boolean more;
+                switch (loop.operator.type) {
+                    case LESS:
+                        more = i < bound;
+                        break;
+                    case LESS_EQUAL:
+                        more = i <= bound;
+                        break;
+                    case GREATER:
+                        more = i > bound;
+                        break;
+                    default:
+                        more = i >= bound;
+                }
+                if (!more) return Completion.NORMAL;
+                if (loop.observed) frame.values[slot] = i;
+                Completion completion = body.flat ? executeStatements(body.statements, count)
+                        : executeBlock(body, count, new Environment(environment, body.slots));
+                if (completion == Completion.RETURN) return Completion.RETURN;
+                backEdges++;
+                i += loop.step;
+            }
+        } finally {
+            frame.values[slot] = i;
         }
-        return null;
     }
 
     @Override
@@ -244,7 +354,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Variable expr) {
-        return getVar(expr.name);
+        return lookUp(expr.name, expr.global, expr.depth, expr.slot, expr.boxed);
     }
 
     @Override
@@ -264,35 +374,91 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitCallExpr(Call expr) {
+        if (expr.left instanceof Get) return invoke(expr, (Get) expr.left);
         Object o = evaluate(expr.left);
         if (o instanceof TrabCallable) {
             TrabCallable call = (TrabCallable) o;
-            if (expr.arguments.size() != call.arity())
-                throw new RuntimeError(expr.operator, "Expected " + call.arity() + " arguments but got " + expr.arguments.size());
-            List args = new ArrayList();
-            args.addAll(expr.arguments.stream().map(this::evaluate).collect(Collectors.toList()));
-            return ((TrabCallable) o).call(this, expr.operator, args);
+            List<Expr> arguments = expr.arguments;
+            if (arguments.size() != call.arity())
+                throw new RuntimeError(expr.operator, "Expected " + call.arity() + " arguments but got " + arguments.size());
+            switch (arguments.size()) {
+                case 0:
+                    return call.call0(this, expr.operator);
+                case 1:
+                    return call.call1(this, expr.operator, evaluate(arguments.get(0)));
+                case 2: {
+                    Object a = evaluate(arguments.get(0));
+                    return call.call2(this, expr.operator, a, evaluate(arguments.get(1)));
+                }
+                default: {
+                    Object[] args = new Object[arguments.size()];
+                    for (int i = 0; i < args.length; i++) args[i] = evaluate(arguments.get(i));
+                    return call.callN(this, expr.operator, args);
+                }
+            }
         } else throw new RuntimeError(expr.operator, "Only Lambdas, Functions, and Methods can be called");
     }
 
+    /**
+     * Calls a method straight off its receiver. List methods get the list as their first
+     * argument instead of being wrapped in a {@link ShuntedFunction}.
+     */
+    private Object invoke(Call expr, Get get) {
+        Object receiver = evaluate(get.left);
+        TrabCallable method = method(get, receiver);
+        List<Expr> arguments = expr.arguments;
+        if (!(receiver instanceof List)) {
+            if (arguments.size() != method.arity())
+                throw new RuntimeError(expr.operator, "Expected " + method.arity() + " arguments but got " + arguments.size());
+            switch (arguments.size()) {
+                case 0:
+                    return method.call0(this, expr.operator);
+                case 1:
+                    return method.call1(this, expr.operator, evaluate(arguments.get(0)));
+                case 2: {
+                    Object a = evaluate(arguments.get(0));
+                    return method.call2(this, expr.operator, a, evaluate(arguments.get(1)));
+                }
+            }
+        } else {
+            if (arguments.size() != method.arity() - 1)
+                throw new RuntimeError(expr.operator, "Expected " + (method.arity() - 1) + " arguments but got " + arguments.size());
+            switch (arguments.size()) {
+                case 0:
+                    return method.call1(this, expr.operator, receiver);
+                case 1:
+                    return method.call2(this, expr.operator, receiver, evaluate(arguments.get(0)));
+            }
+        }
+        int bound = receiver instanceof List ? 1 : 0;
+        Object[] args = new Object[arguments.size() + bound];
+        if (bound == 1) args[0] = receiver;
+        for (int i = 0; i < arguments.size(); i++) args[i + bound] = evaluate(arguments.get(i));
+        return method.callN(this, expr.operator, args);
+    }
+
     @Override
     public Object visitGetExpr(Get expr) {
-        Object o = evaluate(expr.left);
-        TrabClassable trabClass = null;
-        if (o instanceof List) {
-            trabClass = (TrabClassable) globals.get("InternalList");
-            TrabCallable temp = trabClass.getFunction(expr.name.lexeme);
-            if (temp == null) throw new RuntimeError(expr.name, "Method " + expr.name.lexeme + " does not exist");
-            return new ShuntedFunction(temp, o);
-        } else if (o instanceof TrabClassable)
-            trabClass = (TrabClassable) o;
+        return property(expr, evaluate(expr.left));
+    }
+
+    Object property(Get expr, Object receiver) {
+        TrabCallable method = method(expr, receiver);
+        if (receiver instanceof List) return new ShuntedFunction(method, receiver);
+        return method;
+    }
+
+    TrabCallable method(Get expr, Object receiver) {
+        TrabClassable trabClass;
+        if (receiver instanceof List) trabClass = Natives.INTERNAL_LIST;
+        else if (receiver instanceof TrabClassable) trabClass = (TrabClassable) receiver;
         else throw new RuntimeError(expr.name, "Can only call '.' on class");
-        Object temp = trabClass.getFunction(expr.name.lexeme);
-        if (temp == null) {
-            System.out.println(expr.toString());
-            throw new RuntimeError(expr.name, "Method " + expr.name.lexeme + " does not exist");
-        }
-        return temp;
+        TrabCallable method = expr.cache.lookup(trabClass);
+        if (method != null) return method;
+        method = trabClass.getFunction(expr.name.lexeme);
+        if (method == null) throw new RuntimeError(expr.name, "Method " + expr.name.lexeme + " does not exist");
+        expr.cache.add(trabClass, method);
+        return method;
     }
 
     @Override
@@ -301,174 +467,251 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         if (expr.start != null && expr.end == null && expr.step == null) {
             Object left = evaluate(expr.operand);
             Object index = evaluate(expr.start);
-            if (left instanceof List) {
-                if (index instanceof Double) {
-                    int ind = (int) (double) index;
-                    if (ind < 0) ind += ((List) left).size();
-                    if (ind < 0 || ind >= ((List) left).size())
-                        throw new RuntimeError(expr.bracket, "List index out of bounds");
-                    return ((List) left).get(ind);
-                } else
-                    throw new RuntimeError(expr.bracket, "Index must be number");
-            } else if (left instanceof String) {
-                int ind = (int) (double) index;
-                if (ind < 0 || ind >= ((String) left).length())
-                    throw new RuntimeError(expr.bracket, "String index out of bounds");
-                return ((String) left).substring(ind, ind + 1);
-            } else
-                throw new RuntimeError(expr.bracket, "Index can only be called on list");
-        } else {
-            Object left = evaluate(expr.operand);
-            Object start = evaluate(expr.start);
-            Object end = evaluate(expr.end);
-            Object step = evaluate(expr.step);
-            if (left instanceof List) {
-                if (start != null)
-                    checkNumberOperand(expr.bracket, start);
-                if (end != null)
-                    checkNumberOperand(expr.bracket, end);
-                if (step != null)
-                    checkNumberOperand(expr.bracket, step);
-                int s = start == null ? 0 : (int) (double) start;
-                int e = end == null ? ((List) left).size() : (int) (double) end;
-                int st = step == null ? 1 : (int) (double) (step);
-                List ll = ((List) left);
-                List<Object> n = new ArrayList<>();
-                if (s < 0) s += ll.size();
-                if (e < 0) e += ll.size();
-                if (st < 0) {
-                    for (int i = e - 1; i >= s; i += st)
-                        n.add(ll.get(i));
-                } else {
-                    for (int i = s; i < e; i += st) {
-                        n.add(ll.get(i));
+            switch (expr.state) {
+                case Specialization.INDEX_LIST:
+                    if (left instanceof List && index instanceof Double) {
+                        List<?> list = (List<?>) left;
+                        int ind = (int) (double) (Double) index;
+                        if (ind >= 0 && ind < list.size()) return list.get(ind);
+                        return index(expr.bracket, left, index);
                     }
-                }
-                return n;
-            } else if (left instanceof String) {
-                if (start != null)
-                    checkNumberOperand(expr.bracket, start);
-                if (end != null)
-                    checkNumberOperand(expr.bracket, end);
-                if (step != null)
-                    checkNumberOperand(expr.bracket, step);
-                int s = start == null ? 0 : (int) (double) start;
-                int e = end == null ? ((String) left).length() : (int) (double) end;
-                int st = step == null ? 1 : (int) (double) (step);
-                String string = ((String) left);
-                StringBuffer n = new StringBuffer();
-                if (s < 0) s += string.length();
-                if (e < 0) e += string.length();
-                if (st < 0) {
-                    for (int i = e - 1; i >= s; i += st)
-                        n.append(string, i, i + 1);
-                } else {
-                    for (int i = s; i < e; i += st) {
-                        n.append(string, i, i + 1);
+                    break;
+                case Specialization.INDEX_STRING:
+                    if (left instanceof String && index instanceof Double) {
+                        String string = (String) left;
+                        int ind = (int) (double) (Double) index;
+                        if (ind >= 0 && ind < string.length()) return string.substring(ind, ind + 1);
+                        return index(expr.bracket, left, index);
                     }
-                }
-                return n.toString();
-            } else
-                throw new RuntimeError(expr.bracket, "Index can only be called on list");
+                    break;
+                case Specialization.UNINITIALIZED:
+                    expr.state = Specialization.index(left, index);
+                    return index(expr.bracket, left, index);
+                case Specialization.GENERIC:
+                    return index(expr.bracket, left, index);
+            }
+            expr.state = Specialization.GENERIC;
+            return index(expr.bracket, left, index);
+        }
+        Object left = evaluate(expr.operand);
+        Object start = evaluate(expr.start);
+        Object end = evaluate(expr.end);
+        Object step = evaluate(expr.step);
+        return slice(expr.bracket, left, start, end, step);
+    }
+
+    // Indexing, slicing and stringify are shared with compiled programs; errors come back as
+    // TrabErrors, which are reported here against the token.
+    static Object index(Token bracket, Object left, Object index) {
+        try {
+            return Ops.index(bracket.line, left, index);
+        } catch (TrabError e) {
+            throw new RuntimeError(bracket, e.getMessage());
+        }
+    }
+
+    static Object slice(Token bracket, Object left, Object start, Object end, Object step) {
+        try {
+            return Ops.slice(bracket.line, left, start, end, step);
+        } catch (TrabError e) {
+            throw new RuntimeError(bracket, e.getMessage());
         }
     }
 
     @Override
     public Object visitUnaryExpr(Unary expr) {
-
+        if (expr.state == Specialization.NEGATE_DOUBLE) {
+            Object o = evaluate(expr.right);
+            if (o instanceof Double) return -1.0 * (Double) o;
+            expr.state = Specialization.GENERIC;
+            checkNumberOperand(expr.operator, o);
+        }
         switch (expr.operator.type) {
             case MINUS:
                 Object o = evaluate(expr.right);
+                if (expr.state == Specialization.UNINITIALIZED) expr.state = Specialization.unary(MINUS, o);
                 checkNumberOperand(expr.operator, o);
                 return -1.0 * (Double) o;
             case BANG:
-                return !isTruthy(expr.operator, evaluate(expr.right));
+                return !truthy(expr.operator, expr.right);
             case PLUS_PLUS:
                 if (!(expr.right instanceof Expr.Variable))
                     throw new RuntimeError(expr.operator, "Operand must be variable");
                 Expr.Variable variable = (Expr.Variable) expr.right;
                 Object o2 = evaluate(expr.right);
                 checkNumberOperand(expr.operator, o2);
-                environment.update(variable.name.lexeme, (Double) o2 + 1);
-                return getVar(variable.name);
+                return assign(variable.name, variable.global, variable.depth, variable.slot, variable.boxed, (Double) o2 + 1);
             case MINUS_MINUS:
                 if (!(expr.right instanceof Expr.Variable))
                     throw new RuntimeError(expr.operator, "Operand must be variable");
                 Expr.Variable variable2 = (Expr.Variable) expr.right;
                 Object o3 = evaluate(expr.right);
                 checkNumberOperand(expr.operator, o3);
-                environment.update(variable2.name.lexeme, (Double) o3 - 1);
-                return getVar(variable2.name);
+                return assign(variable2.name, variable2.global, variable2.depth, variable2.slot, variable2.boxed, (Double) o3 - 1);
             case QUESTION:
-                Object command = evaluate(expr.right);
-                checkStringOperand(expr.operator, command);
-                String s = (String) command;
-                try {
-                    Process p = Runtime.getRuntime().exec(s);
-                    BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()));
-                    String output = "";
-                    while (in.ready()) output += in.readLine() + "\n";
-                    return output.trim();
-                } catch (Exception e) {
-
-                    return new TrabNull();
-                }
+                return runCommand(expr.operator, evaluate(expr.right));
         }
         return null;
     }
 
+    static Object runCommand(Token operator, Object command) {
+        checkStringOperand(operator, command);
+        String s = (String) command;
+        try {
+            Process p = Runtime.getRuntime().exec(s);
+            BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()));
+            String output = "";
+            while (in.ready()) output += in.readLine() + "\n";
+            return output.trim();
+        } catch (Exception e) {
+
+            return new TrabNull();
+        }
+    }
+
     @Override
     public Object visitPostExpr(Post expr) {
         if (!(expr.left instanceof Expr.Variable)) throw new RuntimeError(expr.operator, "Operand must be variable");
         Expr.Variable variable = (Expr.Variable) expr.left;
-        checkNumberOperand(expr.operator, getVar(variable.name));
         Object o = evaluate(variable);
+        checkNumberOperand(expr.operator, o);
         if (expr.operator.type == PLUS_PLUS)
-            environment.update(variable.name.lexeme, (Double) o + 1.0);
+            assign(variable.name, variable.global, variable.depth, variable.slot, variable.boxed, (Double) o + 1.0);
         else if (expr.operator.type == MINUS_MINUS)
-            environment.update(variable.name.lexeme, (Double) o - 1.0);
+            assign(variable.name, variable.global, variable.depth, variable.slot, variable.boxed, (Double) o - 1.0);
         return o;
     }
 
     @Override
     public Object visitBinaryExpr(Binary expr) {
-
+        if (Specialization.arithmetic(expr.state)) {
+            double d = binaryDouble(expr);
+            if (missed) return takeMissed();
+            return d;
+        }
+        if (Specialization.comparison(expr.state)) {
+            double l = evaluateDouble(expr.left);
+            if (missed) return generic(expr, takeMissed(), evaluate(expr.right));
+            double r = evaluateDouble(expr.right);
+            if (missed) return generic(expr, l, takeMissed());
+            switch (expr.state) {
+                case Specialization.LESS_DOUBLE:
+                    return l < r;
+                case Specialization.LESS_EQUAL_DOUBLE:
+                    return l <= r;
+                case Specialization.GREATER_DOUBLE:
+                    return l > r;
+                default:
+                    return l >= r;
+            }
+        }
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
-        switch (expr.operator.type) {
+        if (expr.state == Specialization.CONCAT_STRING && left instanceof String && right instanceof String)
+            return (String) left + (String) right;
+        if (expr.state == Specialization.UNINITIALIZED)
+            expr.state = Specialization.binary(expr.operator.type, left, right);
+        else expr.state = Specialization.GENERIC;
+        return binary(expr.operator, left, right);
+    }
+
+    private Object generic(Binary expr, Object left, Object right) {
+        expr.state = Specialization.GENERIC;
+        return binary(expr.operator, left, right);
+    }
+
+    /**
+     * Evaluates an expression expected to produce a number without boxing the intermediate
+     * results of arithmetic below it. When the value is not a number after all it is stashed,
+     * {@link #missed} is set and the caller takes it with {@link #takeMissed()}.
+     */
+    double evaluateDouble(Expr expr) {
+        if (expr instanceof Binary) {
+            if (Specialization.arithmetic(((Binary) expr).state)) return binaryDouble((Binary) expr);
+        } else if (expr instanceof Literal) {
+            if (((Literal) expr).value instanceof Double) return (Double) ((Literal) expr).value;
+        } else if (expr instanceof Grouping) {
+            return evaluateDouble(((Grouping) expr).expression);
+        } else if (expr instanceof Unary && ((Unary) expr).state == Specialization.NEGATE_DOUBLE) {
+            double d = evaluateDouble(((Unary) expr).right);
+            if (!missed) return -d;
+            ((Unary) expr).state = Specialization.GENERIC;
+            checkNumberOperand(((Unary) expr).operator, takeMissed());
+        }
+        Object o = evaluate(expr);
+        if (o instanceof Double) return (Double) o;
+        return miss(o);
+    }
+
+    private double binaryDouble(Binary expr) {
+        double l = evaluateDouble(expr.left);
+        if (missed) return miss(generic(expr, takeMissed(), evaluate(expr.right)));
+        double r = evaluateDouble(expr.right);
+        if (missed) return miss(generic(expr, l, takeMissed()));
+        switch (expr.state) {
+            case Specialization.ADD_DOUBLE:
+                return l + r;
+            case Specialization.SUBTRACT_DOUBLE:
+                return l - r;
+            case Specialization.MULTIPLY_DOUBLE:
+                return l * r;
+            case Specialization.DIVIDE_DOUBLE:
+                return l / r;
+            case Specialization.MODULO_DOUBLE:
+                return l % r;
+            default:
+                return Math.pow(l, r);
+        }
+    }
+
+    private double miss(Object o) {
+        missed = true;
+        missedValue = o;
+        return 0;
+    }
+
+    private Object takeMissed() {
+        Object o = missedValue;
+        missed = false;
+        missedValue = null;
+        return o;
+    }
+
+    static Object binary(Token operator, Object left, Object right) {
+        switch (operator.type) {
             case PLUS:
                 if (left instanceof Double && right instanceof Double)
                     return (Double) left + (Double) right;
                 if (left instanceof String || right instanceof String)
                     return stringify(left) + stringify(right);
                 else
-                    throw new RuntimeError(expr.operator, "Invalid types");
+                    throw new RuntimeError(operator, "Invalid types");
             case MINUS:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (Double) left - (Double) right;
             case STAR:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (Double) left * (Double) right;
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (Double) left / (Double) right;
             case PERCENT:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (Double) left % (Double) right;
             case STAR_STAR:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return Math.pow((Double) left, (Double) right);
             case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (Double) left <= (Double) right;
             case LESS:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (Double) left < (Double) right;
             case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (Double) left >= (Double) right;
             case GREATER:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (Double) left > (Double) right;
             case EQUAL_EQUAL:
                 return isEqual(left, right);
@@ -482,126 +725,188 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
         switch (expr.operator.type) {
             case AND:
-                if (isTruthy(expr.operator, evaluate(expr.left)))
-                    return isTruthy(expr.operator, evaluate(expr.right));
+                if (truthy(expr.operator, expr.left))
+                    return truthy(expr.operator, expr.right);
                 else
                     return false;
             case OR:
-                if (isTruthy(expr.operator, evaluate(expr.left)))
+                if (truthy(expr.operator, expr.left))
                     return true;
                 else
-                    return isTruthy(expr.operator, evaluate(expr.right));
+                    return truthy(expr.operator, expr.right);
         }
         return null;
     }
 
     @Override
     public Object visitLambdaExpr(Lambda expr) {
-        return new TrabLambda(expr, new Environment(environment));
+        int[] captures = expr.captures;
+        Environment captured = new Environment(null, captures.length / 2);
+        for (int i = 0; i < captured.values.length; i++)
+            captured.values[i] = environment.get(captures[2 * i], captures[2 * i + 1]);
+        return new TrabLambda(expr, captured);
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        environment.define(stmt.name.lexeme, new TrabFunction(stmt, new Environment(environment)));
-        return null;
+    public Completion visitFunctionStmt(Stmt.Function stmt) {
+        define(stmt.name, stmt.slot, stmt.boxed, stmt.hoisted, new TrabFunction(stmt, environment));
+        return Completion.NORMAL;
+    }
+
+    /**
+     * Runs the copy of the callee's body when the name still holds the definition it was
+     * copied from, and makes the call otherwise. Rewriting a definition keeps its name token,
+     * so that is what is compared.
+     */
+    @Override
+    public Object visitInlineExpr(Inline expr) {
+        Object callee = evaluate(expr.target);
+        for (Expr binding : expr.bindings) evaluate(binding);
+        boolean same;
+        if (expr.definition instanceof Stmt.Function)
+            same = callee instanceof TrabFunction && ((TrabFunction) callee).fun.name == ((Stmt.Function) expr.definition).name;
+        else same = callee instanceof TrabClass && ((TrabClass) callee).stmt.name == ((Stmt.Class) expr.definition).name;
+        if (!same) return evaluate(expr.call);
+        if (execute(expr.body) == Completion.RETURN) return takeReturnValue();
+        return new TrabNull();
     }
 
     @Override
     public Object visitAssignExpr(Assign expr) {
-        if (!environment.isDefined(expr.name.lexeme))
-            throw new RuntimeError(expr.name, "Cannot assign undefined variable");
-        Object o = evaluate(expr.value);
-        if (expr.operator.type == EQUAL) {
-            return environment.update(expr.name.lexeme, o);
+        if (expr.depth < 0) expr.global.check(expr.name);
+        if (expr.operator.type == EQUAL) return assign(expr.name, expr.global, expr.depth, expr.slot, expr.boxed, evaluate(expr.value));
+        double d = evaluateDouble(expr.value);
+        boolean number = !missed;
+        Object o = number ? null : takeMissed();
+        Object current = lookUp(expr.name, expr.global, expr.depth, expr.slot, expr.boxed);
+        if (number && current instanceof Double) {
+            double c = (Double) current;
+            switch (expr.operator.type) {
+                case PLUS_EQUAL:
+                    return assign(expr.name, expr.global, expr.depth, expr.slot, expr.boxed, d + c);
+                case MINUS_EQUAL:
+                    return assign(expr.name, expr.global, expr.depth, expr.slot, expr.boxed, c - d);
+                case STAR_EQUAL:
+                    return assign(expr.name, expr.global, expr.depth, expr.slot, expr.boxed, c * d);
+                case SLASH_EQUAL:
+                    return assign(expr.name, expr.global, expr.depth, expr.slot, expr.boxed, c / d);
+                case PERCENT_EQUAL:
+                    return assign(expr.name, expr.global, expr.depth, expr.slot, expr.boxed, c % d);
+                case STAR_STAR_EQUAL:
+                    return assign(expr.name, expr.global, expr.depth, expr.slot, expr.boxed, Math.pow(c, d));
+            }
         }
-        checkNumberOperand(expr.operator, o);
-        checkNumberOperand(expr.operator, getVar(expr.name));
+        if (number) o = d;
+        Object result = compound(expr.operator, current, o);
+        if (result == null) return null;
+        return assign(expr.name, expr.global, expr.depth, expr.slot, expr.boxed, result);
+    }
+
+    static Object compound(Token operator, Object current, Object o) {
+        checkNumberOperand(operator, o);
+        checkNumberOperand(operator, current);
         Double value = (Double) o;
-        Double original = (Double) getVar(expr.name);
-        switch (expr.operator.type) {
+        Double original = (Double) current;
+        switch (operator.type) {
             case PLUS_EQUAL:
-                return environment.update(expr.name.lexeme, value + original);
+                return value + original;
             case MINUS_EQUAL:
-                return environment.update(expr.name.lexeme, original - value);
+                return original - value;
             case STAR_EQUAL:
-                return environment.update(expr.name.lexeme, original * value);
+                return original * value;
             case SLASH_EQUAL:
-                return environment.update(expr.name.lexeme, original / value);
+                return original / value;
             case PERCENT_EQUAL:
-                return environment.update(expr.name.lexeme, original % value);
+                return original % value;
             case STAR_STAR_EQUAL:
-                return environment.update(expr.name.lexeme, Math.pow(original, value));
+                return Math.pow(original, value);
         }
         return null;
     }
 
-    private Object getVar(Token token) {
-        if (!environment.isDefined(token.lexeme))
-            throw new RuntimeError(token, "Cannot access unassigned variable");
-        return environment.get(token.lexeme);
+    private Object lookUp(Token name, Global global, int depth, int slot, boolean boxed) {
+        if (depth < 0) return global.get(name);
+        Object o = environment.get(depth, slot);
+        return assigned(name, boxed ? ((Box) o).value : o);
     }
 
-    private String stringify(Object o) {
+    /**
+     * Checks a local read before its declaration ran, which a function can do with one its
+     * block declares further down.
+     */
+    static Object assigned(Token name, Object value) {
+        if (value == null) throw new RuntimeError(name, "Cannot access unassigned variable");
+        return value;
+    }
 
-        if (o instanceof Double) {
-            String s = o.toString();
-            if (s.endsWith(".0"))
-                return s.substring(0, s.length() - 2);
-            else
-                return s;
-        }
-        if (o instanceof List) {
-            return stringifyList((List) o);
-        }
-        return o.toString();
+    private Object assign(Token name, Global global, int depth, int slot, boolean boxed, Object value) {
+        if (depth < 0) global.set(name, value);
+        else if (boxed) ((Box) environment.get(depth, slot)).value = value;
+        else environment.set(depth, slot, value);
+        return value;
     }
 
-    private String stringifyList(List list) {
-        StringBuffer buf = new StringBuffer();
-        buf.append("[");
-        for (Object o : list) {
-            buf.append(stringify(o));
-            buf.append(", ");
-        }
-        buf.setLength(buf.length() - 2);
-        buf.append("]");
-        return buf.toString();
+    /**
+     * Returns the cell for a global name, making an undefined one the first time it comes up.
+     */
+    Global global(String name) {
+        return globals.computeIfAbsent(name, Global::new);
+    }
+
+    private void define(Token name, int slot, boolean boxed, boolean hoisted, Object value) {
+        if (hoisted) ((Box) environment.values[slot]).value = value;
+        else if (slot >= 0) environment.values[slot] = boxed ? new Box(value) : value;
+        else global(name.lexeme).define(value);
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
+    static String stringify(Object o) {
+        return Ops.stringify(o);
+    }
+
+    static void checkNumberOperand(Token operator, Object operand) {
 
         if (operand instanceof Double)
             return;
         throw new RuntimeError(operator, "Operand must be a number");
     }
 
-    private void checkListOperand(Token operator, Object operand) {
+    static void checkListOperand(Token operator, Object operand) {
 
         if (operand instanceof List)
             return;
         throw new RuntimeError(operator, "Operand must be a list");
     }
 
-    private void checkStringOperand(Token operator, Object operand) {
+    static void checkStringOperand(Token operator, Object operand) {
 
         if (operand instanceof String)
             return;
         throw new RuntimeError(operator, "Operand must be a string");
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
+    static void checkNumberOperands(Token operator, Object left, Object right) {
 
         if (left instanceof Double && right instanceof Double)
             return;
         throw new RuntimeError(operator, "Operands must be numbers");
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
 
         return a.equals(b);
     }
 
-    private boolean isTruthy(Token operator, Object object) {
+    /**
+     * Evaluates a condition, checking that it is a boolean unless {@link TypeInference} proved
+     * it always is.
+     */
+    private boolean truthy(Token operator, Expr condition) {
+        Object o = evaluate(condition);
+        if (condition.type == TypeInference.BOOLEAN) return (Boolean) o;
+        return isTruthy(operator, o);
+    }
+
+    static boolean isTruthy(Token operator, Object object) {
 
         if (object instanceof Boolean)
             return (boolean) object;
@@ -0,0 +1,661 @@
+package ml.dent.trab;
+
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static ml.dent.trab.ClassEmitter.*;
+
+/**
+ * Compiles the body of a hot function or lambda into a JVM class so the JVM's own JIT can take
+ * over. Locals of the function live in JVM locals; variables of enclosing scopes are read
+ * through the closure and globals through the {@link Interpreter}. Binary nodes the interpreter
+ * specialized on doubles are emitted inline behind a type guard that deoptimizes the function
+ * when it fails. Bodies that create closures or classes are left to the interpreter.
+ */
+class Jit implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    static final int THRESHOLD = 1000;
+    static final int MAX_DEOPTIMIZATIONS = 4;
+
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    private static final AtomicInteger classCount = new AtomicInteger();
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String DOUBLE = "java/lang/Double";
+    private static final String BOOLEAN = "java/lang/Boolean";
+    private static final String INTERPRETER = "ml/dent/trab/Interpreter";
+    private static final String ENVIRONMENT = "ml/dent/trab/Environment";
+    private static final String JIT_CODE = "ml/dent/trab/JitCode";
+    private static final String TOKEN = "ml/dent/trab/Token";
+    private static final String CALLABLE = "ml/dent/trab/TrabCallable";
+    private static final String BOX = "ml/dent/trab/runtime/Box";
+    private static final String GLOBAL = "ml/dent/trab/Global";
+    private static final String O = "Ljava/lang/Object;";
+    private static final String T = "Lml/dent/trab/Token;";
+    private static final String I = "Lml/dent/trab/Interpreter;";
+
+    private static class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    private final ClassEmitter out;
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndex = new IdentityHashMap<>();
+    private final List<int[]> scopes = new ArrayList<>();
+    private int nextLocal;
+
+    private Jit(String className) {
+        out = new ClassEmitter(className, JIT_CODE);
+    }
+
+    /**
+     * Returns the compiled body, or null if it uses something the compiler does not handle.
+     * Says what happened on {@code log} unless that is null.
+     */
+    static JitCode compile(String name, List<Token> arguments, int slots, Stmt.Block body, PrintStream log) {
+        String className = "ml/dent/trab/Jit$" + name.replaceAll("[^A-Za-z0-9_]", "_") + "$" + classCount.getAndIncrement();
+        Jit jit = new Jit(className);
+        try {
+            byte[] bytes = jit.function(arguments.size(), slots, body);
+            JitCode code = (JitCode) lookup.defineClass(bytes).getDeclaredConstructor().newInstance();
+            code.constants = jit.constants.toArray();
+            if (log != null) log.println("Compiled " + name + " to JVM bytecode");
+            return code;
+        } catch (Unsupported e) {
+            return null;
+        } catch (ReflectiveOperationException | LinkageError | IllegalStateException e) {
+            if (log != null) log.println("Could not compile " + name + ": " + e);
+            return null;
+        }
+    }
+
+    private byte[] function(int arity, int slots, Stmt.Block body) {
+        String descriptor;
+        int base = 3;
+        switch (arity) {
+            case 0:
+                descriptor = "(" + I + "L" + ENVIRONMENT + ";)" + O;
+                break;
+            case 1:
+                descriptor = "(" + I + "L" + ENVIRONMENT + ";" + O + ")" + O;
+                break;
+            case 2:
+                descriptor = "(" + I + "L" + ENVIRONMENT + ";" + O + O + ")" + O;
+                break;
+            default:
+                descriptor = "(" + I + "L" + ENVIRONMENT + ";[" + O + ")" + O;
+                base = 4;
+        }
+        out.locals(base);
+        nextLocal = base;
+        int[] frame = scope(slots);
+        for (int i = 0; arity > 2 && i < arity; i++) {
+            out.local(ALOAD, 3);
+            out.pushInt(i);
+            out.op(AALOAD, -1);
+            out.local(ASTORE, frame[i]);
+        }
+        for (int i = arity; i < slots; i++) {
+            out.op(ACONST_NULL, 1);
+            out.local(ASTORE, frame[i]);
+        }
+        scopes.add(frame);
+        for (Stmt stmt : body.statements) stmt.accept(this);
+        out.type(NEW, "ml/dent/trab/TrabNull");
+        out.op(DUP, 1);
+        out.invoke(INVOKESPECIAL, "ml/dent/trab/TrabNull", "<init>", "()V");
+        out.op(ARETURN, -1);
+        String method = arity > 2 ? "callN" : "call" + arity;
+        return out.finish(method, descriptor);
+    }
+
+    private int[] scope(int slots) {
+        int[] locals = new int[slots];
+        for (int i = 0; i < slots; i++) locals[i] = nextLocal++;
+        out.locals(nextLocal);
+        return locals;
+    }
+
+    private int temp() {
+        out.locals(nextLocal + 1);
+        return nextLocal++;
+    }
+
+    private void constant(Object value, String type) {
+        Integer index = constantIndex.get(value);
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            constantIndex.put(value, index);
+        }
+        out.local(ALOAD, 0);
+        out.field(GETFIELD, JIT_CODE, "constants", "[" + O);
+        out.pushInt(index);
+        out.op(AALOAD, -1);
+        if (!type.equals(OBJECT)) out.type(CHECKCAST, type);
+    }
+
+    private void evaluate(Expr expr) {
+        if (expr == null) out.op(ACONST_NULL, 1);
+        else expr.accept(this);
+    }
+
+    private void load(Token name, Global global, int depth, int slot, boolean boxed) {
+        if (depth >= 0 && depth < scopes.size() && boxed) throw new Unsupported();
+        if (depth < 0) {
+            constant(global, GLOBAL);
+            constant(name, TOKEN);
+            out.invoke(INVOKEVIRTUAL, GLOBAL, "get", "(" + T + ")" + O);
+        } else if (depth < scopes.size()) out.local(ALOAD, scopes.get(scopes.size() - 1 - depth)[slot]);
+        else {
+            constant(name, TOKEN);
+            out.local(ALOAD, 2);
+            out.pushInt(depth - scopes.size());
+            out.pushInt(slot);
+            out.invoke(INVOKEVIRTUAL, ENVIRONMENT, "get", "(II)" + O);
+            if (boxed) {
+                out.type(CHECKCAST, BOX);
+                out.field(GETFIELD, BOX, "value", O);
+            }
+            out.invoke(INVOKESTATIC, INTERPRETER, "assigned", "(" + T + O + ")" + O);
+        }
+    }
+
+    private void store(Token name, Global global, int depth, int slot, boolean boxed) {
+        if (depth >= 0 && depth < scopes.size()) {
+            if (boxed) throw new Unsupported();
+            out.local(ASTORE, scopes.get(scopes.size() - 1 - depth)[slot]);
+            return;
+        }
+        int value = temp();
+        out.local(ASTORE, value);
+        if (depth < 0) {
+            constant(global, GLOBAL);
+            constant(name, TOKEN);
+            out.local(ALOAD, value);
+            out.invoke(INVOKEVIRTUAL, GLOBAL, "set", "(" + T + O + ")V");
+        } else if (boxed) {
+            out.local(ALOAD, 2);
+            out.pushInt(depth - scopes.size());
+            out.pushInt(slot);
+            out.invoke(INVOKEVIRTUAL, ENVIRONMENT, "get", "(II)" + O);
+            out.type(CHECKCAST, BOX);
+            out.local(ALOAD, value);
+            out.field(PUTFIELD, BOX, "value", O);
+        } else {
+            out.local(ALOAD, 2);
+            out.pushInt(depth - scopes.size());
+            out.pushInt(slot);
+            out.local(ALOAD, value);
+            out.invoke(INVOKEVIRTUAL, ENVIRONMENT, "set", "(II" + O + ")V");
+        }
+    }
+
+    private void truthy(Token token, Expr expr) {
+        if (expr.type == TypeInference.BOOLEAN) {
+            evaluate(expr);
+            out.type(CHECKCAST, BOOLEAN);
+            out.invoke(INVOKEVIRTUAL, BOOLEAN, "booleanValue", "()Z");
+            return;
+        }
+        constant(token, TOKEN);
+        evaluate(expr);
+        out.invoke(INVOKESTATIC, INTERPRETER, "isTruthy", "(" + T + O + ")Z");
+    }
+
+    private void jumpToEnd(Label end) {
+        out.jump(GOTO, end);
+        out.unreachable();
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.flat) {
+            for (Stmt statement : stmt.statements) statement.accept(this);
+            return null;
+        }
+        int[] locals = scope(stmt.slots);
+        for (int local : locals) {
+            out.op(ACONST_NULL, 1);
+            out.local(ASTORE, local);
+        }
+        scopes.add(locals);
+        for (Stmt statement : stmt.statements) statement.accept(this);
+        scopes.remove(scopes.size() - 1);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        evaluate(stmt.expression);
+        out.op(POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintableExpressionStmt(Stmt.PrintableExpression stmt) {
+        int echo = temp();
+        out.local(ALOAD, 1);
+        constant(stmt, "ml/dent/trab/Stmt$PrintableExpression");
+        out.invoke(INVOKEVIRTUAL, INTERPRETER, "startPrintable", "(Lml/dent/trab/Stmt$PrintableExpression;)Z");
+        out.local(ISTORE, echo);
+        out.local(ALOAD, 1);
+        out.local(ILOAD, echo);
+        evaluate(stmt.expression);
+        out.invoke(INVOKEVIRTUAL, INTERPRETER, "echo", "(Z" + O + ")V");
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        Label otherwise = new Label();
+        Label end = new Label();
+        truthy(stmt.ifToken, stmt.condition);
+        out.jump(IFEQ, otherwise);
+        stmt.thenBranch.accept(this);
+        jumpToEnd(end);
+        out.mark(otherwise);
+        if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+        out.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.tail) {
+            // Hands the call to the interpreter, which makes it once this frame is gone.
+            Expr.Call call = (Expr.Call) stmt.value;
+            out.local(ALOAD, 1);
+            evaluate(call.left);
+            constant(call.operator, TOKEN);
+            out.pushInt(call.arguments.size());
+            out.invoke(INVOKESTATIC, JIT_CODE, "callable", "(" + O + T + "I)L" + CALLABLE + ";");
+            constant(call.operator, TOKEN);
+            array(call.arguments);
+            out.invoke(INVOKEVIRTUAL, INTERPRETER, "tailCall", "(L" + CALLABLE + ";" + T + "[" + O + ")" + O);
+        } else evaluate(stmt.value);
+        out.op(ARETURN, -1);
+        out.unreachable();
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.slot < 0 || stmt.boxed) throw new Unsupported();
+        evaluate(stmt.initializer);
+        out.local(ASTORE, scopes.get(scopes.size() - 1)[stmt.slot]);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        if (stmt.condition == null) throw new Unsupported();
+        Label loop = new Label();
+        Label end = new Label();
+        out.mark(loop);
+        truthy(stmt.whileToken, stmt.condition);
+        out.jump(IFEQ, end);
+        stmt.body.accept(this);
+        jumpToEnd(loop);
+        out.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) out.op(ACONST_NULL, 1);
+        else constant(expr.value, OBJECT);
+        return null;
+    }
+
+    @Override
+    public Void visitTrabStringExpr(Expr.TrabString expr) {
+        out.type(NEW, "java/lang/StringBuilder");
+        out.op(DUP, 1);
+        out.invoke(INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "()V");
+        for (Expr part : expr.values) {
+            evaluate(part);
+            out.invoke(INVOKESTATIC, INTERPRETER, "stringify", "(" + O + ")Ljava/lang/String;");
+            out.invoke(INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
+                    "(Ljava/lang/String;)Ljava/lang/StringBuilder;");
+        }
+        out.invoke(INVOKEVIRTUAL, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;");
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        load(expr.name, expr.global, expr.depth, expr.slot, expr.boxed);
+        return null;
+    }
+
+    @Override
+    public Void visitTrabListExpr(Expr.TrabList expr) {
+        out.type(NEW, "java/util/ArrayList");
+        out.op(DUP, 1);
+        out.invoke(INVOKESPECIAL, "java/util/ArrayList", "<init>", "()V");
+        for (Expr value : expr.values) {
+            out.op(DUP, 1);
+            evaluate(value);
+            out.invoke(INVOKEVIRTUAL, "java/util/ArrayList", "add", "(" + O + ")Z");
+            out.op(POP, -1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        evaluate(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        int count = expr.arguments.size();
+        String descriptor;
+        if (expr.left instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.left;
+            evaluate(get.left);
+            out.op(DUP, 1);
+            out.local(ALOAD, 1);
+            constant(get, "ml/dent/trab/Expr$Get");
+            constant(expr.operator, TOKEN);
+            out.pushInt(count);
+            out.invoke(INVOKESTATIC, JIT_CODE, "method",
+                    "(" + O + I + "Lml/dent/trab/Expr$Get;" + T + "I)L" + CALLABLE + ";");
+            out.op(SWAP, 0);
+            out.local(ALOAD, 1);
+            constant(expr.operator, TOKEN);
+            descriptor = "(L" + CALLABLE + ";" + O + I + T + arguments(expr.arguments) + ")" + O;
+            out.invoke(INVOKESTATIC, JIT_CODE, count > 2 ? "invokeN" : "invoke" + count, descriptor);
+            return null;
+        }
+        evaluate(expr.left);
+        constant(expr.operator, TOKEN);
+        out.pushInt(count);
+        out.invoke(INVOKESTATIC, JIT_CODE, "callable", "(" + O + T + "I)L" + CALLABLE + ";");
+        out.local(ALOAD, 1);
+        constant(expr.operator, TOKEN);
+        descriptor = "(" + I + T + arguments(expr.arguments) + ")" + O;
+        out.invoke(INVOKEINTERFACE, CALLABLE, count > 2 ? "callN" : "call" + count, descriptor);
+        return null;
+    }
+
+    /**
+     * Pushes the arguments of a call, packed into an array past two, and returns their descriptor.
+     */
+    private String arguments(List<Expr> arguments) {
+        if (arguments.size() <= 2) {
+            for (Expr argument : arguments) evaluate(argument);
+            return O.repeat(arguments.size());
+        }
+        array(arguments);
+        return "[" + O;
+    }
+
+    private void array(List<Expr> arguments) {
+        out.pushInt(arguments.size());
+        out.type(ANEWARRAY, OBJECT);
+        for (int i = 0; i < arguments.size(); i++) {
+            out.op(DUP, 1);
+            out.pushInt(i);
+            evaluate(arguments.get(i));
+            out.op(AASTORE, -3);
+        }
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        out.local(ALOAD, 1);
+        constant(expr, "ml/dent/trab/Expr$Get");
+        evaluate(expr.left);
+        out.invoke(INVOKEVIRTUAL, INTERPRETER, "property", "(Lml/dent/trab/Expr$Get;" + O + ")" + O);
+        return null;
+    }
+
+    @Override
+    public Void visitIndexExpr(Expr.Index expr) {
+        constant(expr.bracket, TOKEN);
+        evaluate(expr.operand);
+        evaluate(expr.start);
+        if (expr.start != null && expr.end == null && expr.step == null) {
+            out.invoke(INVOKESTATIC, INTERPRETER, "index", "(" + T + O + O + ")" + O);
+            return null;
+        }
+        evaluate(expr.end);
+        evaluate(expr.step);
+        out.invoke(INVOKESTATIC, INTERPRETER, "slice", "(" + T + O + O + O + O + ")" + O);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        switch (expr.operator.type) {
+            case MINUS:
+                constant(expr.operator, TOKEN);
+                evaluate(expr.right);
+                out.invoke(INVOKESTATIC, JIT_CODE, "negate", "(" + T + O + ")" + O);
+                return null;
+            case BANG:
+                constant(expr.operator, TOKEN);
+                evaluate(expr.right);
+                out.invoke(INVOKESTATIC, JIT_CODE, "not", "(" + T + O + ")" + O);
+                return null;
+            case QUESTION:
+                constant(expr.operator, TOKEN);
+                evaluate(expr.right);
+                out.invoke(INVOKESTATIC, INTERPRETER, "runCommand", "(" + T + O + ")" + O);
+                return null;
+            case PLUS_PLUS:
+            case MINUS_MINUS:
+                if (!(expr.right instanceof Expr.Variable)) throw new Unsupported();
+                Expr.Variable variable = (Expr.Variable) expr.right;
+                constant(expr.operator, TOKEN);
+                load(variable.name, variable.global, variable.depth, variable.slot, variable.boxed);
+                out.pushDouble(expr.operator.type == TokenType.PLUS_PLUS ? 1 : -1);
+                out.invoke(INVOKESTATIC, JIT_CODE, "increment", "(" + T + O + "D)" + O);
+                out.op(DUP, 1);
+                store(variable.name, variable.global, variable.depth, variable.slot, variable.boxed);
+                return null;
+        }
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitPostExpr(Expr.Post expr) {
+        if (!(expr.left instanceof Expr.Variable)) throw new Unsupported();
+        if (expr.operator.type != TokenType.PLUS_PLUS && expr.operator.type != TokenType.MINUS_MINUS)
+            throw new Unsupported();
+        Expr.Variable variable = (Expr.Variable) expr.left;
+        int old = temp();
+        load(variable.name, variable.global, variable.depth, variable.slot, variable.boxed);
+        out.op(DUP, 1);
+        out.local(ASTORE, old);
+        constant(expr.operator, TOKEN);
+        out.local(ALOAD, old);
+        out.pushDouble(expr.operator.type == TokenType.PLUS_PLUS ? 1 : -1);
+        out.invoke(INVOKESTATIC, JIT_CODE, "increment", "(" + T + O + "D)" + O);
+        store(variable.name, variable.global, variable.depth, variable.slot, variable.boxed);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        evaluate(expr.left);
+        evaluate(expr.right);
+        int right = temp();
+        int left = temp();
+        out.local(ASTORE, right);
+        out.local(ASTORE, left);
+        Label end = new Label();
+        // Numbers proven by TypeInference need neither the guards nor the way back.
+        boolean proven = expr.left.type == TypeInference.NUMBER && expr.right.type == TypeInference.NUMBER;
+        int state = proven ? Specialization.binary(expr.operator.type, 0.0, 0.0) : expr.state;
+        boolean specialized = state >= Specialization.ADD_DOUBLE && state <= Specialization.GREATER_EQUAL_DOUBLE;
+        if (specialized) {
+            Label slow = new Label();
+            if (!proven) {
+                out.local(ALOAD, left);
+                out.type(INSTANCEOF, DOUBLE);
+                out.jump(IFEQ, slow);
+                out.local(ALOAD, right);
+                out.type(INSTANCEOF, DOUBLE);
+                out.jump(IFEQ, slow);
+            }
+            unbox(left);
+            unbox(right);
+            switch (state) {
+                case Specialization.ADD_DOUBLE:
+                    arithmetic(DADD);
+                    break;
+                case Specialization.SUBTRACT_DOUBLE:
+                    arithmetic(DSUB);
+                    break;
+                case Specialization.MULTIPLY_DOUBLE:
+                    arithmetic(DMUL);
+                    break;
+                case Specialization.DIVIDE_DOUBLE:
+                    arithmetic(DDIV);
+                    break;
+                case Specialization.MODULO_DOUBLE:
+                    arithmetic(DREM);
+                    break;
+                case Specialization.POWER_DOUBLE:
+                    out.invoke(INVOKESTATIC, "java/lang/Math", "pow", "(DD)D");
+                    out.invoke(INVOKESTATIC, DOUBLE, "valueOf", "(D)Ljava/lang/Double;");
+                    break;
+                case Specialization.LESS_DOUBLE:
+                    compare(DCMPG, IFGE, end);
+                    break;
+                case Specialization.LESS_EQUAL_DOUBLE:
+                    compare(DCMPG, IFGT, end);
+                    break;
+                case Specialization.GREATER_DOUBLE:
+                    compare(DCMPL, IFLE, end);
+                    break;
+                case Specialization.GREATER_EQUAL_DOUBLE:
+                    compare(DCMPL, IFLT, end);
+                    break;
+            }
+            if (proven) {
+                out.mark(end);
+                return null;
+            }
+            jumpToEnd(end);
+            out.mark(slow);
+            out.local(ALOAD, 0);
+            constant(expr, "ml/dent/trab/Expr$Binary");
+            out.invoke(INVOKEVIRTUAL, JIT_CODE, "deoptimize", "(Lml/dent/trab/Expr$Binary;)V");
+        }
+        constant(expr.operator, TOKEN);
+        out.local(ALOAD, left);
+        out.local(ALOAD, right);
+        out.invoke(INVOKESTATIC, INTERPRETER, "binary", "(" + T + O + O + ")" + O);
+        out.mark(end);
+        return null;
+    }
+
+    private void unbox(int local) {
+        out.local(ALOAD, local);
+        out.type(CHECKCAST, DOUBLE);
+        out.invoke(INVOKEVIRTUAL, DOUBLE, "doubleValue", "()D");
+    }
+
+    private void arithmetic(int opcode) {
+        out.op(opcode, -2);
+        out.invoke(INVOKESTATIC, DOUBLE, "valueOf", "(D)Ljava/lang/Double;");
+    }
+
+    private void compare(int compare, int unless, Label end) {
+        Label no = new Label();
+        out.op(compare, -3);
+        out.jump(unless, no);
+        out.field(GETSTATIC, BOOLEAN, "TRUE", "Ljava/lang/Boolean;");
+        jumpToEnd(end);
+        out.mark(no);
+        out.field(GETSTATIC, BOOLEAN, "FALSE", "Ljava/lang/Boolean;");
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        Label shortCircuit = new Label();
+        Label end = new Label();
+        boolean and = expr.operator.type == TokenType.AND;
+        truthy(expr.operator, expr.left);
+        out.jump(and ? IFEQ : IFNE, shortCircuit);
+        truthy(expr.operator, expr.right);
+        out.invoke(INVOKESTATIC, BOOLEAN, "valueOf", "(Z)Ljava/lang/Boolean;");
+        jumpToEnd(end);
+        out.mark(shortCircuit);
+        out.field(GETSTATIC, BOOLEAN, and ? "FALSE" : "TRUE", "Ljava/lang/Boolean;");
+        out.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitLambdaExpr(Expr.Lambda expr) {
+        throw new Unsupported();
+    }
+
+    // Compiled code makes the call; the JVM does its own inlining.
+    @Override
+    public Void visitInlineExpr(Expr.Inline expr) {
+        for (Expr binding : expr.bindings) {
+            evaluate(binding);
+            out.op(POP, -1);
+        }
+        evaluate(expr.call);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        if (expr.depth < 0) {
+            constant(expr.global, GLOBAL);
+            constant(expr.name, TOKEN);
+            out.invoke(INVOKEVIRTUAL, GLOBAL, "check", "(" + T + ")V");
+        }
+        evaluate(expr.value);
+        switch (expr.operator.type) {
+            case EQUAL:
+                break;
+            case PLUS_EQUAL:
+            case MINUS_EQUAL:
+            case STAR_EQUAL:
+            case SLASH_EQUAL:
+            case PERCENT_EQUAL:
+            case STAR_STAR_EQUAL: {
+                int value = temp();
+                out.local(ASTORE, value);
+                constant(expr.operator, TOKEN);
+                load(expr.name, expr.global, expr.depth, expr.slot, expr.boxed);
+                out.local(ALOAD, value);
+                out.invoke(INVOKESTATIC, INTERPRETER, "compound", "(" + T + O + O + ")" + O);
+                break;
+            }
+            default:
+                throw new Unsupported();
+        }
+        out.op(DUP, 1);
+        store(expr.name, expr.global, expr.depth, expr.slot, expr.boxed);
+        return null;
+    }
+}
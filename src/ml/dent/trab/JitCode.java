@@ -0,0 +1,94 @@
+package ml.dent.trab;
+
+import java.util.List;
+
+/**
+ * Base class of the JVM classes the {@link Jit} generates. A compiled function overrides the
+ * {@code callK} matching its arity; the static helpers are what the generated code calls for
+ * anything it does not emit inline.
+ */
+abstract class JitCode {
+    Object[] constants;
+    boolean invalidated;
+
+    Object call0(Interpreter interpreter, Environment closure) {
+        throw new IllegalStateException();
+    }
+
+    Object call1(Interpreter interpreter, Environment closure, Object a) {
+        throw new IllegalStateException();
+    }
+
+    Object call2(Interpreter interpreter, Environment closure, Object a, Object b) {
+        throw new IllegalStateException();
+    }
+
+    Object callN(Interpreter interpreter, Environment closure, Object[] arguments) {
+        throw new IllegalStateException();
+    }
+
+    /**
+     * Called when a type guard fails. The node stops speculating and the function goes back
+     * to the interpreter until it is hot enough to compile again.
+     */
+    void deoptimize(Expr.Binary node) {
+        node.state = Specialization.GENERIC;
+        invalidated = true;
+    }
+
+    static TrabCallable callable(Object callee, Token operator, int arguments) {
+        if (!(callee instanceof TrabCallable))
+            throw new RuntimeError(operator, "Only Lambdas, Functions, and Methods can be called");
+        TrabCallable call = (TrabCallable) callee;
+        if (arguments != call.arity())
+            throw new RuntimeError(operator, "Expected " + call.arity() + " arguments but got " + arguments);
+        return call;
+    }
+
+    static TrabCallable method(Object receiver, Interpreter interpreter, Expr.Get get, Token operator, int arguments) {
+        TrabCallable method = interpreter.method(get, receiver);
+        int arity = receiver instanceof List ? method.arity() - 1 : method.arity();
+        if (arguments != arity)
+            throw new RuntimeError(operator, "Expected " + arity + " arguments but got " + arguments);
+        return method;
+    }
+
+    static Object invoke0(TrabCallable method, Object receiver, Interpreter interpreter, Token operator) {
+        if (receiver instanceof List) return method.call1(interpreter, operator, receiver);
+        return method.call0(interpreter, operator);
+    }
+
+    static Object invoke1(TrabCallable method, Object receiver, Interpreter interpreter, Token operator, Object a) {
+        if (receiver instanceof List) return method.call2(interpreter, operator, receiver, a);
+        return method.call1(interpreter, operator, a);
+    }
+
+    static Object invoke2(TrabCallable method, Object receiver, Interpreter interpreter, Token operator,
+                          Object a, Object b) {
+        if (receiver instanceof List) return method.callN(interpreter, operator, new Object[]{receiver, a, b});
+        return method.call2(interpreter, operator, a, b);
+    }
+
+    static Object invokeN(TrabCallable method, Object receiver, Interpreter interpreter, Token operator,
+                          Object[] arguments) {
+        if (!(receiver instanceof List)) return method.callN(interpreter, operator, arguments);
+        Object[] bound = new Object[arguments.length + 1];
+        bound[0] = receiver;
+        System.arraycopy(arguments, 0, bound, 1, arguments.length);
+        return method.callN(interpreter, operator, bound);
+    }
+
+    static Object negate(Token operator, Object o) {
+        Interpreter.checkNumberOperand(operator, o);
+        return -1.0 * (Double) o;
+    }
+
+    static Object not(Token operator, Object o) {
+        return !Interpreter.isTruthy(operator, o);
+    }
+
+    static Object increment(Token operator, Object o, double delta) {
+        Interpreter.checkNumberOperand(operator, o);
+        return (Double) o + delta;
+    }
+}
@@ -0,0 +1,210 @@
+package ml.dent.trab;
+
+import ml.dent.trab.Expr.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds what the bound of a {@link CountedLoop} depends on that the loop cannot change, so the
+ * interpreter can work it out once instead of on every iteration. A variable is invariant when
+ * the loop neither assigns nor declares it and either calls nothing or it is a local of a
+ * function that creates no closure, which no code but that function's own can reach.
+ * <p>
+ * A bound made of invariant variables, numbers and arithmetic is evaluated once. For
+ * {@code v.length()} on an invariant {@code v} only the receiver is, since a call in the loop
+ * may still grow or shrink the list.
+ * <p>
+ * Keeps track of scopes the way the {@link Resolver} does to know where each name is declared.
+ * Runs after {@link CountedLoops}.
+ */
+class LoopInvariants extends TreeRewriter {
+    private static class Scope {
+        final Set<String> names = new HashSet<>();
+        // How many functions enclose the scope; 0 for top level code.
+        final int function;
+
+        Scope(int function) {
+            this.function = function;
+        }
+    }
+
+    /**
+     * Collects the names a subtree writes, and whether it calls or creates anything.
+     */
+    private static class Effects extends TreeRewriter {
+        final Set<String> writes = new HashSet<>();
+        int calls;
+        int closures;
+
+        @Override
+        public Expr visitAssignExpr(Assign expr) {
+            writes.add(expr.name.lexeme);
+            return super.visitAssignExpr(expr);
+        }
+
+        @Override
+        public Expr visitPostExpr(Post expr) {
+            if (expr.left instanceof Variable) writes.add(((Variable) expr.left).name.lexeme);
+            return super.visitPostExpr(expr);
+        }
+
+        @Override
+        public Expr visitUnaryExpr(Unary expr) {
+            TokenType type = expr.operator.type;
+            if ((type == TokenType.PLUS_PLUS || type == TokenType.MINUS_MINUS) && expr.right instanceof Variable)
+                writes.add(((Variable) expr.right).name.lexeme);
+            return super.visitUnaryExpr(expr);
+        }
+
+        @Override
+        public Expr visitCallExpr(Call expr) {
+            calls++;
+            return super.visitCallExpr(expr);
+        }
+
+        @Override
+        public Stmt visitVarStmt(Stmt.Var stmt) {
+            writes.add(stmt.name.lexeme);
+            return super.visitVarStmt(stmt);
+        }
+
+        @Override
+        public Expr visitLambdaExpr(Lambda expr) {
+            closures++;
+            return expr;
+        }
+
+        @Override
+        public Stmt visitClassStmt(Stmt.Class stmt) {
+            writes.add(stmt.name.lexeme);
+            closures++;
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitFunctionStmt(Stmt.Function stmt) {
+            writes.add(stmt.name.lexeme);
+            closures++;
+            return stmt;
+        }
+    }
+
+    private final List<Scope> scopes = new ArrayList<>();
+    // Whether each enclosing function creates no closure, innermost last.
+    private final List<Boolean> closed = new ArrayList<>();
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        scopes.add(new Scope(closed.size()));
+        super.visitBlockStmt(stmt);
+        scopes.remove(scopes.size() - 1);
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        super.visitVarStmt(stmt);
+        declare(stmt.name);
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        declare(stmt.name);
+        function(stmt.arguments, stmt.body);
+        return stmt;
+    }
+
+    @Override
+    public Expr visitLambdaExpr(Lambda expr) {
+        function(expr.arguments, expr.right);
+        return expr;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        declare(stmt.name);
+        scopes.add(new Scope(closed.size()));
+        for (Stmt.Function method : stmt.methods) declare(method.name);
+        for (Stmt.Function method : stmt.methods) function(method.arguments, method.body);
+        scopes.remove(scopes.size() - 1);
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        if (stmt.counted != null) mark(stmt);
+        return super.visitWhileStmt(stmt);
+    }
+
+    private void function(List<Token> arguments, Stmt body) {
+        Effects effects = new Effects();
+        effects.rewrite(body instanceof Stmt.Block ? ((Stmt.Block) body).statements : List.of(body));
+        closed.add(effects.closures == 0);
+        Scope scope = new Scope(closed.size());
+        for (Token argument : arguments) scope.names.add(argument.lexeme);
+        scopes.add(scope);
+        rewriteBody(body);
+        scopes.remove(scopes.size() - 1);
+        closed.remove(closed.size() - 1);
+    }
+
+    // Top level declarations are globals, which any function can change.
+    private void declare(Token name) {
+        if (!scopes.isEmpty()) scopes.get(scopes.size() - 1).names.add(name.lexeme);
+    }
+
+    private void mark(Stmt.While loop) {
+        Effects effects = new Effects();
+        effects.rewrite(loop.condition);
+        effects.rewrite(loop.body);
+        CountedLoop counted = loop.counted;
+        if (invariant(counted.bound, effects)) {
+            counted.invariantBound = true;
+        } else if (counted.bound instanceof Call && ((Call) counted.bound).arguments.isEmpty()
+                && ((Call) counted.bound).left instanceof Get) {
+            Get get = (Get) ((Call) counted.bound).left;
+            if (get.name.lexeme.equals("length") && get.left instanceof Variable && invariant(get.left, effects))
+                counted.sizeOf = (Variable) get.left;
+        }
+    }
+
+    /**
+     * Whether an expression gives the same number, or fails the same way, every time the loop
+     * evaluates it.
+     */
+    private boolean invariant(Expr expr, Effects loop) {
+        if (expr instanceof Literal) return ((Literal) expr).value instanceof Double;
+        if (expr instanceof Variable) return invariant(((Variable) expr).name.lexeme, loop);
+        if (expr instanceof Grouping) return invariant(((Grouping) expr).expression, loop);
+        if (expr instanceof Unary)
+            return ((Unary) expr).operator.type == TokenType.MINUS && invariant(((Unary) expr).right, loop);
+        if (!(expr instanceof Binary)) return false;
+        Binary binary = (Binary) expr;
+        switch (binary.operator.type) {
+            case PLUS:
+            case MINUS:
+            case STAR:
+            case SLASH:
+            case PERCENT:
+            case STAR_STAR:
+                return invariant(binary.left, loop) && invariant(binary.right, loop);
+            default:
+                return false;
+        }
+    }
+
+    private boolean invariant(String name, Effects loop) {
+        if (loop.writes.contains(name)) return false;
+        if (loop.calls == 0) return true;
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Scope scope = scopes.get(i);
+            if (scope.names.contains(name))
+                return scope.function > 0 && scope.function == closed.size() && closed.get(closed.size() - 1);
+        }
+        return false;
+    }
+}
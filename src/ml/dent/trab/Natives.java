@@ -0,0 +1,177 @@
+package ml.dent.trab;
+
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builtin functions shared by every execution engine. None of them touch the
+ * interpreter instance they are handed, so the bytecode VM can call them too.
+ */
+class Natives {
+    /**
+     * Every builtin an engine can reach, by the name a {@link HeapImage} records it under, with
+     * print writing to {@code out}.
+     */
+    static Map<String, Object> table(PrintStream out) {
+        Map<String, Object> table = new LinkedHashMap<>();
+        table.put("print", print(out));
+        table.put("clock", CLOCK);
+        table.put("InternalList", INTERNAL_LIST);
+        table.put("InternalList.add", LIST_ADD);
+        table.put("InternalList.set", LIST_SET);
+        table.put("InternalList.length", LIST_LENGTH);
+        return table;
+    }
+
+    /**
+     * The print function of an engine, writing to that engine's output.
+     */
+    static TrabCallable print(PrintStream out) {
+        return new TrabCallable() {
+
+            @Override
+            public int arity() {
+                return 1;
+            }
+
+            @Override
+            public Object call1(Interpreter interpreter, Token callee, Object a) {
+                out.println(Interpreter.stringify(a));
+                return new TrabNull();
+            }
+
+            @Override
+            public Object callN(Interpreter interpreter, Token callee, Object[] arguments) {
+                return call1(interpreter, callee, arguments[0]);
+            }
+
+            @Override
+            public String toString() {
+                return "<native fn>";
+            }
+        };
+    }
+
+    static final TrabCallable CLOCK = new TrabCallable() {
+
+        @Override
+        public int arity() {
+            return 0;
+        }
+
+        @Override
+        public Object call0(Interpreter interpreter, Token callee) {
+            return (double) System.currentTimeMillis();
+        }
+
+        @Override
+        public Object callN(Interpreter interpreter, Token callee, Object[] arguments) {
+            return call0(interpreter, callee);
+        }
+
+        @Override
+        public String toString() {
+            return "<native fn>";
+        }
+    };
+
+    static final TrabCallable LIST_ADD = new TrabCallable() {
+
+        @Override
+        public int arity() {
+            return 2;
+        }
+
+        @Override
+        public Object call2(Interpreter interpreter, Token callee, Object a, Object b) {
+            Interpreter.checkListOperand(callee, a);
+            List list = (List) a;
+            list.add(b);
+            return new TrabNull();
+        }
+
+        @Override
+        public Object callN(Interpreter interpreter, Token callee, Object[] arguments) {
+            return call2(interpreter, callee, arguments[0], arguments[1]);
+        }
+
+        @Override
+        public String toString() {
+            return "<native fn>";
+        }
+    };
+
+    static final TrabCallable LIST_SET = new TrabCallable() {
+
+        @Override
+        public int arity() {
+            return 3;
+        }
+
+        @Override
+        public Object callN(Interpreter interpreter, Token callee, Object[] arguments) {
+            Interpreter.checkListOperand(callee, arguments[0]);
+            Interpreter.checkNumberOperand(callee, arguments[1]);
+            List list = (List) arguments[0];
+            int index = (int) (double) arguments[1];
+            Object element = arguments[2];
+            list.set(index, element);
+            return new TrabNull();
+        }
+
+        @Override
+        public String toString() {
+            return "<native fn>";
+        }
+    };
+
+    static final TrabCallable LIST_LENGTH = new TrabCallable() {
+
+        @Override
+        public int arity() {
+            return 1;
+        }
+
+        @Override
+        public Object call1(Interpreter interpreter, Token callee, Object a) {
+            Interpreter.checkListOperand(callee, a);
+            List list = (List) a;
+            return (Double) (double) list.size();
+        }
+
+        @Override
+        public Object callN(Interpreter interpreter, Token callee, Object[] arguments) {
+            return call1(interpreter, callee, arguments[0]);
+        }
+
+        @Override
+        public String toString() {
+            return "<native fn>";
+        }
+    };
+
+    /**
+     * Methods of the builtin list type. Each takes the list as its first argument.
+     */
+    static final TrabClassable INTERNAL_LIST = new TrabClassable() {
+        @Override
+        public TrabCallable getFunction(String s) {
+            switch (s) {
+                case "add":
+                    return LIST_ADD;
+                case "set":
+                    return LIST_SET;
+                case "length":
+                    return LIST_LENGTH;
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return "<native class>";
+        }
+    };
+}
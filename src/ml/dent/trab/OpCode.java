@@ -0,0 +1,90 @@
+package ml.dent.trab;
+
+/**
+ * Instruction set of the bytecode VM. Operands follow the opcode in the chunk;
+ * two byte operands are stored big endian.
+ */
+final class OpCode {
+    // Constants and stack manipulation.
+    static final byte CONSTANT = 0;        // u2 constant index
+    static final byte POP = 1;
+    static final byte DUP = 2;
+
+    // Variables.
+    static final byte GET_LOCAL = 3;       // u1 slot
+    static final byte SET_LOCAL = 4;       // u1 slot
+    static final byte GET_UPVALUE = 5;     // u1 index
+    static final byte SET_UPVALUE = 6;     // u1 index
+    static final byte GET_GLOBAL = 7;      // u2 name constant
+    static final byte SET_GLOBAL = 8;      // u2 name constant
+    static final byte DEFINE_GLOBAL = 9;   // u2 name constant
+    static final byte DEFINE_VAR = 10;     // u2 name constant, fails if already defined
+
+    // Operators.
+    static final byte ADD = 11;
+    static final byte SUBTRACT = 12;
+    static final byte MULTIPLY = 13;
+    static final byte DIVIDE = 14;
+    static final byte MODULO = 15;
+    static final byte POWER = 16;
+    static final byte NEGATE = 17;
+    static final byte NOT = 18;
+    static final byte EQUAL = 19;
+    static final byte LESS = 20;
+    static final byte LESS_EQUAL = 21;
+    static final byte GREATER = 22;
+    static final byte GREATER_EQUAL = 23;
+    static final byte INCREMENT = 24;
+    static final byte DECREMENT = 25;
+    static final byte CHECK_BOOL = 26;
+    static final byte COMMAND = 27;
+
+    // Control flow.
+    static final byte JUMP = 28;           // u2 forward offset
+    static final byte JUMP_IF_FALSE = 29;  // u2 forward offset, pops the condition
+    static final byte LOOP = 30;           // u2 backward offset
+
+    // Functions and classes.
+    static final byte CALL = 31;           // u1 argument count
+    static final byte INVOKE = 32;         // u2 name constant, u1 argument count
+    static final byte GET_PROPERTY = 33;   // u2 name constant
+    static final byte CLOSURE = 34;        // u2 function constant, then u1 isLocal, u1 index per upvalue
+    static final byte CLOSE_UPVALUE = 35;
+    static final byte RETURN = 36;
+    static final byte CLASS = 37;          // u2 name constant, u1 method count
+
+    // Lists and strings.
+    static final byte LIST = 38;           // u2 element count
+    static final byte INDEX = 39;
+    static final byte SLICE = 40;          // u1 mask of present start/end/step operands
+    static final byte INTERPOLATE = 41;    // u2 part count
+
+    static final byte REPL_PRINT = 42;
+
+    // Superinstructions for common statement and loop shapes.
+    static final byte STORE_LOCAL = 43;              // u1 slot, pops the value
+    static final byte INC_LOCAL = 44;                // u1 slot, s1 delta
+    static final byte JUMP_UNLESS_LESS = 45;         // u2 forward offset, pops both operands
+    static final byte JUMP_UNLESS_LESS_EQUAL = 46;   // u2 forward offset, pops both operands
+    static final byte JUMP_UNLESS_GREATER = 47;      // u2 forward offset, pops both operands
+    static final byte JUMP_UNLESS_GREATER_EQUAL = 48; // u2 forward offset, pops both operands
+
+    static final byte TAIL_CALL = 49;      // u1 argument count, reuses the frame for a closure
+
+    private static final String[] names = {
+            "CONSTANT", "POP", "DUP", "GET_LOCAL", "SET_LOCAL", "GET_UPVALUE", "SET_UPVALUE", "GET_GLOBAL",
+            "SET_GLOBAL", "DEFINE_GLOBAL", "DEFINE_VAR", "ADD", "SUBTRACT", "MULTIPLY", "DIVIDE", "MODULO",
+            "POWER", "NEGATE", "NOT", "EQUAL", "LESS", "LESS_EQUAL", "GREATER", "GREATER_EQUAL", "INCREMENT",
+            "DECREMENT", "CHECK_BOOL", "COMMAND", "JUMP", "JUMP_IF_FALSE", "LOOP", "CALL", "INVOKE",
+            "GET_PROPERTY", "CLOSURE", "CLOSE_UPVALUE", "RETURN", "CLASS", "LIST", "INDEX", "SLICE",
+            "INTERPOLATE", "REPL_PRINT", "STORE_LOCAL", "INC_LOCAL", "JUMP_UNLESS_LESS", "JUMP_UNLESS_LESS_EQUAL",
+            "JUMP_UNLESS_GREATER", "JUMP_UNLESS_GREATER_EQUAL", "TAIL_CALL"
+    };
+
+    private OpCode() {
+    }
+
+    static String name(byte op) {
+        return op >= 0 && op < names.length ? names[op] : "UNKNOWN_" + op;
+    }
+}
@@ -0,0 +1,45 @@
+package ml.dent.trab;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Rewrites parsed programs before they are resolved, for every engine. Each pass is a
+ * {@link TreeRewriter} and they run in order, so a pass sees what the earlier ones produced.
+ */
+final class Optimizer {
+    private static final List<Supplier<TreeRewriter>> PASSES = List.of(
+            ConstantFolder::new,
+            AlgebraicSimplifier::new,
+            DeadBranches::new,
+            CommonSubexpressions::new);
+
+    // Passes that only mark nodes for later stages. The marks are not part of a saved
+    // program, so these run again on one restored from a HeapImage.
+    private static final List<Supplier<TreeRewriter>> ANALYSES = List.of(
+            ScopeElision::new,
+            CountedLoops::new,
+            LoopInvariants::new);
+
+    private Optimizer() {
+    }
+
+    static List<Stmt> optimize(List<Stmt> program) {
+        return optimize(program, null);
+    }
+
+    /**
+     * Optimizes a program, also copying small functions into their callers when given the
+     * {@link Inliner} of the session running it.
+     */
+    static List<Stmt> optimize(List<Stmt> program, Inliner inliner) {
+        for (Supplier<TreeRewriter> pass : PASSES) program = pass.get().rewrite(program);
+        if (inliner != null) program = inliner.inline(program);
+        analyze(program);
+        return program;
+    }
+
+    static void analyze(List<Stmt> program) {
+        for (Supplier<TreeRewriter> pass : ANALYSES) pass.get().rewrite(program);
+    }
+}
@@ -0,0 +1,61 @@
+package ml.dent.trab;
+
+/**
+ * How a {@link Session} runs its programs: the engine, what it reports and which optimizations
+ * it makes. Options are immutable and each session keeps its own, so sessions running at the
+ * same time can differ and nothing one caller sets reaches another's.
+ */
+public final class Options {
+    public static final Options DEFAULT = new Options(false, false, true, true, false, 1 << 16);
+
+    final boolean useVm;
+    final boolean verbose;
+    final boolean jit;
+    final boolean optimize;
+    final boolean dumpAst;
+    // How deeply calls may nest before a program fails with a stack overflow, in either engine.
+    final int maxDepth;
+
+    private Options(boolean useVm, boolean verbose, boolean jit, boolean optimize, boolean dumpAst, int maxDepth) {
+        this.useVm = useVm;
+        this.verbose = verbose;
+        this.jit = jit;
+        this.optimize = optimize;
+        this.dumpAst = dumpAst;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Runs programs on the bytecode VM rather than the interpreter.
+     */
+    public Options vm(boolean useVm) {
+        return new Options(useVm, verbose, jit, optimize, dumpAst, maxDepth);
+    }
+
+    /**
+     * Also reports what was inlined and JIT compiled, and dumps the VM's bytecode.
+     */
+    public Options verbose(boolean verbose) {
+        return new Options(useVm, verbose, jit, optimize, dumpAst, maxDepth);
+    }
+
+    public Options jit(boolean jit) {
+        return new Options(useVm, verbose, jit, optimize, dumpAst, maxDepth);
+    }
+
+    public Options optimize(boolean optimize) {
+        return new Options(useVm, verbose, jit, optimize, dumpAst, maxDepth);
+    }
+
+    /**
+     * Prints each program's tree after optimization, before it runs.
+     */
+    public Options dumpAst(boolean dumpAst) {
+        return new Options(useVm, verbose, jit, optimize, dumpAst, maxDepth);
+    }
+
+    public Options maxDepth(int maxDepth) {
+        if (maxDepth < 1) throw new IllegalArgumentException("maxDepth must be positive");
+        return new Options(useVm, verbose, jit, optimize, dumpAst, maxDepth);
+    }
+}
@@ -0,0 +1,50 @@
+package ml.dent.trab;
+
+/**
+ * Times the parser on generated scripts of growing size. Parse time per token should stay
+ * flat as the input grows. Usage: ParseBench [largest token count]
+ */
+class ParseBench {
+    public static void main(String[] args) {
+        int largest = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        Diagnostics diagnostics = new Diagnostics(System.out);
+        String warmup = script(100000);
+        for (int i = 0; i < 30; i++) new Parser(new Scanner(warmup, diagnostics).scan(), diagnostics).parse();
+        for (int target = 10000; target <= largest; target *= 10) {
+            String source = script(target);
+            int iterations = Math.max(1, 10000000 / target);
+            long elapsed = 0;
+            int tokens = 0;
+            for (int i = 0; i < iterations; i++) {
+                TokenBuffer buffer = new Scanner(source, diagnostics).scan();
+                tokens = buffer.size();
+                long start = System.nanoTime();
+                new Parser(buffer, diagnostics).parse();
+                elapsed += System.nanoTime() - start;
+            }
+            System.out.printf("%8d tokens  %7.2f ms  %6.1f ns/token%n", tokens, elapsed / 1e6 / iterations,
+                    (double) elapsed / iterations / tokens);
+        }
+    }
+
+    /**
+     * Functions with large bodies, long argument lists and list literals, about {@code tokens}
+     * tokens in all.
+     */
+    static String script(int tokens) {
+        StringBuilder buf = new StringBuilder();
+        int count = 0;
+        for (int f = 0; count < tokens; f++) {
+            buf.append("fn f").append(f).append("(a, b) {\n");
+            count += 9;
+            for (int i = 0; i < 200 && count < tokens; i++) {
+                buf.append("    var v").append(i).append(" = g(a, b, ").append(i).append(", [a, b, \"s${a}\"]) * 2\n");
+                count += 26;
+                buf.append("    if (v").append(i).append(" > b) a += v").append(i).append(" else b--\n");
+                count += 13;
+            }
+            buf.append("}\n");
+        }
+        return buf.toString();
+    }
+}
@@ -1,7 +1,6 @@
 package ml.dent.trab;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 
 import static ml.dent.trab.TokenType.*;
@@ -10,15 +9,17 @@ public class Parser {
     private static class ParseError extends RuntimeException {
     }
 
-    private List<Token> tokens;
+    private final TokenBuffer tokens;
+    private final Diagnostics diagnostics;
     private int cur;
 
-    Parser(List<Token> tokens) {
+    Parser(TokenBuffer tokens, Diagnostics diagnostics) {
         this.tokens = tokens;
+        this.diagnostics = diagnostics;
     }
 
     List<Stmt> parse() {
-        LinkedList<Stmt> statements = new LinkedList<>();
+        List<Stmt> statements = new ArrayList<>();
         while (!isAtEnd()) {
             try {
                 statements.add(statement());
@@ -33,7 +34,7 @@ public class Parser {
     private void synchronise() {
         while (!isAtEnd()) {
             advance();
-            if (previous().type == NEWLINE)
+            if (tokens.type(cur - 1) == NEWLINE)
                 return;
         }
     }
@@ -70,7 +71,7 @@ public class Parser {
         while (!match(RIGHT_BRACKET) && !isAtEnd()) {
             methods.add(function());
         }
-        if (isAtEnd() && previous().type != RIGHT_BRACKET)
+        if (isAtEnd() && tokens.type(cur - 1) != RIGHT_BRACKET)
             throw new RuntimeError(previous(), "Expect '}' after class declaration");
         return new Stmt.Class(name, methods);
     }
@@ -116,9 +117,7 @@ public class Parser {
         Stmt block;
         if (increment != null) block = new Stmt.Block(List.<Stmt>of(body, new Stmt.Expression(increment)));
         else block = body;
-        Stmt con;
-        if (condition == null) con = new Stmt.Expression(new Expr.Literal(true));
-        else con = new Stmt.Expression(condition);
+        if (condition == null) condition = new Expr.Literal(true);
         Stmt whil = new Stmt.While(forToken, condition, block);
         if (initializer != null) return new Stmt.Block(List.<Stmt>of(initializer, whil));
         else return whil;
@@ -160,8 +159,8 @@ public class Parser {
     }
 
     private Stmt block() {
-        List<Stmt> statements = new LinkedList<>();
-        while (peek().type != RIGHT_BRACKET) {
+        List<Stmt> statements = new ArrayList<>();
+        while (!check(RIGHT_BRACKET)) {
             statements.add(statement());
         }
         consume(RIGHT_BRACKET, "Expect '}' after block declaration");
@@ -189,7 +188,7 @@ public class Parser {
     private Expr lambda() {
         if (match(BACKSLASH)) {
             Token operator = previous();
-            List<Token> arguments = new LinkedList<>();
+            List<Token> arguments = new ArrayList<>();
             do {
                 if (match(IDENTIFIER))
                     arguments.add(previous());
@@ -285,7 +284,7 @@ public class Parser {
         while (true) {
             if (match(LEFT_PAREN)) {
                 Token paren = previous();
-                LinkedList<Expr> args = new LinkedList<>();
+                List<Expr> args = new ArrayList<>();
                 if (!match(RIGHT_PAREN)) {
                     do {
                         args.add(expression());
@@ -350,7 +349,7 @@ public class Parser {
     }
 
     private Expr string() {
-        List<Expr> parts = new LinkedList<>();
+        List<Expr> parts = new ArrayList<>();
         while (!isAtEnd() && !match(QUOTE)) {
             if (match(STRING_PART)) {
                 parts.add(new Expr.Literal(previous().literal));
@@ -365,13 +364,13 @@ public class Parser {
             } else
                 throw error(peek(), "Malformed String");
         }
-        if (previous().type != QUOTE)
-            Trab.error(previous(), "Unclosed String");
+        if (tokens.type(cur - 1) != QUOTE)
+            diagnostics.error(previous(), "Unclosed String");
         return new Expr.TrabString(parts);
     }
 
     private Expr list(Token start) {
-        List<Expr> values = new LinkedList<>();
+        List<Expr> values = new ArrayList<>();
         if(match(RIGHT_BRACE)) return new Expr.TrabList(values, start);
         do {
             values.add(expression());
@@ -381,7 +380,7 @@ public class Parser {
     }
 
     private ParseError error(Token token, String message) {
-        Trab.error(token, message);
+        diagnostics.error(token, message);
         return new ParseError();
     }
 
@@ -394,11 +393,11 @@ public class Parser {
     }
 
     private boolean check(TokenType type) {
-        return peek().type == type;
+        return tokens.type(cur) == type;
     }
 
-    private Token advance() {
-        return tokens.get(cur++);
+    private void advance() {
+        cur++;
     }
 
     private Token consume(TokenType type, String error) {
@@ -0,0 +1,606 @@
+package ml.dent.trab;
+
+import ml.dent.trab.Expr.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Static pass run between the {@link Parser} and the {@link Interpreter}. Every
+ * local variable gets a slot in the environment of the scope declaring it and
+ * every use records how many environments up that scope is. Names that are not
+ * found in any enclosing scope are globals and keep a depth of -1; given the
+ * interpreter's table of globals, each such use is also handed the cell for its name.
+ * <p>
+ * The scopes mirror the environments the interpreter creates: one per block,
+ * one per class body and one per call of a function or lambda holding its
+ * parameters and the top level of its body. A call frame that no nested
+ * function or class can capture is marked so it can be pooled.
+ * <p>
+ * A block marked flat by {@link ScopeElision} still scopes its names, but its
+ * variables take slots of the environment it runs in, which are reused once
+ * the block ends. At the top level there is no such environment, so a flat
+ * block that declares anything there is given its own after all.
+ * <p>
+ * Lambdas are flat closures. Each gets a scope of its own between its parameters
+ * and the code around it, holding only the variables it uses from outside, which
+ * are copied into a fresh environment when the lambda is made. A variable that a
+ * lambda could capture and something assigns lives in a {@link ml.dent.trab.runtime.Box}
+ * instead, which its scope and the lambdas share.
+ * <p>
+ * A function, lambda or class body may use a name that its block or function declares further
+ * down, as in {@code var g = \x -> h(x)} followed by {@code var h = ...}. Such names are
+ * declared when the scope starts, but only code in a nested function, lambda or method sees
+ * them before their declaration; code running straight through still finds what the name means
+ * outside. A name that a lambda captures that way is boxed when the scope is entered, and its
+ * declaration is marked hoisted so it fills that box.
+ * <p>
+ * A function or lambda that returns a call, as in {@code return f(n - 1)}, has that return
+ * marked as a tail call, which the engines make without keeping the caller's frame.
+ * Calls of methods through {@code .} are not marked.
+ */
+class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final List<Scope> scopes = new ArrayList<>();
+    private final Diagnostics diagnostics;
+    private final Map<String, Global> globals;
+    private boolean frameCaptured;
+    // The names whose variables are boxed in the function being resolved; set for the top
+    // level by the first call of resolve.
+    private Set<String> boxable;
+    private int[] boxes;
+    // Whether a return here leaves a function, which is not so at the top level or in the copy
+    // of a body the Inliner made.
+    private boolean returnsFromFunction;
+
+    private static class Scope {
+        final Map<String, Integer> names = new HashMap<>();
+        final Set<String> boxed = new HashSet<>();
+        // The names declared ahead whose declaration has not been reached.
+        final Set<String> ahead = new HashSet<>();
+        // For the scope of a lambda's captures, the depth and slot, seen from where the lambda
+        // is made, of each variable it captures.
+        List<Integer> captures;
+        // The scope of the environment holding the variables: this one, or for a flat block
+        // the scope it is flattened into.
+        final Scope owner;
+        final int start;
+        int next;
+        int size;
+        // Whether this holds the parameters of a function or lambda.
+        boolean function;
+
+        Scope(Scope owner) {
+            this.owner = owner == null ? this : owner;
+            start = owner == null ? 0 : owner.next;
+        }
+    }
+
+    /**
+     * Where a name was found: how many environments up, its slot there, and whether the slot
+     * holds a box.
+     */
+    private static class Binding {
+        final int depth;
+        final int slot;
+        final boolean boxed;
+
+        Binding(int depth, int slot, boolean boxed) {
+            this.depth = depth;
+            this.slot = slot;
+            this.boxed = boxed;
+        }
+    }
+
+    /**
+     * Finds the names in a function body, or at the top level, that a lambda inside it uses
+     * and that something assigns.
+     */
+    private static class Captures extends TreeRewriter {
+        final Set<String> used = new HashSet<>();
+        final Set<String> assigned = new HashSet<>();
+        private int lambdas;
+
+        static Set<String> boxable(List<Stmt> body) {
+            Captures captures = new Captures();
+            captures.rewrite(body);
+            captures.used.retainAll(captures.assigned);
+            return captures.used;
+        }
+
+        @Override
+        public Expr visitVariableExpr(Variable expr) {
+            if (lambdas > 0) used.add(expr.name.lexeme);
+            return expr;
+        }
+
+        @Override
+        public Expr visitAssignExpr(Assign expr) {
+            if (lambdas > 0) used.add(expr.name.lexeme);
+            assigned.add(expr.name.lexeme);
+            return super.visitAssignExpr(expr);
+        }
+
+        @Override
+        public Expr visitPostExpr(Post expr) {
+            if (expr.left instanceof Variable) assigned.add(((Variable) expr.left).name.lexeme);
+            return super.visitPostExpr(expr);
+        }
+
+        @Override
+        public Expr visitUnaryExpr(Unary expr) {
+            TokenType type = expr.operator.type;
+            if ((type == TokenType.PLUS_PLUS || type == TokenType.MINUS_MINUS) && expr.right instanceof Variable)
+                assigned.add(((Variable) expr.right).name.lexeme);
+            return super.visitUnaryExpr(expr);
+        }
+
+        @Override
+        public Expr visitLambdaExpr(Lambda expr) {
+            lambdas++;
+            super.visitLambdaExpr(expr);
+            lambdas--;
+            return expr;
+        }
+    }
+
+    /**
+     * Finds the names that code in a nested function, lambda or method uses before the block
+     * or body around it declares them, and which of those a lambda uses.
+     */
+    private static class Ahead extends TreeRewriter {
+        final Set<String> used = new HashSet<>();
+        final Set<String> captured = new HashSet<>();
+        private int functions;
+        private int lambdas;
+
+        private void use(String name) {
+            if (functions > 0) used.add(name);
+            if (lambdas > 0) captured.add(name);
+        }
+
+        @Override
+        public Expr visitVariableExpr(Variable expr) {
+            use(expr.name.lexeme);
+            return expr;
+        }
+
+        @Override
+        public Expr visitAssignExpr(Assign expr) {
+            use(expr.name.lexeme);
+            return super.visitAssignExpr(expr);
+        }
+
+        @Override
+        public Expr visitLambdaExpr(Lambda expr) {
+            functions++;
+            lambdas++;
+            super.visitLambdaExpr(expr);
+            lambdas--;
+            functions--;
+            return expr;
+        }
+
+        @Override
+        public Stmt visitFunctionStmt(Stmt.Function stmt) {
+            functions++;
+            super.visitFunctionStmt(stmt);
+            functions--;
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitClassStmt(Stmt.Class stmt) {
+            functions++;
+            super.visitClassStmt(stmt);
+            functions--;
+            return stmt;
+        }
+    }
+
+    Resolver(Diagnostics diagnostics) {
+        this(diagnostics, null);
+    }
+
+    Resolver(Diagnostics diagnostics, Map<String, Global> globals) {
+        this.diagnostics = diagnostics;
+        this.globals = globals;
+    }
+
+    void resolve(List<Stmt> statements) {
+        if (boxable == null) boxable = Captures.boxable(statements);
+        for (Stmt stmt : statements) resolve(stmt);
+    }
+
+    private void resolve(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void resolve(Expr expr) {
+        if (expr != null) expr.accept(this);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (scopes.isEmpty() && !ScopeElision.declaresNothing(stmt)) stmt.flat = false;
+        if (stmt.flat && scopes.isEmpty()) {
+            resolve(stmt.statements);
+            return null;
+        }
+        if (stmt.flat) scopes.add(new Scope(scopes.get(scopes.size() - 1).owner));
+        else beginScope();
+        stmt.boxes = array(declareAhead(stmt.statements));
+        resolve(stmt.statements);
+        stmt.slots = endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        boolean ahead = isAhead(stmt.name);
+        stmt.slot = declare(stmt.name);
+        stmt.boxed = isBoxed(stmt.name);
+        stmt.hoisted = ahead && stmt.boxed;
+        beginScope();
+        for (Stmt.Function method : stmt.methods) {
+            method.slot = declare(method.name);
+            method.boxed = isBoxed(method.name);
+        }
+        for (Stmt.Function method : stmt.methods) {
+            frameCaptured = false;
+            method.slots = resolveFunction(method.arguments, method.body);
+            method.boxes = boxes;
+            method.frameCaptured = frameCaptured;
+        }
+        stmt.slots = endScope();
+        frameCaptured = true;
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintableExpressionStmt(Stmt.PrintableExpression stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        resolve(stmt.condition);
+        resolve(stmt.thenBranch);
+        if (stmt.elseBranch != null) resolve(stmt.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        resolve(stmt.value);
+        stmt.tail = returnsFromFunction && stmt.value instanceof Call && !(((Call) stmt.value).left instanceof Get);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        resolve(stmt.initializer);
+        boolean ahead = isAhead(stmt.name);
+        stmt.slot = declare(stmt.name);
+        stmt.boxed = isBoxed(stmt.name);
+        stmt.hoisted = ahead && stmt.boxed;
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        resolve(stmt.condition);
+        resolve(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        boolean ahead = isAhead(stmt.name);
+        stmt.slot = declare(stmt.name);
+        stmt.boxed = isBoxed(stmt.name);
+        stmt.hoisted = ahead && stmt.boxed;
+        frameCaptured = false;
+        stmt.slots = resolveFunction(stmt.arguments, stmt.body);
+        stmt.boxes = boxes;
+        stmt.frameCaptured = frameCaptured;
+        // The new closure keeps every enclosing environment alive.
+        frameCaptured = true;
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitTrabStringExpr(TrabString expr) {
+        for (Expr e : expr.values) resolve(e);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Variable expr) {
+        Binding binding = bind(expr.name.lexeme, scopes.size() - 1, false);
+        if (binding == null) {
+            expr.global = global(expr.name);
+            return null;
+        }
+        expr.depth = binding.depth;
+        expr.slot = binding.slot;
+        expr.boxed = binding.boxed;
+        return null;
+    }
+
+    @Override
+    public Void visitTrabListExpr(TrabList expr) {
+        for (Expr e : expr.values) resolve(e);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Grouping expr) {
+        resolve(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Call expr) {
+        resolve(expr.left);
+        for (Expr e : expr.arguments) resolve(e);
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Get expr) {
+        resolve(expr.left);
+        return null;
+    }
+
+    @Override
+    public Void visitIndexExpr(Index expr) {
+        resolve(expr.operand);
+        resolve(expr.start);
+        resolve(expr.end);
+        resolve(expr.step);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Unary expr) {
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitPostExpr(Post expr) {
+        resolve(expr.left);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Binary expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Logical expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitLambdaExpr(Lambda expr) {
+        Scope captured = new Scope(null);
+        captured.captures = new ArrayList<>();
+        scopes.add(captured);
+        boolean enclosing = frameCaptured;
+        frameCaptured = false;
+        expr.slots = resolveFunction(expr.arguments, expr.right);
+        expr.boxes = boxes;
+        expr.frameCaptured = frameCaptured;
+        // What the lambda needs is copied out, so the frame around it can still be pooled.
+        frameCaptured = enclosing;
+        scopes.remove(scopes.size() - 1);
+        expr.captures = new int[captured.captures.size()];
+        for (int i = 0; i < expr.captures.length; i++) expr.captures[i] = captured.captures.get(i);
+        return null;
+    }
+
+    @Override
+    public Void visitInlineExpr(Inline expr) {
+        resolve(expr.target);
+        for (Expr binding : expr.bindings) resolve(binding);
+        resolve(expr.call);
+        boolean returns = returnsFromFunction;
+        returnsFromFunction = false;
+        resolve(expr.body);
+        returnsFromFunction = returns;
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Assign expr) {
+        resolve(expr.value);
+        Binding binding = bind(expr.name.lexeme, scopes.size() - 1, false);
+        if (binding == null) {
+            expr.global = global(expr.name);
+            return null;
+        }
+        expr.depth = binding.depth;
+        expr.slot = binding.slot;
+        expr.boxed = binding.boxed;
+        return null;
+    }
+
+    /**
+     * Resolves a function body in a scope holding its parameters. A block body
+     * shares that scope, matching how calls run it through executeBlock. The slots
+     * of the parameters, and of the variables declared ahead, that have to be boxed on entry are
+     * left in {@link #boxes}.
+     *
+     * @return the number of slots the function's environment needs
+     */
+    private int resolveFunction(List<Token> arguments, Stmt body) {
+        List<Stmt> statements = body instanceof Stmt.Block ? ((Stmt.Block) body).statements : List.of(body);
+        Set<String> enclosing = boxable;
+        boolean returns = returnsFromFunction;
+        boxable = Captures.boxable(statements);
+        returnsFromFunction = true;
+        beginScope();
+        scopes.get(scopes.size() - 1).function = true;
+        List<Integer> boxed = new ArrayList<>();
+        for (Token argument : arguments) {
+            int slot = declare(argument);
+            if (isBoxed(argument)) boxed.add(slot);
+        }
+        boxed.addAll(declareAhead(statements));
+        resolve(statements);
+        boxable = enclosing;
+        returnsFromFunction = returns;
+        boxes = array(boxed);
+        return endScope();
+    }
+
+    private static int[] array(List<Integer> slots) {
+        if (slots.isEmpty()) return null;
+        int[] array = new int[slots.size()];
+        for (int i = 0; i < array.length; i++) array[i] = slots.get(i);
+        return array;
+    }
+
+    /**
+     * Declares the names of the statements that code in a nested function or lambda uses before
+     * their declaration, and returns the slots of those a lambda uses, which are boxed when the
+     * scope is entered.
+     */
+    private List<Integer> declareAhead(List<Stmt> statements) {
+        List<Integer> boxed = new ArrayList<>();
+        Set<String> captured = new HashSet<>();
+        Scope scope = scopes.get(scopes.size() - 1);
+        for (Token name : usedAhead(statements, captured)) {
+            if (scope.names.containsKey(name.lexeme)) continue;
+            if (captured.contains(name.lexeme)) boxable.add(name.lexeme);
+            int slot = declare(name);
+            scope.ahead.add(name.lexeme);
+            if (isBoxed(name)) boxed.add(slot);
+        }
+        return boxed;
+    }
+
+    /**
+     * Returns the names declared by the statements that code in a nested function, lambda or
+     * method among them uses before the declaration, adding those a lambda uses to
+     * {@code captured}.
+     */
+    static List<Token> usedAhead(List<Stmt> statements, Set<String> captured) {
+        List<Token> names = new ArrayList<>();
+        Set<String> used = new HashSet<>();
+        Set<String> lambdas = new HashSet<>();
+        for (Stmt stmt : statements) {
+            Ahead ahead = new Ahead();
+            ahead.rewrite(stmt);
+            Token name = null;
+            if (stmt instanceof Stmt.Var) {
+                // The initializer runs before the variable is declared.
+                name = ((Stmt.Var) stmt).name;
+                used.addAll(ahead.used);
+                lambdas.addAll(ahead.captured);
+            } else if (stmt instanceof Stmt.Function) name = ((Stmt.Function) stmt).name;
+            else if (stmt instanceof Stmt.Class) name = ((Stmt.Class) stmt).name;
+            if (name != null && used.contains(name.lexeme)) {
+                names.add(name);
+                if (lambdas.contains(name.lexeme)) captured.add(name.lexeme);
+            }
+            used.addAll(ahead.used);
+            lambdas.addAll(ahead.captured);
+        }
+        return names;
+    }
+
+    private void beginScope() {
+        scopes.add(new Scope(null));
+    }
+
+    /**
+     * Closes the innermost scope and returns how many slots its environment needs, which
+     * is none for a flat block.
+     */
+    private int endScope() {
+        Scope scope = scopes.remove(scopes.size() - 1);
+        if (scope.owner == scope) return scope.size;
+        scope.owner.next = scope.start;
+        return 0;
+    }
+
+    private int declare(Token name) {
+        if (scopes.isEmpty()) return -1;
+        Scope scope = scopes.get(scopes.size() - 1);
+        if (scope.ahead.remove(name.lexeme)) return scope.names.get(name.lexeme);
+        if (scope.names.containsKey(name.lexeme)) {
+            diagnostics.error(name, "Variable cannot be redefined in same context");
+            return scope.names.get(name.lexeme);
+        }
+        Scope owner = scope.owner;
+        int slot = owner.next++;
+        owner.size = Math.max(owner.size, owner.next);
+        scope.names.put(name.lexeme, slot);
+        if (boxable.contains(name.lexeme)) scope.boxed.add(name.lexeme);
+        return slot;
+    }
+
+    private Global global(Token name) {
+        return globals == null ? null : globals.computeIfAbsent(name.lexeme, Global::new);
+    }
+
+    private boolean isAhead(Token name) {
+        return !scopes.isEmpty() && scopes.get(scopes.size() - 1).ahead.contains(name.lexeme);
+    }
+
+    private boolean isBoxed(Token name) {
+        return !scopes.isEmpty() && scopes.get(scopes.size() - 1).boxed.contains(name.lexeme);
+    }
+
+    /**
+     * Finds a name as seen from the scope at index {@code top}, counting flat blocks as part of
+     * the environment they were flattened into. A name found outside a lambda is added to the
+     * lambda's captures. A name declared ahead is only found from inside a function or lambda,
+     * which {@code deferred} says the use already is. Returns null for a global.
+     */
+    private Binding bind(String name, int top, boolean deferred) {
+        int depth = 0;
+        for (int i = top; i >= 0; i--) {
+            Scope scope = scopes.get(i);
+            Integer slot = scope.names.get(name);
+            if (slot != null && (deferred || !scope.ahead.contains(name)))
+                return new Binding(depth, slot, scope.boxed.contains(name));
+            if (scope.captures != null) {
+                Binding outer = bind(name, i - 1, true);
+                if (outer == null) return null;
+                slot = scope.names.size();
+                scope.names.put(name, slot);
+                if (outer.boxed) scope.boxed.add(name);
+                scope.captures.add(outer.depth);
+                scope.captures.add(outer.slot);
+                return new Binding(depth, slot, outer.boxed);
+            }
+            if (scope.function) deferred = true;
+            if (scope.owner == scope) depth++;
+        }
+        return null;
+    }
+}
@@ -1,10 +1,36 @@
 package ml.dent.trab;
 
+import java.util.ArrayList;
+import java.util.List;
+
 class RuntimeError extends RuntimeException {
+  private static final int MAX_TRACE = 20;
+
   final Token token;                         
+  final List<String> trace;
 
   RuntimeError(Token token, String message) {
     super(message);                          
     this.token = token;                      
+    this.trace = List.of();
   }                                          
+
+  /**
+   * An error listing the calls it happened in, innermost first. A call repeated many times
+   * over, as in a runaway recursion, takes one line.
+   */
+  RuntimeError(Token token, String message, List<String> calls) {
+    super(message);
+    this.token = token;
+    List<String> trace = new ArrayList<>();
+    int i = 0;
+    while (i < calls.size() && trace.size() < MAX_TRACE) {
+      int repeats = 1;
+      while (i + repeats < calls.size() && calls.get(i + repeats).equals(calls.get(i))) repeats++;
+      trace.add(repeats == 1 ? calls.get(i) : calls.get(i) + " (" + repeats + " times)");
+      i += repeats;
+    }
+    if (i < calls.size()) trace.add("... " + (calls.size() - i) + " more");
+    this.trace = trace;
+  }
 }                                            
@@ -6,56 +6,48 @@ import static ml.dent.trab.TokenType.*;
 
 public class Scanner {
 
-    private static final Map<String, TokenType> keywords;
+    private static final String[] KEYWORDS = {"and", "class", "else", "false", "for", "fn", "if", "null", "or",
+            "return", "super", "this", "true", "var", "while", "xor"};
+    private static final TokenType[] KEYWORD_TYPES = {AND, CLASS, ELSE, FALSE, FOR, FN, IF, NULL, OR, RETURN, SUPER,
+            THIS, TRUE, VAR, WHILE, XOR};
 
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and", AND);
-        keywords.put("class", CLASS);
-        keywords.put("else", ELSE);
-        keywords.put("false", FALSE);
-        keywords.put("for", FOR);
-        keywords.put("fn", FN);
-        keywords.put("if", IF);
-        keywords.put("null", NULL);
-        keywords.put("or", OR);
-        keywords.put("return", RETURN);
-        keywords.put("super", SUPER);
-        keywords.put("this", THIS);
-        keywords.put("true", TRUE);
-        keywords.put("var", VAR);
-        keywords.put("while", WHILE);
-        keywords.put("xor", XOR);
-    }
-
-    private static List<Token> tokens;
-    private static String source;
-    private static int start;
-    private static int current;
-    private static int line;
-    private static Stack<StringState> state;
+    private TokenBuffer tokens;
+    private final String source;
+    private final Diagnostics diagnostics;
+    private int start;
+    private int current;
+    private int line;
+    private Deque<StringState> state;
 
     private enum StringState {
         OUTSIDE, IN_STRING, IN_EXPRESSION
     }
 
-    public static List<Token> scan(String s) {
-        source = s;
-        tokens = new LinkedList<Token>();
+    public Scanner(String source, Diagnostics diagnostics) {
+        this.source = source;
+        this.diagnostics = diagnostics;
+    }
+
+    /**
+     * Scans the program into a token buffer whose symbol table starts with the keywords, so an
+     * interned name below {@code KEYWORDS.length} is a keyword.
+     */
+    public TokenBuffer scan() {
+        tokens = new TokenBuffer(source, new SymbolTable(KEYWORDS));
         line = 1;
         start = 0;
         current = 0;
-        state = new Stack<>();
+        state = new ArrayDeque<>();
         state.push(StringState.OUTSIDE);
         while (!isAtEnd()) {
             scanToken();
             start = current;
         }
-        tokens.add(new Token(EOF, "", null, line));
+        tokens.add(EOF, current, current, line);
         return tokens;
     }
 
-    private static void scanToken() {
+    private void scanToken() {
         char c = advance();
         if (state.peek() == StringState.IN_STRING && c != '"' && c != '$' && c != '{') {
             if (c != '{')
@@ -168,12 +160,12 @@ public class Scanner {
                 else if (isAlphabetic(c))
                     identifier();
                 else
-                    Trab.error("Unexpected character '" + c + "' found", line);
+                    diagnostics.error("Unexpected character '" + c + "' found", line);
 
         }
     }
 
-    private static void number() {
+    private void number() {
         while (!isAtEnd() && isNumeric(peek())) {
             advance();
         }
@@ -186,18 +178,18 @@ public class Scanner {
         addToken(NUMBER, Double.parseDouble(source.substring(start, current)));
     }
 
-    private static void identifier() {
+    private void identifier() {
         while (isAlphanumeric(peek())) {
             advance();
         }
-        String identifier = source.substring(start, current);
-        if (keywords.containsKey(identifier))
-            addToken(keywords.get(identifier));
+        int symbol = tokens.symbols.intern(source, start, current);
+        if (symbol < KEYWORDS.length)
+            addToken(KEYWORD_TYPES[symbol]);
         else
-            addToken(IDENTIFIER, identifier);
+            tokens.add(IDENTIFIER, start, current, line, symbol);
     }
 
-    private static void part() {
+    private void part() {
         StringBuffer buf = new StringBuffer(previous() + "");
         while (!isAtEnd() && peek() != '"' && peek() != '$') {
             if (match('\\')) {
@@ -210,30 +202,30 @@ public class Scanner {
                 else if (match('n'))
                     buf.append('\n');
                 else
-                    Trab.error("Invalid escape sequence", line);
+                    diagnostics.error("Invalid escape sequence", line);
             } else
                 buf.append(advance());
         }
         addToken(STRING_PART, buf.toString());
     }
 
-    private static char advance() {
+    private char advance() {
         return source.charAt(current++);
     }
 
-    private static char peek() {
+    private char peek() {
         return !isAtEnd() ? source.charAt(current) : '\0';
     }
 
-    private static char peekNext() {
+    private char peekNext() {
         return current + 1 < source.length() ? source.charAt(current + 1) : '\0';
     }
 
-    private static char previous() {
+    private char previous() {
         return current - 1 >= 0 ? source.charAt(current - 1) : '\0';
     }
 
-    private static boolean match(char expected) {
+    private boolean match(char expected) {
         if (peek() == expected) {
             advance();
             return true;
@@ -241,27 +233,27 @@ public class Scanner {
         return false;
     }
 
-    private static void addToken(TokenType type) {
-        addToken(type, null);
+    private void addToken(TokenType type) {
+        tokens.add(type, start, current, line);
     }
 
-    private static void addToken(TokenType type, Object value) {
-        tokens.add(new Token(type, source.substring(start, current), value, line));
+    private void addToken(TokenType type, Object value) {
+        tokens.addLiteral(type, start, current, line, value);
     }
 
-    private static boolean isAtEnd() {
+    private boolean isAtEnd() {
         return current >= source.length();
     }
 
-    private static boolean isNumeric(char c) {
+    private boolean isNumeric(char c) {
         return c >= '0' && c <= '9';
     }
 
-    private static boolean isAlphabetic(char c) {
+    private boolean isAlphabetic(char c) {
         return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_';
     }
 
-    private static boolean isAlphanumeric(char c) {
+    private boolean isAlphanumeric(char c) {
         return isNumeric(c) || isAlphabetic(c);
     }
 }
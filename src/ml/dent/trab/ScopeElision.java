@@ -0,0 +1,41 @@
+package ml.dent.trab;
+
+/**
+ * Marks blocks that can run in the environment of the code around them instead of getting
+ * one of their own. That is every block that declares nothing, and every block that creates
+ * no function or class: nothing can outlive such a block holding on to its variables, so the
+ * {@link Resolver} gives them slots in the enclosing environment. Lambdas copy what they use
+ * when they are made, so they do not count.
+ * <p>
+ * Rewrites nothing, and has to run after every pass that does, since those build new blocks.
+ * {@link CountedLoops} relies on its marks.
+ */
+class ScopeElision extends TreeRewriter {
+    private int closures;
+
+    static boolean declaresNothing(Stmt.Block block) {
+        for (Stmt stmt : block.statements)
+            if (stmt instanceof Stmt.Var || stmt instanceof Stmt.Function || stmt instanceof Stmt.Class) return false;
+        return true;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        int before = closures;
+        Stmt result = super.visitBlockStmt(stmt);
+        stmt.flat = closures == before || declaresNothing(stmt);
+        return result;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        closures++;
+        return super.visitClassStmt(stmt);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        closures++;
+        return super.visitFunctionStmt(stmt);
+    }
+}
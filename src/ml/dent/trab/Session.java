@@ -0,0 +1,154 @@
+package ml.dent.trab;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One interpreter or VM together with everything it needs to run programs: its output, its
+ * diagnostics and its globals, which carry over from one program to the next. Sessions share
+ * no mutable state, so separate threads can each run their own.
+ */
+public class Session {
+    static final String[] STD_LIB = {"Math.trab", "List.trab"};
+
+    private final Diagnostics diagnostics;
+    private final PrintStream out;
+    private final Options options;
+    private final boolean verbose;
+    private final Interpreter interpreter;
+    private final VM vm;
+    private final AstCache cache;
+    private final Inliner inliner;
+
+    public Session(boolean useVm, boolean verbose, PrintStream out) {
+        this(Options.DEFAULT.vm(useVm).verbose(verbose), out);
+    }
+
+    public Session(Options options, PrintStream out) {
+        this(options, out, null);
+    }
+
+    /**
+     * A session that looks programs up in {@code cache} before scanning and parsing them.
+     */
+    Session(Options options, PrintStream out, AstCache cache) {
+        this.out = out;
+        this.options = options;
+        this.verbose = options.verbose;
+        this.cache = cache;
+        diagnostics = new Diagnostics(out);
+        if (options.useVm) {
+            vm = new VM(diagnostics, out, options.maxDepth);
+            interpreter = null;
+            inliner = null;
+        } else {
+            interpreter = new Interpreter(diagnostics, out, options.maxDepth);
+            interpreter.jit = options.jit;
+            if (verbose) interpreter.jitLog = out;
+            vm = null;
+            // Only the interpreter runs the copies; the VM would just make the calls anyway.
+            inliner = new Inliner();
+        }
+    }
+
+    public Diagnostics diagnostics() {
+        return diagnostics;
+    }
+
+    /**
+     * Reads the standard library from the working directory, in the order it has to be loaded.
+     */
+    public static List<String> standardLibrary() throws IOException {
+        List<String> programs = new ArrayList<>();
+        for (String s : STD_LIB) programs.add(read(s));
+        return programs;
+    }
+
+    public static String read(String fileName) throws IOException {
+        StringBuilder file = new StringBuilder();
+        for (String line : Files.readAllLines(Paths.get(fileName))) file.append(line).append("\n");
+        return file.toString();
+    }
+
+    /**
+     * Loads the standard library. Returns false, after printing why, if it did not load cleanly.
+     * An interpreter session with a cache restores the globals saved by an earlier session
+     * instead, and saves them for the next one when there were none.
+     */
+    public boolean loadStandardLibrary(List<String> programs) {
+        // Images hold optimized trees.
+        boolean image = interpreter != null && cache != null && options.optimize;
+        if (image) {
+            ByteBuffer saved = cache.loadImage(programs);
+            if (saved != null && HeapImage.restore(saved, interpreter, inliner, diagnostics)) return true;
+        }
+        List<List<Stmt>> trees = new ArrayList<>();
+        for (String program : programs) trees.add(execute(program, false, "", false));
+        if (diagnostics.hadError() || diagnostics.hadRuntimeError()) {
+            out.println("Standard Library Error");
+            return false;
+        }
+        if (image) {
+            try {
+                cache.storeImage(programs, HeapImage.write(trees, interpreter));
+            } catch (IllegalArgumentException e) {
+                // Something in the globals cannot be saved; the library will simply be run again.
+            }
+        }
+        return true;
+    }
+
+    public void run(String program, boolean isRepl, String stin) {
+        execute(program, isRepl, stin, options.dumpAst);
+    }
+
+    /**
+     * Runs a program and returns it as optimized, or null if it did not get past the compiler.
+     * With {@code dump} the optimized tree is printed first.
+     */
+    private List<Stmt> execute(String program, boolean isRepl, String stin, boolean dump) {
+        diagnostics.isRepl = isRepl;
+        List<Stmt> prog = cache != null && !isRepl ? cache.load(program) : null;
+        if (prog == null) {
+            TokenBuffer tokens = new Scanner(program, diagnostics).scan();
+            if (diagnostics.hadError()) {
+                out.println("Scanner Error");
+                return null;
+            }
+
+            prog = new Parser(tokens, diagnostics).parse();
+            if (diagnostics.hadError()) {
+                out.println("Parse Error");
+                return null;
+            }
+            if (cache != null && !isRepl) cache.store(program, prog);
+        }
+        if (options.optimize) prog = Optimizer.optimize(prog, inliner);
+        if (inliner != null) {
+            if (verbose) for (String site : inliner.sites) out.println(site);
+            inliner.sites.clear();
+        }
+        if (dump) out.print(new ASTPrinter().print(prog));
+        new Resolver(diagnostics, interpreter == null ? null : interpreter.globals).resolve(prog);
+        if (diagnostics.hadError()) {
+            out.println("Resolve Error");
+            return null;
+        }
+        new TypeInference(diagnostics).infer(prog);
+        if (vm != null) {
+            VMFunction script = new BytecodeCompiler(isRepl, diagnostics, vm.globals).compile(prog);
+            if (diagnostics.hadError()) {
+                out.println("Compile Error");
+                return null;
+            }
+            if (verbose) out.print(script.chunk.disassemble(script.name));
+            vm.run(script, isRepl, stin);
+        } else interpreter.run(prog, isRepl, stin);
+        return prog;
+    }
+}
@@ -1,10 +1,8 @@
 package ml.dent.trab;
 
-import java.util.List;
-
 public class ShuntedFunction implements TrabCallable {
-    private TrabCallable func;
-    private Object shunt;
+    TrabCallable func;
+    Object shunt;
 
     ShuntedFunction(TrabCallable func, Object shunt) {
         this.func = func;
@@ -17,8 +15,20 @@ public class ShuntedFunction implements TrabCallable {
     }
 
     @Override
-    public Object call(Interpreter interpreter, Token callee, List<Object> arguments) {
-        arguments.add(0, shunt);
-        return func.call(interpreter, callee, arguments);
+    public Object call0(Interpreter interpreter, Token callee) {
+        return func.call1(interpreter, callee, shunt);
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Token callee, Object a) {
+        return func.call2(interpreter, callee, shunt, a);
+    }
+
+    @Override
+    public Object callN(Interpreter interpreter, Token callee, Object[] arguments) {
+        Object[] shunted = new Object[arguments.length + 1];
+        shunted[0] = shunt;
+        System.arraycopy(arguments, 0, shunted, 1, arguments.length);
+        return func.callN(interpreter, callee, shunted);
     }
 }
@@ -0,0 +1,89 @@
+package ml.dent.trab;
+
+import java.util.List;
+
+/**
+ * States of a self-specializing {@link Expr} node. A node starts {@link #UNINITIALIZED}, picks
+ * a specialization for the operand types it sees on its first evaluation and drops to
+ * {@link #GENERIC} for good once a guard fails.
+ */
+final class Specialization {
+    static final int UNINITIALIZED = 0;
+    static final int GENERIC = 1;
+
+    // Binary.
+    static final int ADD_DOUBLE = 2;
+    static final int SUBTRACT_DOUBLE = 3;
+    static final int MULTIPLY_DOUBLE = 4;
+    static final int DIVIDE_DOUBLE = 5;
+    static final int MODULO_DOUBLE = 6;
+    static final int POWER_DOUBLE = 7;
+    static final int LESS_DOUBLE = 8;
+    static final int LESS_EQUAL_DOUBLE = 9;
+    static final int GREATER_DOUBLE = 10;
+    static final int GREATER_EQUAL_DOUBLE = 11;
+    static final int CONCAT_STRING = 12;
+
+    // Unary.
+    static final int NEGATE_DOUBLE = 13;
+
+    // Index.
+    static final int INDEX_LIST = 14;
+    static final int INDEX_STRING = 15;
+
+    private Specialization() {
+    }
+
+    /**
+     * Whether a binary node in this state produces a number from two numbers.
+     */
+    static boolean arithmetic(int state) {
+        return state >= ADD_DOUBLE && state <= POWER_DOUBLE;
+    }
+
+    static boolean comparison(int state) {
+        return state >= LESS_DOUBLE && state <= GREATER_EQUAL_DOUBLE;
+    }
+
+    static int binary(TokenType operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            switch (operator) {
+                case PLUS:
+                    return ADD_DOUBLE;
+                case MINUS:
+                    return SUBTRACT_DOUBLE;
+                case STAR:
+                    return MULTIPLY_DOUBLE;
+                case SLASH:
+                    return DIVIDE_DOUBLE;
+                case PERCENT:
+                    return MODULO_DOUBLE;
+                case STAR_STAR:
+                    return POWER_DOUBLE;
+                case LESS:
+                    return LESS_DOUBLE;
+                case LESS_EQUAL:
+                    return LESS_EQUAL_DOUBLE;
+                case GREATER:
+                    return GREATER_DOUBLE;
+                case GREATER_EQUAL:
+                    return GREATER_EQUAL_DOUBLE;
+            }
+        } else if (operator == TokenType.PLUS && left instanceof String && right instanceof String)
+            return CONCAT_STRING;
+        return GENERIC;
+    }
+
+    static int unary(TokenType operator, Object right) {
+        if (operator == TokenType.MINUS && right instanceof Double) return NEGATE_DOUBLE;
+        return GENERIC;
+    }
+
+    static int index(Object left, Object index) {
+        if (index instanceof Double) {
+            if (left instanceof List) return INDEX_LIST;
+            if (left instanceof String) return INDEX_STRING;
+        }
+        return GENERIC;
+    }
+}
@@ -24,6 +24,9 @@ abstract class Stmt {
     }
 
     final List<Stmt> statements;
+    int slots;
+    boolean flat;
+    int[] boxes;
   }
   static class Class extends Stmt {
     Class(Token name, List<Stmt.Function> methods) {
@@ -37,6 +40,10 @@ abstract class Stmt {
 
     final Token name;
     final List<Stmt.Function> methods;
+    int slot = -1;
+    int slots;
+    boolean boxed;
+    boolean hoisted;
   }
   static class Expression extends Stmt {
     Expression(Expr expression) {
@@ -89,6 +96,7 @@ abstract class Stmt {
 
     final Token keyword;
     final Expr value;
+    boolean tail;
   }
   static class Var extends Stmt {
     Var(Token name, Expr initializer) {
@@ -102,6 +110,9 @@ abstract class Stmt {
 
     final Token name;
     final Expr initializer;
+    int slot = -1;
+    boolean boxed;
+    boolean hoisted;
   }
   static class While extends Stmt {
     While(Token whileToken, Expr condition, Stmt body) {
@@ -117,6 +128,7 @@ abstract class Stmt {
     final Token whileToken;
     final Expr condition;
     final Stmt body;
+    CountedLoop counted;
   }
   static class Function extends Stmt {
     Function(Token name, List<Token> arguments, Stmt body) {
@@ -132,6 +144,12 @@ abstract class Stmt {
     final Token name;
     final List<Token> arguments;
     final Stmt body;
+    int slot = -1;
+    int slots;
+    boolean frameCaptured;
+    boolean boxed;
+    boolean hoisted;
+    int[] boxes;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
@@ -0,0 +1,55 @@
+package ml.dent.trab;
+
+import java.util.Arrays;
+
+/**
+ * Interns names straight out of the source text so that a name which appears many times is
+ * only copied into a String once. Symbols are numbered in the order they are first seen.
+ */
+final class SymbolTable {
+    private String[] names = new String[64];
+    private int[] table = new int[128];
+    private int size;
+
+    SymbolTable(String... preload) {
+        Arrays.fill(table, -1);
+        for (String name : preload) intern(name, 0, name.length());
+    }
+
+    int intern(String source, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) hash = 31 * hash + source.charAt(i);
+        int mask = table.length - 1;
+        int i = hash & mask;
+        int length = end - start;
+        while (table[i] >= 0) {
+            String name = names[table[i]];
+            if (name.length() == length && source.regionMatches(start, name, 0, length)) return table[i];
+            i = (i + 1) & mask;
+        }
+        if (size == names.length) names = Arrays.copyOf(names, size * 2);
+        names[size] = source.substring(start, end);
+        table[i] = size;
+        if (++size * 2 > table.length) rehash();
+        return size - 1;
+    }
+
+    String name(int symbol) {
+        return names[symbol];
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        Arrays.fill(table, -1);
+        int mask = table.length - 1;
+        for (int symbol = 0; symbol < size; symbol++) {
+            int i = names[symbol].hashCode() & mask;
+            while (table[i] >= 0) i = (i + 1) & mask;
+            table[i] = symbol;
+        }
+    }
+}
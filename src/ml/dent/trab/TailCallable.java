@@ -0,0 +1,13 @@
+package ml.dent.trab;
+
+/**
+ * A callable whose tail calls the {@link Interpreter} runs one after another instead of one
+ * inside the other, so recursion through them takes no Java stack.
+ */
+interface TailCallable extends TrabCallable {
+    /**
+     * Calls without running the tail call the callee ends in, if any: the result is then
+     * {@link Interpreter#TAIL_CALL}, for {@link Interpreter#complete} to carry on with.
+     */
+    Object enter(Interpreter interpreter, Object[] arguments);
+}
@@ -0,0 +1,97 @@
+package ml.dent.trab;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The tokens of one program, stored as parallel arrays instead of one object per token.
+ * Identifiers refer to a {@link SymbolTable} and numbers and string parts to a side array of
+ * literals. The parser reads types by index and only asks for a {@link Token} when it keeps
+ * one in the tree.
+ */
+final class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final String source;
+    final SymbolTable symbols;
+    private final List<Object> literals = new ArrayList<>();
+    private int[] types;
+    private int[] starts;
+    private int[] lengths;
+    private int[] lines;
+    private int[] values;
+    private Token[] tokens;
+    private int size;
+
+    TokenBuffer(String source, SymbolTable symbols) {
+        this.source = source;
+        this.symbols = symbols;
+        // Source averages a few characters per token; sizing for that avoids most regrowth.
+        int capacity = 16 + source.length() / 4;
+        types = new int[capacity];
+        starts = new int[capacity];
+        lengths = new int[capacity];
+        lines = new int[capacity];
+        values = new int[capacity];
+    }
+
+    void add(TokenType type, int start, int end, int line) {
+        add(type, start, end, line, -1);
+    }
+
+    void addLiteral(TokenType type, int start, int end, int line, Object literal) {
+        literals.add(literal);
+        add(type, start, end, line, literals.size() - 1);
+    }
+
+    /**
+     * Adds a token whose value is the symbol or literal numbered {@code value}, or -1.
+     */
+    void add(TokenType type, int start, int end, int line, int value) {
+        if (size == types.length) {
+            int capacity = size * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        types[size] = type.ordinal();
+        starts[size] = start;
+        lengths[size] = end - start;
+        lines[size] = line;
+        values[size] = value;
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    TokenType type(int i) {
+        return TYPES[types[i]];
+    }
+
+    int line(int i) {
+        return lines[i];
+    }
+
+    /**
+     * Returns token {@code i} as an object, creating it the first time it is asked for.
+     */
+    Token get(int i) {
+        if (tokens == null) tokens = new Token[size];
+        Token token = tokens[i];
+        if (token != null) return token;
+        TokenType type = type(i);
+        String lexeme;
+        Object literal = null;
+        if (type == TokenType.IDENTIFIER) literal = lexeme = symbols.name(values[i]);
+        else {
+            lexeme = source.substring(starts[i], starts[i] + lengths[i]);
+            if (values[i] >= 0) literal = literals.get(values[i]);
+        }
+        return tokens[i] = new Token(type, lexeme, literal, lines[i]);
+    }
+}
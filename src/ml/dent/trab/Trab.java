@@ -1,100 +1,97 @@
 package ml.dent.trab;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.List;
 
 public class Trab {
-    private enum Mode {
-        SCAN, PARSE, RESOLVE, RUN
+    private static final String USAGE =
+            "Usage: trab [--engine=interpreter|vm] [--verbose] [--no-jit] [--no-cache] [--no-optimize] [--dump-ast]"
+                    + " [--threads=n] [--max-depth=n] [script...]";
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Options options = Options.DEFAULT;
+        boolean cache = true;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<String> files = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--engine=vm")) options = options.vm(true);
+            else if (arg.equals("--engine=interpreter")) options = options.vm(false);
+            else if (arg.equals("--verbose")) options = options.verbose(true);
+            else if (arg.equals("--no-jit")) options = options.jit(false);
+            else if (arg.equals("--no-cache")) cache = false;
+            else if (arg.equals("--no-optimize")) options = options.optimize(false);
+            else if (arg.equals("--dump-ast")) options = options.dumpAst(true);
+            else if (arg.startsWith("--threads=")) threads = Integer.parseInt(arg.substring("--threads=".length()));
+            else if (arg.startsWith("--max-depth=")) options = options.maxDepth(Integer.parseInt(arg.substring("--max-depth=".length())));
+            else if (arg.startsWith("--")) {
+                System.out.println(USAGE);
+                System.exit(64);
+            } else files.add(arg);
+        }
+        // Calls nest on the Java stack, so programs run on a thread with room for them.
+        Options sessionOptions = options;
+        boolean useCache = cache;
+        int threadCount = threads;
+        Exception[] failure = new Exception[1];
+        Thread thread = Interpreter.newThread(() -> {
+            try {
+                run(sessionOptions, useCache, threadCount, files);
+            } catch (IOException | InterruptedException e) {
+                failure[0] = e;
+            }
+        }, "trab", options.maxDepth);
+        thread.start();
+        thread.join();
+        if (failure[0] instanceof IOException) throw (IOException) failure[0];
+        if (failure[0] != null) throw (InterruptedException) failure[0];
     }
 
-    private static boolean hadError = false;
-    private static boolean hadRuntimeError = false;
-    private static boolean isRepl = false;
-    private static boolean verbose = false;
-    private static Interpreter interpreter;
-    private static Mode mode;
-    private static String[] stdLib = {"Math.trab", "List.trab"};
-
-    public static void main(String[] args) throws IOException {
-        interpreter = new Interpreter();
-        for (String s : stdLib) loadFile(s);
-        if (hadError || hadRuntimeError) {
-            System.out.println("Standard Library Error");
-            System.exit(255);
+    private static void run(Options options, boolean cache, int threads, List<String> files)
+            throws IOException, InterruptedException {
+        List<String> stdLib = Session.standardLibrary();
+        if (files.size() > 1) {
+            runFiles(files, stdLib, options, threads);
+            return;
         }
-        if (args.length > 0) runFile(args[0]);
-        else runRepl();
+        Session session = new Session(options, System.out, cache ? AstCache.defaultCache() : null);
+        if (!session.loadStandardLibrary(stdLib)) System.exit(255);
+        if (!files.isEmpty()) session.run(Session.read(files.get(0)), false, readStdin());
+        else runRepl(session);
     }
 
-    private static void runRepl() throws IOException {
+    private static void runRepl(Session session) throws IOException {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
-        isRepl = true;
         for (; ; ) {
             System.out.print("> ");
-            run(reader.readLine(), isRepl, "");
-            hadError = false;
-            hadRuntimeError = false;
+            session.run(reader.readLine(), true, "");
+            session.diagnostics().reset();
         }
     }
 
-    private static void loadFile(String fileName) throws IOException {
-
-        BufferedReader reader = new BufferedReader(new FileReader(new File(fileName)));
-        StringBuffer file = new StringBuffer();
-        while (reader.ready()) file.append(reader.readLine() + "\n");
-        run(file.toString(), isRepl, "");
+    /**
+     * Runs several scripts at once, each in its own session, and prints their output in the
+     * order they were given.
+     */
+    private static void runFiles(List<String> files, List<String> stdLib, Options options, int threads)
+            throws IOException, InterruptedException {
+        List<String> programs = new ArrayList<>();
+        for (String file : files) programs.add(Session.read(file));
+        String stin = readStdin();
+        try (Engine pool = new Engine(threads, stdLib, options)) {
+            List<Engine.Result> results = pool.runAll(programs, stin);
+            for (int i = 0; i < files.size(); i++) {
+                System.out.println("== " + files.get(i));
+                System.out.print(results.get(i).output);
+            }
+        }
     }
 
-
-    private static void runFile(String fileName) throws IOException {
-        BufferedReader reader = new BufferedReader(new FileReader(new File(fileName)));
-        StringBuffer file = new StringBuffer();
-        while (reader.ready()) file.append(reader.readLine() + "\n");
+    private static String readStdin() throws IOException {
         BufferedReader standardIn = new BufferedReader(new InputStreamReader(System.in));
         StringBuffer stin = new StringBuffer();
         while (standardIn.ready()) stin.append(standardIn.readLine() + "\n");
-        run(file.toString(), isRepl, stin.toString());
-    }
-
-    private static void run(String program, boolean isRepl, String stin) {
-        List<Token> tokens = Scanner.scan(program);
-        if (hadError) {
-            System.out.println("Scanner Error");
-            return;
-        }
-
-        List<Stmt> prog = new Parser(tokens).parse();
-        if (hadError) {
-            System.out.println("Parse Error");
-            return;
-        }
-        interpreter.run(prog, isRepl, stin);
-    }
-
-    public static void error(int line) {
-        System.out.println("Error at line " + line);
-        hadError = true;
-    }
-
-    public static void error(Token token) {
-        error("Error at token " + token.lexeme, token.line);
-    }
-
-    public static void error(Token token, String message) {
-        error(message, token.line);
-    }
-
-    public static void error(String message, int line) {
-        if (isRepl) System.out.println(message);
-        else System.out.println(message + " at line " + line);
-        hadError = true;
+        return stin.toString();
     }
-
-    public static void runtimeError(RuntimeError error) {
-        hadRuntimeError = true;
-        error(error.token, error.getMessage());
-    }
-
 }
@@ -1,9 +1,23 @@
 package ml.dent.trab;
 
-import java.util.List;
-
 public interface TrabCallable {
     int arity();
 
-    Object call(Interpreter interpreter, Token callee, List<Object> arguments);
+    /**
+     * Calls with any number of arguments. Callables with a fixed arity override the matching
+     * {@code callK} so the common call sites never build an argument array.
+     */
+    Object callN(Interpreter interpreter, Token callee, Object[] arguments);
+
+    default Object call0(Interpreter interpreter, Token callee) {
+        return callN(interpreter, callee, new Object[0]);
+    }
+
+    default Object call1(Interpreter interpreter, Token callee, Object a) {
+        return callN(interpreter, callee, new Object[]{a});
+    }
+
+    default Object call2(Interpreter interpreter, Token callee, Object a, Object b) {
+        return callN(interpreter, callee, new Object[]{a, b});
+    }
 }
@@ -1,8 +1,14 @@
 package ml.dent.trab;
 
+import ml.dent.trab.runtime.Box;
+
+import java.util.HashMap;
+import java.util.Map;
+
 public class TrabClass implements TrabClassable {
-    private Stmt.Class stmt;
+    final Stmt.Class stmt;
     Environment closure;
+    final Map<String, TrabFunction> methods = new HashMap<>();
 
     public TrabClass(Stmt.Class stmt, Environment closure) {
         this.stmt = stmt;
@@ -10,15 +16,24 @@ public class TrabClass implements TrabClassable {
         bindFunctions();
     }
 
+    /**
+     * A class whose closure and methods are filled in afterwards, by {@link HeapImage}.
+     */
+    TrabClass(Stmt.Class stmt) {
+        this.stmt = stmt;
+    }
+
     private void bindFunctions() {
         for (Stmt.Function fun : stmt.methods) {
-            closure.define(fun.name.lexeme, new TrabFunction(fun, new Environment(closure)));
+            TrabFunction function = new TrabFunction(fun, closure);
+            closure.values[fun.slot] = fun.boxed ? new Box(function) : function;
+            methods.put(fun.name.lexeme, function);
         }
     }
 
     @Override
     public TrabFunction getFunction(String s) {
-        return (TrabFunction) closure.get(s);
+        return methods.get(s);
     }
 
     @Override
@@ -0,0 +1,159 @@
+package ml.dent.trab;
+
+import ml.dent.trab.runtime.Box;
+
+import java.util.List;
+
+/**
+ * The call protocol {@link TrabFunction} and {@link TrabLambda} share: each call is pushed on
+ * the interpreter's call stack, runs the compiled body once there is one and the tree walker
+ * until then, and carries on with any tail call the body ends in. Subclasses say what the body
+ * is and how its environment is laid out.
+ */
+abstract class TrabClosure implements TailCallable {
+    Environment closure;
+    private final Stmt.Block block;
+    private int invocations;
+    private int backEdges;
+    private JitCode compiled;
+    private int deoptimizations;
+    private boolean uncompilable;
+
+    TrabClosure(Stmt body, Environment closure) {
+        this.closure = closure;
+        if (body instanceof Stmt.Block) block = (Stmt.Block) body;
+        else block = new Stmt.Block(List.of(body));
+    }
+
+    /**
+     * The name calls are reported under, in stack traces and by the JIT.
+     */
+    abstract String name();
+
+    abstract List<Token> arguments();
+
+    abstract int slots();
+
+    abstract int[] boxes();
+
+    abstract boolean frameCaptured();
+
+    @Override
+    public int arity() {
+        return arguments().size();
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter, Token callee) {
+        interpreter.push(callee, this);
+        try {
+            JitCode code = jit(interpreter);
+            if (code != null) return interpreter.complete(code.call0(interpreter, closure));
+            return interpreter.complete(run(interpreter, frame(interpreter)));
+        } catch (StackOverflowError e) {
+            throw interpreter.overflow(callee);
+        } finally {
+            interpreter.pop();
+        }
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Token callee, Object a) {
+        interpreter.push(callee, this);
+        try {
+            JitCode code = jit(interpreter);
+            if (code != null) return interpreter.complete(code.call1(interpreter, closure, a));
+            Environment frame = frame(interpreter);
+            frame.values[0] = a;
+            return interpreter.complete(run(interpreter, frame));
+        } catch (StackOverflowError e) {
+            throw interpreter.overflow(callee);
+        } finally {
+            interpreter.pop();
+        }
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Token callee, Object a, Object b) {
+        interpreter.push(callee, this);
+        try {
+            JitCode code = jit(interpreter);
+            if (code != null) return interpreter.complete(code.call2(interpreter, closure, a, b));
+            Environment frame = frame(interpreter);
+            frame.values[0] = a;
+            frame.values[1] = b;
+            return interpreter.complete(run(interpreter, frame));
+        } catch (StackOverflowError e) {
+            throw interpreter.overflow(callee);
+        } finally {
+            interpreter.pop();
+        }
+    }
+
+    @Override
+    public Object callN(Interpreter interpreter, Token callee, Object[] arguments) {
+        interpreter.push(callee, this);
+        try {
+            return interpreter.complete(enter(interpreter, arguments));
+        } catch (StackOverflowError e) {
+            throw interpreter.overflow(callee);
+        } finally {
+            interpreter.pop();
+        }
+    }
+
+    @Override
+    public Object enter(Interpreter interpreter, Object[] arguments) {
+        JitCode code = jit(interpreter);
+        if (code != null) {
+            switch (arguments.length) {
+                case 0:
+                    return code.call0(interpreter, closure);
+                case 1:
+                    return code.call1(interpreter, closure, arguments[0]);
+                case 2:
+                    return code.call2(interpreter, closure, arguments[0], arguments[1]);
+                default:
+                    return code.callN(interpreter, closure, arguments);
+            }
+        }
+        Environment frame = frame(interpreter);
+        System.arraycopy(arguments, 0, frame.values, 0, arguments.length);
+        return run(interpreter, frame);
+    }
+
+    private Environment frame(Interpreter interpreter) {
+        return frameCaptured() ? new Environment(closure, slots()) : interpreter.frames.acquire(closure, slots());
+    }
+
+    /**
+     * Returns the compiled body once this has been called, or looped, often enough. Each
+     * compilation defines a class that is never unloaded, so a body deoptimized
+     * {@link Jit#MAX_DEOPTIMIZATIONS} times stays in the tree walker.
+     */
+    private JitCode jit(Interpreter interpreter) {
+        if (compiled != null) {
+            if (!compiled.invalidated) return compiled;
+            compiled = null;
+            invocations = backEdges = 0;
+            uncompilable = ++deoptimizations >= Jit.MAX_DEOPTIMIZATIONS;
+        }
+        if (uncompilable || !interpreter.jit || ++invocations + backEdges < Jit.THRESHOLD) return null;
+        compiled = Jit.compile(name(), arguments(), slots(), block, interpreter.jitLog);
+        uncompilable = compiled == null;
+        return compiled;
+    }
+
+    private Object run(Interpreter interpreter, Environment frame) {
+        int loops = interpreter.backEdges;
+        int[] boxes = boxes();
+        if (boxes != null) for (int slot : boxes) frame.values[slot] = new Box(frame.values[slot]);
+        try {
+            if (interpreter.executeBlock(block, frame) == Completion.RETURN) return interpreter.takeReturnValue();
+        } finally {
+            if (!frameCaptured()) interpreter.frames.release(frame);
+            backEdges = Math.min(backEdges + interpreter.backEdges - loops, Jit.THRESHOLD);
+        }
+        return new TrabNull();
+    }
+}
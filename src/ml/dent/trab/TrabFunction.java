@@ -3,35 +3,37 @@ package ml.dent.trab;
 import java.util.List;
 import java.util.stream.Collectors;
 
-public class TrabFunction implements TrabCallable {
+public class TrabFunction extends TrabClosure {
     Stmt.Function fun;
-    Environment closure;
 
     TrabFunction(Stmt.Function fun, Environment closure) {
+        super(fun.body, closure);
         this.fun = fun;
-        this.closure = closure;
     }
 
+    @Override
+    String name() {
+        return fun.name.lexeme;
+    }
+
+    @Override
+    List<Token> arguments() {
+        return fun.arguments;
+    }
+
+    @Override
+    int slots() {
+        return fun.slots;
+    }
 
     @Override
-    public int arity() {
-        return fun.arguments.size();
+    int[] boxes() {
+        return fun.boxes;
     }
 
     @Override
-    public Object call(Interpreter interpreter, Token callee, List<Object> arguments) {
-        for (int i = 0; i < arguments.size(); i++) {
-            closure.define(fun.arguments.get(i).lexeme, arguments.get(i));
-        }
-        Stmt.Block block = null;
-        if (fun.body instanceof Stmt.Block) block = (Stmt.Block) fun.body;
-        else if (fun.body instanceof Stmt.Expression) block = new Stmt.Block(List.of((Stmt.Expression) fun.body));
-        try {
-            interpreter.executeBlock(block, closure);
-        } catch (Return ret) {
-            return ret.value;
-        }
-        return new TrabNull();
+    boolean frameCaptured() {
+        return fun.frameCaptured;
     }
 
     @Override
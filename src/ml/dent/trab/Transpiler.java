@@ -0,0 +1,500 @@
+package ml.dent.trab;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Translates resolved programs into the source of a single Java class for {@code trabc}. The
+ * generated code calls into {@code ml.dent.trab.runtime} for every operation, keeps each
+ * environment as an {@code Object[]} the way the interpreter does and makes globals static
+ * fields. Functions and lambdas become subclasses of {@code Fn}.
+ */
+public class Transpiler implements Expr.Visitor<String>, Stmt.Visitor<Void> {
+    private static final int STATEMENTS_PER_METHOD = 64;
+    private static final String[] BUILTINS = {"print", "clock", "InternalList", "stin"};
+
+    private StringBuilder out = new StringBuilder();
+    private final StringBuilder methods = new StringBuilder();
+    private final List<String> constants = new ArrayList<>();
+    private final Set<String> globals = new LinkedHashSet<>();
+    private final List<String> scopes = new ArrayList<>();
+    private int indent;
+    private int environments;
+    private boolean inFunction;
+
+    private Transpiler() {
+    }
+
+    /**
+     * Returns the Java source of a class whose main method runs the programs in order, the
+     * last one being the script and the others its standard library, or null after reporting
+     * an error in one of them.
+     */
+    public static String transpile(String className, List<String> programs) {
+        Transpiler transpiler = new Transpiler();
+        Diagnostics diagnostics = new Diagnostics(System.out);
+        for (int i = 0; i < programs.size(); i++) {
+            TokenBuffer tokens = new Scanner(programs.get(i), diagnostics).scan();
+            if (diagnostics.hadError()) return null;
+            List<Stmt> statements = new Parser(tokens, diagnostics).parse();
+            if (diagnostics.hadError()) return null;
+            statements = Optimizer.optimize(statements);
+            new Resolver(diagnostics).resolve(statements);
+            if (diagnostics.hadError()) return null;
+            transpiler.program(i, statements);
+        }
+        return transpiler.finish(className, programs.size());
+    }
+
+    private void program(int index, List<Stmt> statements) {
+        List<String> parts = new ArrayList<>();
+        for (int start = 0; start < statements.size(); start += STATEMENTS_PER_METHOD) {
+            String name = "program" + index + "Part" + parts.size();
+            parts.add(name);
+            indent = 2;
+            out = new StringBuilder();
+            for (Stmt stmt : statements.subList(start, Math.min(statements.size(), start + STATEMENTS_PER_METHOD)))
+                stmt.accept(this);
+            methods.append("    private static boolean ").append(name).append("() {\n").append(out)
+                    .append("        return false;\n    }\n\n");
+        }
+        methods.append("    private static boolean program").append(index).append("() {\n        try {\n");
+        for (String part : parts) methods.append("            if (").append(part).append("()) return true;\n");
+        methods.append("            return true;\n        } catch (TrabError e) {\n")
+                .append("            report(e);\n            return false;\n")
+                .append("        } catch (StackOverflowError e) {\n")
+                .append("            report(overflow());\n            return false;\n        }\n    }\n\n");
+    }
+
+    private String finish(String className, int programs) {
+        StringBuilder buf = new StringBuilder();
+        buf.append("import ml.dent.trab.TrabNull;\nimport ml.dent.trab.runtime.*;\n\n")
+                .append("import static ml.dent.trab.runtime.Ops.*;\n\n")
+                .append("public final class ").append(className).append(" {\n");
+        buf.append("    private static Object g_print = PRINT;\n")
+                .append("    private static Object g_clock = CLOCK;\n")
+                .append("    private static Object g_InternalList = INTERNAL_LIST;\n")
+                .append("    private static Object g_stin = \"\";\n");
+        for (String global : globals) {
+            if (!List.of(BUILTINS).contains(global))
+                buf.append("    private static Object g_").append(global).append(" = UNDEFINED;\n");
+        }
+        for (int i = 0; i < constants.size(); i++)
+            buf.append("    private static final Object k").append(i).append(" = ").append(constants.get(i)).append(";\n");
+        buf.append("\n").append(methods);
+        buf.append("    public static void main(String[] args) throws Exception {\n")
+                .append("        String stin = stdin();\n")
+                .append("        run(() -> {\n")
+                .append("            boolean ok = true;\n");
+        for (int i = 0; i < programs - 1; i++) buf.append("            ok &= program").append(i).append("();\n");
+        buf.append("            if (!ok) {\n")
+                .append("                System.out.println(\"Standard Library Error\");\n")
+                .append("                System.exit(255);\n            }\n")
+                .append("            g_stin = stin;\n")
+                .append("            program").append(programs - 1).append("();\n        });\n    }\n}\n");
+        return buf.toString();
+    }
+
+    private void line(String s) {
+        for (int i = 0; i < indent; i++) out.append("    ");
+        out.append(s).append("\n");
+    }
+
+    private String constant(String java) {
+        constants.add(java);
+        return "k" + (constants.size() - 1);
+    }
+
+    private String global(Token name) {
+        globals.add(name.lexeme);
+        return "g_" + name.lexeme;
+    }
+
+    private String local(int depth, int slot) {
+        return scopes.get(scopes.size() - 1 - depth) + "[" + slot + "]";
+    }
+
+    private String scope(int slots) {
+        String name = "e" + environments++;
+        line("final Object[] " + name + " = new Object[" + slots + "];");
+        return name;
+    }
+
+    private String read(Token name, int depth, int slot, boolean boxed) {
+        if (depth < 0) return "get(" + global(name) + ", " + name.line + ")";
+        return target(name, depth, slot, boxed);
+    }
+
+    private String target(Token name, int depth, int slot, boolean boxed) {
+        if (depth < 0) return global(name);
+        return boxed ? "((Box) " + local(depth, slot) + ").value" : local(depth, slot);
+    }
+
+    private void define(Token name, int slot, boolean boxed, boolean hoisted, String value) {
+        if (slot < 0) line(global(name) + " = " + value + ";");
+        else if (hoisted) line("((Box) " + local(0, slot) + ").value = " + value + ";");
+        else line(local(0, slot) + " = " + (boxed ? "new Box(" + value + ")" : value) + ";");
+    }
+
+    private static String quote(String s) {
+        StringBuilder buf = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') buf.append('\\').append(c);
+            else if (c < 0x20) buf.append(String.format("\\%03o", (int) c));
+            else if (c > 0x7e) buf.append(String.format("\\u%04x", (int) c));
+            else buf.append(c);
+        }
+        return buf.append('"').toString();
+    }
+
+    /**
+     * Writes a function or lambda as an anonymous {@code Fn} and returns it. A lambda's
+     * captures, already pushed as the innermost scope, are copied into a field of that name.
+     */
+    private String function(String description, List<Token> arguments, int slots, int[] boxes, List<Stmt> body,
+                            String captured) {
+        StringBuilder enclosing = out;
+        int enclosingIndent = indent;
+        boolean enclosingInFunction = inFunction;
+        out = new StringBuilder();
+        int arity = arguments.size();
+        indent = enclosingIndent + 1;
+        if (captured != null) line("private final Object[] " + scopes.get(scopes.size() - 1) + " = " + captured + ";");
+        line("@Override");
+        String frame = "e" + environments++;
+        if (arity <= 2) {
+            List<String> parameters = new ArrayList<>();
+            for (int i = 0; i < arity; i++) parameters.add("Object a" + i);
+            line("public Object call" + arity + "(" + String.join(", ", parameters) + ") {");
+            indent++;
+            line("final Object[] " + frame + " = new Object[" + slots + "];");
+            for (int i = 0; i < arity; i++) line(frame + "[" + i + "] = a" + i + ";");
+        } else {
+            line("public Object callN(Object[] arguments) {");
+            indent++;
+            line("final Object[] " + frame + " = new Object[" + slots + "];");
+            line("System.arraycopy(arguments, 0, " + frame + ", 0, " + arity + ");");
+        }
+        if (boxes != null) for (int slot : boxes) line(frame + "[" + slot + "] = new Box(" + frame + "[" + slot + "]);");
+        scopes.add(frame);
+        inFunction = true;
+        for (Stmt stmt : body) stmt.accept(this);
+        scopes.remove(scopes.size() - 1);
+        line("return new TrabNull();");
+        indent--;
+        line("}");
+        String method = out.toString();
+        out = enclosing;
+        indent = enclosingIndent;
+        inFunction = enclosingInFunction;
+        StringBuilder buf = new StringBuilder("new Fn(" + arity + ", " + quote(description) + ") {\n");
+        buf.append(method);
+        for (int i = 0; i < enclosingIndent; i++) buf.append("    ");
+        return buf.append("}").toString();
+    }
+
+    private static String names(List<Token> arguments) {
+        return arguments.stream().map(x -> x.lexeme).collect(Collectors.joining(", "));
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        line("{");
+        indent++;
+        if (!stmt.flat) scopes.add(scope(stmt.slots));
+        if (stmt.boxes != null) for (int slot : stmt.boxes) line(local(0, slot) + " = new Box(null);");
+        for (Stmt statement : stmt.statements) statement.accept(this);
+        if (!stmt.flat) scopes.remove(scopes.size() - 1);
+        indent--;
+        line("}");
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        line("{");
+        indent++;
+        String environment = scope(stmt.slots);
+        scopes.add(environment);
+        StringBuilder value = new StringBuilder("new CompiledClass(" + quote("<class " + stmt.name.lexeme + ">") + ")");
+        for (Stmt.Function method : stmt.methods) {
+            String body = function("<function " + names(method.arguments) + ">", method.arguments, method.slots,
+                    method.boxes, ((Stmt.Block) method.body).statements, null);
+            line(environment + "[" + method.slot + "] = " + body + ";");
+            value.append(".method(").append(quote(method.name.lexeme)).append(", (Fn) ")
+                    .append(read(method.name, 0, method.slot, method.boxed)).append(")");
+            if (method.boxed) line(environment + "[" + method.slot + "] = new Box(" + environment + "[" + method.slot + "]);");
+        }
+        scopes.remove(scopes.size() - 1);
+        define(stmt.name, stmt.slot, stmt.boxed, stmt.hoisted, value.toString());
+        indent--;
+        line("}");
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        line("discard(" + stmt.expression.accept(this) + ");");
+        return null;
+    }
+
+    @Override
+    public Void visitPrintableExpressionStmt(Stmt.PrintableExpression stmt) {
+        line("discard(" + stmt.expression.accept(this) + ");");
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        line("if (truthy(" + stmt.ifToken.line + ", " + expression(stmt.condition) + ")) {");
+        indent++;
+        stmt.thenBranch.accept(this);
+        indent--;
+        if (stmt.elseBranch != null) {
+            line("} else {");
+            indent++;
+            stmt.elseBranch.accept(this);
+            indent--;
+        }
+        line("}");
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        // "if (true)" keeps javac from rejecting the statements after it as unreachable.
+        if (inFunction) line("if (true) return " + expression(stmt.value) + ";");
+        else {
+            line("discard(" + expression(stmt.value) + ");");
+            line("if (true) return true;");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.slot < 0)
+            line(global(stmt.name) + " = assign(fresh(" + global(stmt.name) + ", " + stmt.name.line + "), "
+                    + expression(stmt.initializer) + ");");
+        else define(stmt.name, stmt.slot, stmt.boxed, stmt.hoisted, expression(stmt.initializer));
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        line("while (truthy(" + stmt.whileToken.line + ", " + expression(stmt.condition) + ")) {");
+        indent++;
+        stmt.body.accept(this);
+        indent--;
+        line("}");
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        define(stmt.name, stmt.slot, stmt.boxed, stmt.hoisted, function("<function " + names(stmt.arguments) + ">", stmt.arguments,
+                stmt.slots, stmt.boxes, ((Stmt.Block) stmt.body).statements, null));
+        return null;
+    }
+
+    private String expression(Expr expr) {
+        return expr == null ? "null" : expr.accept(this);
+    }
+
+    @Override
+    public String visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) return "null";
+        if (expr.value instanceof Double) return constant(Double.toString((Double) expr.value));
+        if (expr.value instanceof String) return constant(quote((String) expr.value));
+        if (expr.value instanceof Boolean) return (Boolean) expr.value ? "Boolean.TRUE" : "Boolean.FALSE";
+        return constant("new TrabNull()");
+    }
+
+    @Override
+    public String visitTrabStringExpr(Expr.TrabString expr) {
+        if (expr.values.isEmpty()) return "\"\"";
+        return "(" + expr.values.stream().map(e -> "stringify(" + expression(e) + ")")
+                .collect(Collectors.joining(" + ")) + ")";
+    }
+
+    @Override
+    public String visitVariableExpr(Expr.Variable expr) {
+        return read(expr.name, expr.depth, expr.slot, expr.boxed);
+    }
+
+    @Override
+    public String visitTrabListExpr(Expr.TrabList expr) {
+        return "list(" + expr.values.stream().map(this::expression).collect(Collectors.joining(", ")) + ")";
+    }
+
+    @Override
+    public String visitGroupingExpr(Expr.Grouping expr) {
+        return "(" + expression(expr.expression) + ")";
+    }
+
+    @Override
+    public String visitCallExpr(Expr.Call expr) {
+        int count = expr.arguments.size();
+        String callee;
+        if (expr.left instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.left;
+            callee = "method(" + expression(get.left) + ", " + quote(get.name.lexeme) + ", " + count + ", "
+                    + expr.operator.line + ")";
+        } else callee = "callable(" + expression(expr.left) + ", " + count + ", " + expr.operator.line + ")";
+        String arguments = expr.arguments.stream().map(this::expression).collect(Collectors.joining(", "));
+        if (count > 2) return callee + ".callN(new Object[]{" + arguments + "})";
+        return callee + ".call" + count + "(" + arguments + ")";
+    }
+
+    @Override
+    public String visitGetExpr(Expr.Get expr) {
+        return "property(" + expression(expr.left) + ", " + quote(expr.name.lexeme) + ", " + expr.name.line + ")";
+    }
+
+    @Override
+    public String visitIndexExpr(Expr.Index expr) {
+        int line = expr.bracket.line;
+        if (expr.start != null && expr.end == null && expr.step == null)
+            return "index(" + line + ", " + expression(expr.operand) + ", " + expression(expr.start) + ")";
+        return "slice(" + line + ", " + expression(expr.operand) + ", " + expression(expr.start) + ", "
+                + expression(expr.end) + ", " + expression(expr.step) + ")";
+    }
+
+    @Override
+    public String visitUnaryExpr(Expr.Unary expr) {
+        int line = expr.operator.line;
+        switch (expr.operator.type) {
+            case MINUS:
+                return "negate(" + line + ", " + expression(expr.right) + ")";
+            case BANG:
+                return "not(" + line + ", " + expression(expr.right) + ")";
+            case QUESTION:
+                return "command(" + line + ", " + expression(expr.right) + ")";
+            case PLUS_PLUS:
+            case MINUS_MINUS:
+                if (!(expr.right instanceof Expr.Variable)) return "error(" + line + ", \"Operand must be variable\")";
+                Expr.Variable variable = (Expr.Variable) expr.right;
+                return "(" + target(variable.name, variable.depth, variable.slot, variable.boxed) + " = increment(" + line + ", "
+                        + read(variable.name, variable.depth, variable.slot, variable.boxed) + ", "
+                        + (expr.operator.type == TokenType.PLUS_PLUS ? "1.0" : "-1.0") + "))";
+        }
+        return "null";
+    }
+
+    @Override
+    public String visitPostExpr(Expr.Post expr) {
+        int line = expr.operator.line;
+        if (!(expr.left instanceof Expr.Variable)) return "error(" + line + ", \"Operand must be variable\")";
+        Expr.Variable variable = (Expr.Variable) expr.left;
+        String read = read(variable.name, variable.depth, variable.slot, variable.boxed);
+        return "first(" + read + ", " + target(variable.name, variable.depth, variable.slot, variable.boxed) + " = increment("
+                + line + ", " + read + ", " + (expr.operator.type == TokenType.PLUS_PLUS ? "1.0" : "-1.0") + "))";
+    }
+
+    @Override
+    public String visitBinaryExpr(Expr.Binary expr) {
+        String operation;
+        switch (expr.operator.type) {
+            case PLUS:
+                operation = "add";
+                break;
+            case MINUS:
+                operation = "subtract";
+                break;
+            case STAR:
+                operation = "multiply";
+                break;
+            case SLASH:
+                operation = "divide";
+                break;
+            case PERCENT:
+                operation = "modulo";
+                break;
+            case STAR_STAR:
+                operation = "power";
+                break;
+            case LESS:
+                operation = "less";
+                break;
+            case LESS_EQUAL:
+                operation = "lessEqual";
+                break;
+            case GREATER:
+                operation = "greater";
+                break;
+            case GREATER_EQUAL:
+                operation = "greaterEqual";
+                break;
+            case EQUAL_EQUAL:
+                operation = "equal";
+                break;
+            default:
+                operation = "none";
+        }
+        return operation + "(" + expr.operator.line + ", " + expression(expr.left) + ", " + expression(expr.right) + ")";
+    }
+
+    @Override
+    public String visitLogicalExpr(Expr.Logical expr) {
+        int line = expr.operator.line;
+        String left = "truthy(" + line + ", " + expression(expr.left) + ")";
+        String right = "(Object) Boolean.valueOf(truthy(" + line + ", " + expression(expr.right) + "))";
+        if (expr.operator.type == TokenType.AND) return "(" + left + " ? " + right + " : Boolean.FALSE)";
+        return "(" + left + " ? Boolean.TRUE : " + right + ")";
+    }
+
+    @Override
+    public String visitLambdaExpr(Expr.Lambda expr) {
+        List<Stmt> body = expr.right instanceof Stmt.Block ? ((Stmt.Block) expr.right).statements : List.of(expr.right);
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < expr.captures.length; i += 2) values.add(local(expr.captures[i], expr.captures[i + 1]));
+        String captured = "{" + String.join(", ", values) + "}";
+        scopes.add("e" + environments++);
+        String lambda = function("<lambda " + names(expr.arguments) + ">", expr.arguments, expr.slots, expr.boxes,
+                body, captured);
+        scopes.remove(scopes.size() - 1);
+        return lambda;
+    }
+
+    @Override
+    public String visitInlineExpr(Expr.Inline expr) {
+        List<String> values = new ArrayList<>();
+        for (Expr binding : expr.bindings) values.add(expression(binding));
+        values.add(expression(expr.call));
+        return "new Object[] {" + String.join(", ", values) + "}[" + expr.bindings.size() + "]";
+    }
+
+    @Override
+    public String visitAssignExpr(Expr.Assign expr) {
+        int line = expr.name.line;
+        String value = expression(expr.value);
+        String target = target(expr.name, expr.depth, expr.slot, expr.boxed);
+        String checked = expr.depth < 0 ? "assign(defined(" + target + ", " + line + "), " : "(";
+        if (expr.operator.type == TokenType.EQUAL) return "(" + target + " = " + checked + value + "))";
+        char operator;
+        switch (expr.operator.type) {
+            case PLUS_EQUAL:
+                operator = '+';
+                break;
+            case MINUS_EQUAL:
+                operator = '-';
+                break;
+            case STAR_EQUAL:
+                operator = '*';
+                break;
+            case SLASH_EQUAL:
+                operator = '/';
+                break;
+            case PERCENT_EQUAL:
+                operator = '%';
+                break;
+            default:
+                operator = '^';
+        }
+        return "(" + target + " = " + checked + "compound('" + operator + "', " + expr.operator.line + ", " + value
+                + ", " + read(expr.name, expr.depth, expr.slot, expr.boxed) + ")))";
+    }
+}
@@ -0,0 +1,223 @@
+package ml.dent.trab;
+
+import ml.dent.trab.Expr.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Base of the {@link Optimizer} passes. Every visit rewrites the children of a node first and
+ * returns the node itself when none of them changed, or a copy holding the new children when
+ * some did. A pass overrides the visits for the nodes it transforms, calling the inherited
+ * visit to get the node with its children already rewritten.
+ * <p>
+ * Passes run before the {@link Resolver}, so copies do not need to carry slots or
+ * specialization state over.
+ */
+abstract class TreeRewriter implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    List<Stmt> rewrite(List<Stmt> statements) {
+        List<Stmt> rewritten = null;
+        for (int i = 0; i < statements.size(); i++) {
+            Stmt stmt = statements.get(i);
+            Stmt result = rewrite(stmt);
+            if (result != stmt && rewritten == null) rewritten = new ArrayList<>(statements.subList(0, i));
+            if (rewritten != null && result != null) rewritten.add(result);
+        }
+        return rewritten == null ? statements : rewritten;
+    }
+
+    /**
+     * Rewrites a statement. A statement rewritten to null is removed from the list holding it.
+     */
+    Stmt rewrite(Stmt stmt) {
+        return stmt == null ? null : stmt.accept(this);
+    }
+
+    /**
+     * Rewrites a statement that has to stay, such as the body of a loop or a function.
+     */
+    Stmt rewriteBody(Stmt stmt) {
+        if (stmt == null) return null;
+        Stmt result = stmt.accept(this);
+        return result == null ? new Stmt.Block(List.of()) : result;
+    }
+
+    Expr rewrite(Expr expr) {
+        return expr == null ? null : expr.accept(this);
+    }
+
+    List<Expr> rewriteAll(List<Expr> exprs) {
+        List<Expr> rewritten = null;
+        for (int i = 0; i < exprs.size(); i++) {
+            Expr expr = exprs.get(i);
+            Expr result = rewrite(expr);
+            if (result != expr && rewritten == null) rewritten = new ArrayList<>(exprs.subList(0, i));
+            if (rewritten != null) rewritten.add(result);
+        }
+        return rewritten == null ? exprs : rewritten;
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitTrabStringExpr(TrabString expr) {
+        List<Expr> values = rewriteAll(expr.values);
+        return values == expr.values ? expr : new TrabString(values);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitTrabListExpr(TrabList expr) {
+        List<Expr> values = rewriteAll(expr.values);
+        return values == expr.values ? expr : new TrabList(values, expr.start);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Grouping expr) {
+        Expr expression = rewrite(expr.expression);
+        return expression == expr.expression ? expr : new Grouping(expression);
+    }
+
+    @Override
+    public Expr visitCallExpr(Call expr) {
+        Expr left = rewrite(expr.left);
+        List<Expr> arguments = rewriteAll(expr.arguments);
+        return left == expr.left && arguments == expr.arguments ? expr : new Call(expr.operator, left, arguments);
+    }
+
+    @Override
+    public Expr visitGetExpr(Get expr) {
+        Expr left = rewrite(expr.left);
+        return left == expr.left ? expr : new Get(left, expr.name);
+    }
+
+    @Override
+    public Expr visitIndexExpr(Index expr) {
+        Expr operand = rewrite(expr.operand);
+        Expr start = rewrite(expr.start);
+        Expr end = rewrite(expr.end);
+        Expr step = rewrite(expr.step);
+        if (operand == expr.operand && start == expr.start && end == expr.end && step == expr.step) return expr;
+        return new Index(operand, start, end, step, expr.bracket);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Unary expr) {
+        Expr right = rewrite(expr.right);
+        return right == expr.right ? expr : new Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitPostExpr(Post expr) {
+        Expr left = rewrite(expr.left);
+        return left == expr.left ? expr : new Post(expr.operator, left);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Binary expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        return left == expr.left && right == expr.right ? expr : new Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Logical expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        return left == expr.left && right == expr.right ? expr : new Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitLambdaExpr(Lambda expr) {
+        Stmt right = rewriteBody(expr.right);
+        return right == expr.right ? expr : new Lambda(expr.arguments, right);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Assign expr) {
+        Expr value = rewrite(expr.value);
+        return value == expr.value ? expr : new Assign(expr.name, expr.operator, value);
+    }
+
+    // The definition an inlined call was copied from belongs to another tree and is left alone.
+    @Override
+    public Expr visitInlineExpr(Inline expr) {
+        Expr target = rewrite(expr.target);
+        List<Expr> bindings = rewriteAll(expr.bindings);
+        Expr call = rewrite(expr.call);
+        Stmt body = rewriteBody(expr.body);
+        if (target == expr.target && bindings == expr.bindings && call == expr.call && body == expr.body) return expr;
+        return new Inline((Variable) target, expr.definition, bindings, (Call) call, body);
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = rewrite(stmt.statements);
+        return statements == stmt.statements ? stmt : new Stmt.Block(statements);
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        List<Stmt.Function> methods = null;
+        for (int i = 0; i < stmt.methods.size(); i++) {
+            Stmt.Function method = stmt.methods.get(i);
+            Stmt.Function result = (Stmt.Function) rewriteBody(method);
+            if (result != method && methods == null) methods = new ArrayList<>(stmt.methods.subList(0, i));
+            if (methods != null) methods.add(result);
+        }
+        return methods == null ? stmt : new Stmt.Class(stmt.name, methods);
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = rewrite(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitPrintableExpressionStmt(Stmt.PrintableExpression stmt) {
+        Expr expression = rewrite(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.PrintableExpression(expression);
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = rewrite(stmt.condition);
+        Stmt thenBranch = rewriteBody(stmt.thenBranch);
+        Stmt elseBranch = rewriteBody(stmt.elseBranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) return stmt;
+        return new Stmt.If(stmt.ifToken, condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        Expr value = rewrite(stmt.value);
+        return value == stmt.value ? stmt : new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Expr initializer = rewrite(stmt.initializer);
+        return initializer == stmt.initializer ? stmt : new Stmt.Var(stmt.name, initializer);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = rewrite(stmt.condition);
+        Stmt body = rewriteBody(stmt.body);
+        return condition == stmt.condition && body == stmt.body ? stmt : new Stmt.While(stmt.whileToken, condition, body);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        Stmt body = rewriteBody(stmt.body);
+        return body == stmt.body ? stmt : new Stmt.Function(stmt.name, stmt.arguments, body);
+    }
+}
@@ -0,0 +1,449 @@
+package ml.dent.trab;
+
+import ml.dent.trab.Expr.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Works out after resolution which types the value of each expression can have, and records
+ * them in {@link Expr#type} as a set of the bits below. Engines skip the type checks on
+ * operands whose type is certain: a condition that is always a boolean, or arithmetic on two
+ * numbers.
+ * <p>
+ * The inference follows the flow of each function. It tracks the local variables of that
+ * function which no nested function, lambda or class assigns, since only the function itself
+ * can change those. Branches join what each side leaves behind, and loops are walked until
+ * the types at their head stop growing. Everything else, globals and parameters included,
+ * can be anything.
+ * <p>
+ * An operation whose operands can have no type it accepts fails whenever it runs. Those are
+ * reported as warnings before the program starts, since the code may never run.
+ */
+class TypeInference implements Expr.Visitor<Integer>, Stmt.Visitor<Void> {
+    static final int NUMBER = 1;
+    static final int BOOLEAN = 2;
+    static final int STRING = 4;
+    static final int LIST = 8;
+    static final int OTHER = 16;
+    static final int ANY = NUMBER | BOOLEAN | STRING | LIST | OTHER;
+
+    // Stands for a variable that is not tracked in a scope's map of declarations.
+    private static final Object UNTRACKED = new Object();
+
+    private static class Scope {
+        // Each name maps to its declaration, which keys the variable's type, or to UNTRACKED.
+        final Map<String, Object> names = new HashMap<>();
+        final int function;
+
+        Scope(int function) {
+            this.function = function;
+        }
+    }
+
+    private static class Warning {
+        final Token token;
+        final String message;
+
+        Warning(Token token, String message) {
+            this.token = token;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Collects the names that functions, lambdas and classes inside a subtree assign.
+     */
+    private static class ClosureWrites extends TreeRewriter {
+        final Set<String> names = new HashSet<>();
+        private int depth;
+
+        private void write(Expr target) {
+            if (depth > 0 && target instanceof Variable) names.add(((Variable) target).name.lexeme);
+        }
+
+        @Override
+        public Expr visitAssignExpr(Assign expr) {
+            if (depth > 0) names.add(expr.name.lexeme);
+            return super.visitAssignExpr(expr);
+        }
+
+        @Override
+        public Expr visitPostExpr(Post expr) {
+            write(expr.left);
+            return super.visitPostExpr(expr);
+        }
+
+        @Override
+        public Expr visitUnaryExpr(Unary expr) {
+            if (expr.operator.type == TokenType.PLUS_PLUS || expr.operator.type == TokenType.MINUS_MINUS)
+                write(expr.right);
+            return super.visitUnaryExpr(expr);
+        }
+
+        @Override
+        public Expr visitLambdaExpr(Lambda expr) {
+            depth++;
+            super.visitLambdaExpr(expr);
+            depth--;
+            return expr;
+        }
+
+        @Override
+        public Stmt visitFunctionStmt(Stmt.Function stmt) {
+            depth++;
+            super.visitFunctionStmt(stmt);
+            depth--;
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitClassStmt(Stmt.Class stmt) {
+            depth++;
+            super.visitClassStmt(stmt);
+            depth--;
+            return stmt;
+        }
+    }
+
+    private final Diagnostics diagnostics;
+    private final List<Scope> scopes = new ArrayList<>();
+    // Keyed by node so that walking a loop again replaces what the last walk found.
+    private final Map<Object, Warning> warnings = new LinkedHashMap<>();
+    private int function;
+    private Set<String> closureWrites;
+    // The types of the tracked variables where the walk is, or null where it cannot get to.
+    private Map<Object, Integer> types = new HashMap<>();
+
+    TypeInference(Diagnostics diagnostics) {
+        this.diagnostics = diagnostics;
+    }
+
+    void infer(List<Stmt> statements) {
+        ClosureWrites writes = new ClosureWrites();
+        writes.rewrite(statements);
+        closureWrites = writes.names;
+        for (Stmt stmt : statements) stmt.accept(this);
+        List<Warning> found = new ArrayList<>(warnings.values());
+        found.sort((a, b) -> Integer.compare(a.token.line, b.token.line));
+        for (Warning warning : found) diagnostics.warning(warning.token, warning.message);
+    }
+
+    private int infer(Expr expr) {
+        int type = expr.accept(this);
+        expr.type = type;
+        return type;
+    }
+
+    private void check(Object node, Token token, boolean fails, String message) {
+        warnings.remove(node);
+        if (fails) warnings.put(node, new Warning(token, message));
+    }
+
+    private void condition(Object node, Token token, Expr condition) {
+        check(node, token, (infer(condition) & BOOLEAN) == 0, "Operand must be boolean");
+    }
+
+    private void declare(Token name, int type) {
+        if (scopes.isEmpty()) return;
+        Scope scope = scopes.get(scopes.size() - 1);
+        if (closureWrites.contains(name.lexeme)) {
+            scope.names.put(name.lexeme, UNTRACKED);
+            return;
+        }
+        scope.names.put(name.lexeme, name);
+        if (types != null) types.put(name, type);
+    }
+
+    /**
+     * The declaration of a tracked variable of the current function, or null.
+     */
+    private Object lookUp(Token name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Scope scope = scopes.get(i);
+            Object declaration = scope.names.get(name.lexeme);
+            if (declaration == null) continue;
+            return declaration == UNTRACKED || scope.function != function ? null : declaration;
+        }
+        return null;
+    }
+
+    private int typeOf(Token name) {
+        Object declaration = lookUp(name);
+        if (declaration == null || types == null) return ANY;
+        return types.getOrDefault(declaration, ANY);
+    }
+
+    private void assign(Token name, int type) {
+        Object declaration = lookUp(name);
+        if (declaration != null && types != null) types.put(declaration, type);
+    }
+
+    private Map<Object, Integer> copy(Map<Object, Integer> state) {
+        return state == null ? null : new HashMap<>(state);
+    }
+
+    private static Map<Object, Integer> join(Map<Object, Integer> a, Map<Object, Integer> b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        Map<Object, Integer> joined = new HashMap<>(a);
+        for (Map.Entry<Object, Integer> entry : b.entrySet()) joined.merge(entry.getKey(), entry.getValue(), (x, y) -> x | y);
+        return joined;
+    }
+
+    private void function(List<Token> arguments, Stmt body) {
+        Set<String> outerWrites = closureWrites;
+        Map<Object, Integer> outerTypes = types;
+        ClosureWrites writes = new ClosureWrites();
+        writes.rewrite(body);
+        closureWrites = writes.names;
+        types = new HashMap<>();
+        function++;
+        Scope scope = new Scope(function);
+        scopes.add(scope);
+        for (Token argument : arguments) declare(argument, ANY);
+        body.accept(this);
+        scopes.remove(scopes.size() - 1);
+        function--;
+        types = outerTypes;
+        closureWrites = outerWrites;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        scopes.add(new Scope(function));
+        for (Stmt statement : stmt.statements) statement.accept(this);
+        scopes.remove(scopes.size() - 1);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        declare(stmt.name, OTHER);
+        scopes.add(new Scope(function));
+        for (Stmt.Function method : stmt.methods) declare(method.name, OTHER);
+        for (Stmt.Function method : stmt.methods) function(method.arguments, method.body);
+        scopes.remove(scopes.size() - 1);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        infer(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintableExpressionStmt(Stmt.PrintableExpression stmt) {
+        infer(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        condition(stmt, stmt.ifToken, stmt.condition);
+        Map<Object, Integer> before = copy(types);
+        stmt.thenBranch.accept(this);
+        Map<Object, Integer> then = types;
+        types = before;
+        if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+        types = join(then, types);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) infer(stmt.value);
+        types = null;
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        int type = stmt.initializer == null ? OTHER : infer(stmt.initializer);
+        declare(stmt.name, type);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        Map<Object, Integer> head = types;
+        for (; ; ) {
+            types = copy(head);
+            condition(stmt, stmt.whileToken, stmt.condition);
+            Map<Object, Integer> exit = copy(types);
+            stmt.body.accept(this);
+            Map<Object, Integer> next = join(head, types);
+            if (next == null || next.equals(head)) {
+                types = exit;
+                return null;
+            }
+            head = next;
+        }
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        declare(stmt.name, OTHER);
+        function(stmt.arguments, stmt.body);
+        return null;
+    }
+
+    @Override
+    public Integer visitLiteralExpr(Literal expr) {
+        if (expr.value instanceof Double) return NUMBER;
+        if (expr.value instanceof Boolean) return BOOLEAN;
+        if (expr.value instanceof String) return STRING;
+        return OTHER;
+    }
+
+    @Override
+    public Integer visitTrabStringExpr(TrabString expr) {
+        for (Expr value : expr.values) infer(value);
+        return STRING;
+    }
+
+    @Override
+    public Integer visitVariableExpr(Variable expr) {
+        return expr.depth < 0 ? ANY : typeOf(expr.name);
+    }
+
+    @Override
+    public Integer visitTrabListExpr(TrabList expr) {
+        for (Expr value : expr.values) infer(value);
+        return LIST;
+    }
+
+    @Override
+    public Integer visitGroupingExpr(Grouping expr) {
+        return infer(expr.expression);
+    }
+
+    @Override
+    public Integer visitCallExpr(Call expr) {
+        int callee = expr.left instanceof Get ? infer(((Get) expr.left).left) : infer(expr.left);
+        if (expr.left instanceof Get) expr.left.type = ANY;
+        for (Expr argument : expr.arguments) infer(argument);
+        // Lists have a builtin length, which nothing can replace.
+        if (expr.left instanceof Get && callee == LIST && expr.arguments.isEmpty()
+                && ((Get) expr.left).name.lexeme.equals("length"))
+            return NUMBER;
+        return ANY;
+    }
+
+    @Override
+    public Integer visitGetExpr(Get expr) {
+        infer(expr.left);
+        return ANY;
+    }
+
+    @Override
+    public Integer visitIndexExpr(Index expr) {
+        int operand = infer(expr.operand);
+        if (expr.start != null) infer(expr.start);
+        if (expr.end != null) infer(expr.end);
+        if (expr.step != null) infer(expr.step);
+        check(expr, expr.bracket, (operand & (LIST | STRING)) == 0, "Index can only be called on list");
+        return ANY;
+    }
+
+    @Override
+    public Integer visitUnaryExpr(Unary expr) {
+        int right = infer(expr.right);
+        switch (expr.operator.type) {
+            case MINUS:
+            case PLUS_PLUS:
+            case MINUS_MINUS:
+                check(expr, expr.operator, (right & NUMBER) == 0, "Operand must be a number");
+                if (expr.operator.type != TokenType.MINUS && expr.right instanceof Variable)
+                    assign(((Variable) expr.right).name, NUMBER);
+                return NUMBER;
+            case BANG:
+                check(expr, expr.operator, (right & BOOLEAN) == 0, "Operand must be boolean");
+                return BOOLEAN;
+            case QUESTION:
+                check(expr, expr.operator, (right & STRING) == 0, "Operand must be a string");
+                return STRING | OTHER;
+        }
+        return ANY;
+    }
+
+    @Override
+    public Integer visitPostExpr(Post expr) {
+        int left = infer(expr.left);
+        check(expr, expr.operator, (left & NUMBER) == 0, "Operand must be a number");
+        if (expr.left instanceof Variable) assign(((Variable) expr.left).name, NUMBER);
+        return NUMBER;
+    }
+
+    @Override
+    public Integer visitBinaryExpr(Binary expr) {
+        int left = infer(expr.left);
+        int right = infer(expr.right);
+        boolean numbers = (left & NUMBER) != 0 && (right & NUMBER) != 0;
+        switch (expr.operator.type) {
+            case PLUS:
+                check(expr, expr.operator, !numbers && ((left | right) & STRING) == 0, "Invalid types");
+                return (numbers ? NUMBER : 0) | ((left | right) & STRING);
+            case MINUS:
+            case STAR:
+            case SLASH:
+            case PERCENT:
+            case STAR_STAR:
+                check(expr, expr.operator, !numbers, "Operands must be numbers");
+                return NUMBER;
+            case LESS:
+            case LESS_EQUAL:
+            case GREATER:
+            case GREATER_EQUAL:
+                check(expr, expr.operator, !numbers, "Operands must be numbers");
+                return BOOLEAN;
+            case EQUAL_EQUAL:
+                return BOOLEAN;
+        }
+        return OTHER;
+    }
+
+    @Override
+    public Integer visitLogicalExpr(Logical expr) {
+        int left = infer(expr.left);
+        Map<Object, Integer> skipped = copy(types);
+        int right = infer(expr.right);
+        types = join(skipped, types);
+        check(expr, expr.operator, (left & BOOLEAN) == 0 || (right & BOOLEAN) == 0, "Operand must be boolean");
+        return BOOLEAN;
+    }
+
+    @Override
+    public Integer visitLambdaExpr(Lambda expr) {
+        function(expr.arguments, expr.right);
+        return OTHER;
+    }
+
+    // The body's returns would end the flow of the enclosing function, so only the call is
+    // followed; its result can be anything.
+    @Override
+    public Integer visitInlineExpr(Inline expr) {
+        infer(expr.target);
+        for (Expr binding : expr.bindings) infer(binding);
+        infer(expr.call);
+        return ANY;
+    }
+
+    @Override
+    public Integer visitAssignExpr(Assign expr) {
+        int value = infer(expr.value);
+        if (expr.operator.type != TokenType.EQUAL) {
+            int current = expr.depth < 0 ? ANY : typeOf(expr.name);
+            check(expr, expr.operator, (value & NUMBER) == 0 || (current & NUMBER) == 0, "Operand must be a number");
+            value = NUMBER;
+        }
+        if (expr.depth >= 0) assign(expr.name, value);
+        return value;
+    }
+}
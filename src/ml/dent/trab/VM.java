@@ -0,0 +1,578 @@
+package ml.dent.trab;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stack based virtual machine that executes the bytecode produced by
+ * {@link BytecodeCompiler}. It is an alternative to the tree walking
+ * {@link Interpreter}, which stays the reference for the language semantics.
+ */
+public class VM {
+    private static class CallFrame {
+        VMClosure closure;
+        int ip;
+        int base;
+    }
+
+    final Map<String, Global> globals = new HashMap<>();
+    private Object[] stack = new Object[1024];
+    private int sp;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount;
+    private VMClosure.Upvalue openUpvalues;
+    private final Diagnostics diagnostics;
+    private final PrintStream out;
+    private boolean isRepl;
+    private final int maxDepth;
+
+    public VM(Diagnostics diagnostics, PrintStream out) {
+        this(diagnostics, out, Options.DEFAULT.maxDepth);
+    }
+
+    public VM(Diagnostics diagnostics, PrintStream out, int maxDepth) {
+        this.diagnostics = diagnostics;
+        this.out = out;
+        this.maxDepth = maxDepth;
+        global("print").define(Natives.print(out));
+        global("clock").define(Natives.CLOCK);
+        global("InternalList").define(Natives.INTERNAL_LIST);
+        for (int i = 0; i < frames.length; i++) frames[i] = new CallFrame();
+    }
+
+    /**
+     * Returns the cell for a global name, making an undefined one the first time it comes up.
+     */
+    Global global(String name) {
+        return globals.computeIfAbsent(name, Global::new);
+    }
+
+    void run(VMFunction script, boolean isRepl, String stin) {
+        this.isRepl = isRepl;
+        global("stin").define(stin);
+        sp = 0;
+        frameCount = 0;
+        openUpvalues = null;
+        VMClosure closure = new VMClosure(script);
+        stack[sp++] = closure;
+        try {
+            call(closure, 0);
+            execute();
+        } catch (RuntimeError error) {
+            diagnostics.runtimeError(error);
+        } finally {
+            Arrays.fill(stack, null);
+            sp = 0;
+            frameCount = 0;
+            openUpvalues = null;
+        }
+    }
+
+    private void execute() {
+        CallFrame frame = frames[frameCount - 1];
+        VMClosure closure = frame.closure;
+        byte[] code = closure.function.chunk.code;
+        Object[] constants = closure.function.chunk.constants;
+        int ip = frame.ip;
+        int base = frame.base;
+        Object[] stack = this.stack;
+        int sp = this.sp;
+
+        for (; ; ) {
+            byte op = code[ip++];
+            switch (op) {
+                case OpCode.CONSTANT:
+                    stack[sp++] = constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    break;
+                case OpCode.POP:
+                    sp--;
+                    break;
+                case OpCode.DUP:
+                    stack[sp] = stack[sp - 1];
+                    sp++;
+                    break;
+                case OpCode.GET_LOCAL:
+                    stack[sp++] = stack[base + (code[ip++] & 0xff)];
+                    break;
+                case OpCode.SET_LOCAL:
+                    stack[base + (code[ip++] & 0xff)] = stack[sp - 1];
+                    break;
+                case OpCode.GET_UPVALUE: {
+                    VMClosure.Upvalue upvalue = closure.upvalues[code[ip++] & 0xff];
+                    Object value = upvalue.open ? stack[upvalue.slot] : upvalue.closed;
+                    // Only a variable declared ahead of its statement holds nothing.
+                    if (value == null) throw error(frame, ip, "Cannot access unassigned variable");
+                    stack[sp++] = value;
+                    break;
+                }
+                case OpCode.SET_UPVALUE: {
+                    VMClosure.Upvalue upvalue = closure.upvalues[code[ip++] & 0xff];
+                    if (upvalue.open) stack[upvalue.slot] = stack[sp - 1];
+                    else upvalue.closed = stack[sp - 1];
+                    break;
+                }
+                case OpCode.GET_GLOBAL: {
+                    Global global = (Global) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    if (!global.isDefined()) throw error(frame, ip, "Cannot access unassigned variable");
+                    stack[sp++] = global.value();
+                    break;
+                }
+                case OpCode.SET_GLOBAL: {
+                    Global global = (Global) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    if (!global.isDefined()) throw error(frame, ip, "Cannot assign undefined variable");
+                    global.define(stack[sp - 1]);
+                    break;
+                }
+                case OpCode.DEFINE_GLOBAL: {
+                    Global global = (Global) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    global.define(stack[--sp]);
+                    stack[sp] = null;
+                    break;
+                }
+                case OpCode.DEFINE_VAR: {
+                    Global global = (Global) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    if (global.isDefined())
+                        throw error(frame, ip, "Variable cannot be redefined in same context");
+                    global.define(stack[--sp]);
+                    stack[sp] = null;
+                    break;
+                }
+                case OpCode.ADD: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (a instanceof Double && b instanceof Double)
+                        stack[sp - 1] = (Double) a + (Double) b;
+                    else if (a instanceof String || b instanceof String)
+                        stack[sp - 1] = Interpreter.stringify(a) + Interpreter.stringify(b);
+                    else throw error(frame, ip, "Invalid types");
+                    break;
+                }
+                case OpCode.SUBTRACT: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double && b instanceof Double))
+                        throw error(frame, ip, "Operands must be numbers");
+                    stack[sp - 1] = (Double) a - (Double) b;
+                    break;
+                }
+                case OpCode.MULTIPLY: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double && b instanceof Double))
+                        throw error(frame, ip, "Operands must be numbers");
+                    stack[sp - 1] = (Double) a * (Double) b;
+                    break;
+                }
+                case OpCode.DIVIDE: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double && b instanceof Double))
+                        throw error(frame, ip, "Operands must be numbers");
+                    stack[sp - 1] = (Double) a / (Double) b;
+                    break;
+                }
+                case OpCode.MODULO: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double && b instanceof Double))
+                        throw error(frame, ip, "Operands must be numbers");
+                    stack[sp - 1] = (Double) a % (Double) b;
+                    break;
+                }
+                case OpCode.POWER: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double && b instanceof Double))
+                        throw error(frame, ip, "Operands must be numbers");
+                    stack[sp - 1] = Math.pow((Double) a, (Double) b);
+                    break;
+                }
+                case OpCode.LESS: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double && b instanceof Double))
+                        throw error(frame, ip, "Operands must be numbers");
+                    stack[sp - 1] = (Double) a < (Double) b;
+                    break;
+                }
+                case OpCode.LESS_EQUAL: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double && b instanceof Double))
+                        throw error(frame, ip, "Operands must be numbers");
+                    stack[sp - 1] = (Double) a <= (Double) b;
+                    break;
+                }
+                case OpCode.GREATER: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double && b instanceof Double))
+                        throw error(frame, ip, "Operands must be numbers");
+                    stack[sp - 1] = (Double) a > (Double) b;
+                    break;
+                }
+                case OpCode.GREATER_EQUAL: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double && b instanceof Double))
+                        throw error(frame, ip, "Operands must be numbers");
+                    stack[sp - 1] = (Double) a >= (Double) b;
+                    break;
+                }
+                case OpCode.NEGATE: {
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double)) throw error(frame, ip, "Operand must be a number");
+                    stack[sp - 1] = -1.0 * (Double) a;
+                    break;
+                }
+                case OpCode.NOT: {
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Boolean)) throw error(frame, ip, "Operand must be boolean");
+                    stack[sp - 1] = !(Boolean) a;
+                    break;
+                }
+                case OpCode.EQUAL: {
+                    Object b = stack[--sp];
+                    stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], b);
+                    break;
+                }
+                case OpCode.INCREMENT:
+                case OpCode.DECREMENT: {
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double)) throw error(frame, ip, "Operand must be a number");
+                    stack[sp - 1] = op == OpCode.INCREMENT ? (Double) a + 1.0 : (Double) a - 1.0;
+                    break;
+                }
+                case OpCode.CHECK_BOOL:
+                    if (!(stack[sp - 1] instanceof Boolean)) throw error(frame, ip, "Operand must be boolean");
+                    break;
+                case OpCode.COMMAND:
+                    stack[sp - 1] = Interpreter.runCommand(token(frame, ip), stack[sp - 1]);
+                    break;
+                case OpCode.JUMP:
+                    ip += 2 + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    break;
+                case OpCode.JUMP_IF_FALSE: {
+                    Object condition = stack[--sp];
+                    if (!(condition instanceof Boolean)) throw error(frame, ip + 2, "Operand must be boolean");
+                    if ((Boolean) condition) ip += 2;
+                    else ip += 2 + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    break;
+                }
+                case OpCode.LOOP:
+                    ip -= (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)) - 2;
+                    break;
+                case OpCode.CALL:
+                case OpCode.TAIL_CALL:
+                case OpCode.INVOKE: {
+                    int argCount;
+                    Object callee;
+                    if (op != OpCode.INVOKE) {
+                        argCount = code[ip++] & 0xff;
+                        callee = stack[sp - argCount - 1];
+                    } else {
+                        String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        argCount = code[ip + 2] & 0xff;
+                        ip += 3;
+                        callee = method(frame, ip, stack[sp - argCount - 1], name);
+                    }
+                    frame.ip = ip;
+                    this.sp = sp;
+                    if (callee instanceof VMClosure && op == OpCode.TAIL_CALL && frameCount > 1) {
+                        // Slides the callee and its arguments down over the returning frame.
+                        VMFunction function = ((VMClosure) callee).function;
+                        if (argCount != function.arity())
+                            throw error(frame, ip, "Expected " + function.arity() + " arguments but got " + argCount);
+                        closeUpvalues(base);
+                        System.arraycopy(stack, sp - argCount - 1, stack, base, argCount + 1);
+                        Arrays.fill(stack, base + argCount + 1, sp, null);
+                        sp = this.sp = base + argCount + 1;
+                        frameCount--;
+                    }
+                    if (callee instanceof VMClosure) {
+                        frame = call((VMClosure) callee, argCount);
+                        closure = frame.closure;
+                        code = closure.function.chunk.code;
+                        constants = closure.function.chunk.constants;
+                        ip = frame.ip;
+                        base = frame.base;
+                        stack = this.stack;
+                    } else if (callee instanceof TrabCallable) {
+                        boolean bound = op == OpCode.INVOKE && stack[sp - argCount - 1] instanceof List;
+                        Object result = callNative(frame, ip, (TrabCallable) callee, argCount, bound);
+                        sp -= argCount;
+                        stack[sp - 1] = result;
+                    } else throw error(frame, ip, "Only Lambdas, Functions, and Methods can be called");
+                    break;
+                }
+                case OpCode.GET_PROPERTY: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    Object receiver = stack[sp - 1];
+                    Object method = method(frame, ip, receiver, name);
+                    stack[sp - 1] = receiver instanceof List
+                            ? new ShuntedFunction((TrabCallable) method, receiver) : method;
+                    break;
+                }
+                case OpCode.CLOSURE: {
+                    VMFunction function = (VMFunction) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    VMClosure created = new VMClosure(function);
+                    for (int i = 0; i < function.upvalueCount; i++) {
+                        boolean isLocal = code[ip++] != 0;
+                        int index = code[ip++] & 0xff;
+                        created.upvalues[i] = isLocal ? captureUpvalue(base + index) : closure.upvalues[index];
+                    }
+                    stack[sp++] = created;
+                    break;
+                }
+                case OpCode.CLOSE_UPVALUE:
+                    closeUpvalues(sp - 1);
+                    stack[--sp] = null;
+                    break;
+                case OpCode.RETURN: {
+                    Object result = stack[--sp];
+                    closeUpvalues(base);
+                    frameCount--;
+                    if (frameCount == 0) {
+                        this.sp = base;
+                        return;
+                    }
+                    sp = base;
+                    stack[sp++] = result;
+                    frame = frames[frameCount - 1];
+                    closure = frame.closure;
+                    code = closure.function.chunk.code;
+                    constants = closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case OpCode.CLASS: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    int count = code[ip + 2] & 0xff;
+                    ip += 3;
+                    VMClass created = makeClass(name, sp - count, sp);
+                    sp -= count;
+                    stack[sp++] = created;
+                    break;
+                }
+                case OpCode.LIST: {
+                    int count = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    List<Object> list = makeList(sp - count, sp);
+                    sp -= count;
+                    stack[sp++] = list;
+                    break;
+                }
+                case OpCode.INDEX: {
+                    Object index = stack[--sp];
+                    Object left = stack[sp - 1];
+                    if (left instanceof List && index instanceof Double) {
+                        List<?> list = (List<?>) left;
+                        int ind = (int) (double) (Double) index;
+                        if (ind < 0) ind += list.size();
+                        if (ind >= 0 && ind < list.size()) {
+                            stack[sp - 1] = list.get(ind);
+                            break;
+                        }
+                    }
+                    stack[sp - 1] = Interpreter.index(token(frame, ip), left, index);
+                    break;
+                }
+                case OpCode.SLICE: {
+                    int mask = code[ip++] & 0xff;
+                    Object step = (mask & 4) != 0 ? stack[--sp] : null;
+                    Object end = (mask & 2) != 0 ? stack[--sp] : null;
+                    Object start = (mask & 1) != 0 ? stack[--sp] : null;
+                    Arrays.fill(stack, sp, sp + Integer.bitCount(mask), null);
+                    stack[sp - 1] = Interpreter.slice(token(frame, ip), stack[sp - 1], start, end, step);
+                    break;
+                }
+                case OpCode.INTERPOLATE: {
+                    int count = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    String joined = interpolate(sp - count, sp);
+                    sp -= count;
+                    stack[sp++] = joined;
+                    break;
+                }
+                case OpCode.REPL_PRINT: {
+                    Object value = stack[--sp];
+                    stack[sp] = null;
+                    if (isRepl) out.println(Interpreter.stringify(value));
+                    break;
+                }
+                case OpCode.STORE_LOCAL:
+                    stack[base + (code[ip++] & 0xff)] = stack[--sp];
+                    break;
+                case OpCode.INC_LOCAL: {
+                    int slot = base + (code[ip] & 0xff);
+                    Object a = stack[slot];
+                    ip += 2;
+                    if (!(a instanceof Double)) throw error(frame, ip, "Operand must be a number");
+                    stack[slot] = (Double) a + code[ip - 1];
+                    break;
+                }
+                case OpCode.JUMP_UNLESS_LESS:
+                case OpCode.JUMP_UNLESS_LESS_EQUAL:
+                case OpCode.JUMP_UNLESS_GREATER:
+                case OpCode.JUMP_UNLESS_GREATER_EQUAL: {
+                    Object b = stack[--sp];
+                    Object a = stack[--sp];
+                    ip += 2;
+                    if (!(a instanceof Double && b instanceof Double))
+                        throw error(frame, ip, "Operands must be numbers");
+                    double x = (Double) a;
+                    double y = (Double) b;
+                    boolean holds = op == OpCode.JUMP_UNLESS_LESS ? x < y
+                            : op == OpCode.JUMP_UNLESS_LESS_EQUAL ? x <= y
+                            : op == OpCode.JUMP_UNLESS_GREATER ? x > y : x >= y;
+                    if (!holds) ip += ((code[ip - 2] & 0xff) << 8) | (code[ip - 1] & 0xff);
+                    break;
+                }
+                default:
+                    throw error(frame, ip, "Unknown instruction " + OpCode.name(op));
+            }
+        }
+    }
+
+    // The cases below are kept out of execute, whose size decides how soon and how well the
+    // JVM compiles it.
+
+    /**
+     * Calls a native function, or a list method with the list as its first argument when bound.
+     */
+    private Object callNative(CallFrame frame, int ip, TrabCallable function, int argCount, boolean bound) {
+        int expected = function.arity() - (bound ? 1 : 0);
+        if (expected != argCount) throw error(frame, ip, "Expected " + expected + " arguments but got " + argCount);
+        int from = sp - argCount - (bound ? 1 : 0);
+        switch (sp - from) {
+            case 0:
+                return function.call0(null, token(frame, ip));
+            case 1:
+                return function.call1(null, token(frame, ip), stack[from]);
+            case 2:
+                return function.call2(null, token(frame, ip), stack[from], stack[from + 1]);
+            default:
+                return function.callN(null, token(frame, ip), Arrays.copyOfRange(stack, from, sp));
+        }
+    }
+
+    private VMClass makeClass(String name, int from, int to) {
+        Map<String, VMClosure> methods = new LinkedHashMap<>();
+        for (int i = from; i < to; i++) {
+            VMClosure method = (VMClosure) stack[i];
+            methods.put(method.function.name, method);
+            stack[i] = null;
+        }
+        return new VMClass(name, methods);
+    }
+
+    private List<Object> makeList(int from, int to) {
+        List<Object> list = new ArrayList<>(Math.max(to - from, 10));
+        for (int i = from; i < to; i++) {
+            list.add(stack[i]);
+            stack[i] = null;
+        }
+        return list;
+    }
+
+    private String interpolate(int from, int to) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            buf.append(Interpreter.stringify(stack[i]));
+            stack[i] = null;
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Looks up a method on a class, a native class or the builtin list type.
+     */
+    private Object method(CallFrame frame, int ip, Object receiver, String name) {
+        Object method;
+        if (receiver instanceof VMClass) method = ((VMClass) receiver).methods.get(name);
+        else if (receiver instanceof List) method = Natives.INTERNAL_LIST.getFunction(name);
+        else if (receiver instanceof TrabClassable) method = ((TrabClassable) receiver).getFunction(name);
+        else throw error(frame, ip, "Can only call '.' on class");
+        if (method == null) throw error(frame, ip, "Method " + name + " does not exist");
+        return method;
+    }
+
+    private CallFrame call(VMClosure closure, int argCount) {
+        VMFunction function = closure.function;
+        CallFrame caller = frameCount > 0 ? frames[frameCount - 1] : null;
+        if (argCount != function.arity())
+            throw error(caller, caller.ip, "Expected " + function.arity() + " arguments but got " + argCount);
+        if (frameCount == maxDepth) throw overflow(caller);
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+            for (int i = frameCount; i < frames.length; i++) frames[i] = new CallFrame();
+        }
+        int base = sp - argCount - 1;
+        if (base + function.maxStack > stack.length)
+            stack = Arrays.copyOf(stack, Math.max(stack.length * 2, base + function.maxStack));
+        CallFrame frame = frames[frameCount++];
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = base;
+        return frame;
+    }
+
+    /**
+     * The error for a call nesting more than {@link #maxDepth} deep, listing the
+     * calls the frames hold.
+     */
+    private RuntimeError overflow(CallFrame caller) {
+        List<String> calls = new ArrayList<>();
+        for (int i = frameCount - 1; i > 0; i--) {
+            VMFunction function = frames[i].closure.function;
+            calls.add("in " + (function.name == null ? "lambda" : function.name) + ", called at line "
+                    + token(frames[i - 1], frames[i - 1].ip).line);
+        }
+        return new RuntimeError(token(caller, caller.ip), "Stack overflow", calls);
+    }
+
+    private VMClosure.Upvalue captureUpvalue(int slot) {
+        VMClosure.Upvalue previous = null;
+        VMClosure.Upvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.slot > slot) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+        if (upvalue != null && upvalue.slot == slot) return upvalue;
+        VMClosure.Upvalue created = new VMClosure.Upvalue(slot, upvalue);
+        if (previous == null) openUpvalues = created;
+        else previous.next = created;
+        return created;
+    }
+
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.slot >= last) {
+            VMClosure.Upvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.slot];
+            upvalue.open = false;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    private Token token(CallFrame frame, int ip) {
+        int line = frame == null ? 0 : frame.closure.function.chunk.lines[Math.max(ip - 1, 0)];
+        return new Token(TokenType.EOF, "", null, line);
+    }
+
+    private RuntimeError error(CallFrame frame, int ip, String message) {
+        return new RuntimeError(token(frame, ip), message);
+    }
+}
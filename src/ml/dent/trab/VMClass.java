@@ -0,0 +1,18 @@
+package ml.dent.trab;
+
+import java.util.Map;
+
+class VMClass {
+    final String name;
+    final Map<String, VMClosure> methods;
+
+    VMClass(String name, Map<String, VMClosure> methods) {
+        this.name = name;
+        this.methods = methods;
+    }
+
+    @Override
+    public String toString() {
+        return "<class " + name + ">";
+    }
+}
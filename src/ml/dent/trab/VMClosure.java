@@ -0,0 +1,36 @@
+package ml.dent.trab;
+
+/**
+ * Runtime value of a function in the VM: its prototype plus the variables it
+ * captured from enclosing scopes.
+ */
+class VMClosure {
+    final VMFunction function;
+    final Upvalue[] upvalues;
+
+    VMClosure(VMFunction function) {
+        this.function = function;
+        this.upvalues = new Upvalue[function.upvalueCount];
+    }
+
+    @Override
+    public String toString() {
+        return function.toString();
+    }
+
+    /**
+     * A captured variable. While the variable's scope is live it points at a
+     * VM stack slot; once the scope exits the value moves into the upvalue.
+     */
+    static class Upvalue {
+        int slot;
+        Object closed;
+        boolean open = true;
+        Upvalue next;
+
+        Upvalue(int slot, Upvalue next) {
+            this.slot = slot;
+            this.next = next;
+        }
+    }
+}
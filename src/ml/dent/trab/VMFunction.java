@@ -0,0 +1,30 @@
+package ml.dent.trab;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Compiled prototype of a function, lambda, method or top level script.
+ */
+class VMFunction {
+    final String name;
+    final List<Token> arguments;
+    final Chunk chunk = new Chunk();
+    int upvalueCount;
+    int maxStack;
+
+    VMFunction(String name, List<Token> arguments) {
+        this.name = name;
+        this.arguments = arguments;
+    }
+
+    int arity() {
+        return arguments.size();
+    }
+
+    @Override
+    public String toString() {
+        String kind = name == null ? "lambda" : "function";
+        return "<" + kind + " " + arguments.stream().map(x -> x.lexeme).collect(Collectors.joining(", ")) + ">";
+    }
+}
@@ -0,0 +1,13 @@
+package ml.dent.trab.runtime;
+
+/**
+ * A variable that lambdas capture and something assigns. The scope declaring it and every
+ * lambda that captures it hold the same box, so they all see each assignment.
+ */
+public final class Box {
+    public Object value;
+
+    public Box(Object value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,30 @@
+package ml.dent.trab.runtime;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A class in a compiled program: a named set of methods.
+ */
+public class CompiledClass {
+    private final String description;
+    private final Map<String, Fn> methods = new HashMap<>();
+
+    public CompiledClass(String description) {
+        this.description = description;
+    }
+
+    public CompiledClass method(String name, Fn method) {
+        methods.put(name, method);
+        return this;
+    }
+
+    Fn getFunction(String name) {
+        return methods.get(name);
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+}
@@ -0,0 +1,48 @@
+package ml.dent.trab.runtime;
+
+/**
+ * A function, lambda or native in a program compiled by {@code trabc}. Generated code
+ * overrides the {@code callK} for its arity.
+ */
+public abstract class Fn {
+    private final int arity;
+    private final String description;
+
+    protected Fn(int arity, String description) {
+        this.arity = arity;
+        this.description = description;
+    }
+
+    public int arity() {
+        return arity;
+    }
+
+    public Object call0() {
+        return callN(new Object[0]);
+    }
+
+    public Object call1(Object a) {
+        return callN(new Object[]{a});
+    }
+
+    public Object call2(Object a, Object b) {
+        return callN(new Object[]{a, b});
+    }
+
+    public Object callN(Object[] arguments) {
+        switch (arguments.length) {
+            case 0:
+                return call0();
+            case 1:
+                return call1(arguments[0]);
+            case 2:
+                return call2(arguments[0], arguments[1]);
+        }
+        throw new IllegalStateException("No call for " + arguments.length + " arguments");
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+}
@@ -0,0 +1,362 @@
+package ml.dent.trab.runtime;
+
+import ml.dent.trab.TrabNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Operations and builtins that programs compiled by {@code trabc} call into. Each mirrors the
+ * matching case of the interpreter, errors included, and takes the source line to report.
+ * Indexing, slicing and {@link #stringify} are the interpreter's and the VM's as well.
+ */
+public final class Ops {
+    /**
+     * Value of a global that has not been declared yet.
+     */
+    public static final Object UNDEFINED = new Object();
+
+    public static final Fn PRINT = new Fn(1, "<native fn>") {
+        @Override
+        public Object call1(Object a) {
+            System.out.println(stringify(a));
+            return new TrabNull();
+        }
+    };
+
+    public static final Fn CLOCK = new Fn(0, "<native fn>") {
+        @Override
+        public Object call0() {
+            return (double) System.currentTimeMillis();
+        }
+    };
+
+    private static final Fn LIST_ADD = new Fn(2, "<native fn>") {
+        @Override
+        public Object call2(Object a, Object b) {
+            checkList(0, a).add(b);
+            return new TrabNull();
+        }
+    };
+
+    private static final Fn LIST_SET = new Fn(3, "<native fn>") {
+        @Override
+        public Object callN(Object[] arguments) {
+            List<Object> list = checkList(0, arguments[0]);
+            int index = (int) (double) checkNumber(0, arguments[1]);
+            list.set(index, arguments[2]);
+            return new TrabNull();
+        }
+    };
+
+    private static final Fn LIST_LENGTH = new Fn(1, "<native fn>") {
+        @Override
+        public Object call1(Object a) {
+            return (double) checkList(0, a).size();
+        }
+    };
+
+    public static final CompiledClass INTERNAL_LIST = new CompiledClass("<native class>")
+            .method("add", LIST_ADD).method("set", LIST_SET).method("length", LIST_LENGTH);
+
+    private Ops() {
+    }
+
+    /**
+     * Standard input, read the way the interpreter reads it for {@code stin}.
+     */
+    public static String stdin() throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        StringBuilder buf = new StringBuilder();
+        while (in.ready()) buf.append(in.readLine()).append("\n");
+        return buf.toString();
+    }
+
+    /**
+     * Runs a program on a thread with the stack the interpreter gives one at the default
+     * {@code --max-depth}, and waits for it to finish.
+     */
+    public static void run(Runnable program) throws InterruptedException {
+        Thread thread = new Thread(null, program, "trab", (8L << 20) + (1 << 16) * 2048L);
+        thread.start();
+        thread.join();
+    }
+
+    /**
+     * The error for a program that ran out of Java stack, reported as the interpreter reports
+     * running out outside of any call it tracks.
+     */
+    public static TrabError overflow() {
+        return new TrabError(0, "Stack overflow");
+    }
+
+    public static void report(TrabError error) {
+        System.out.println(error.getMessage() + " at line " + error.line);
+    }
+
+    public static Object error(int line, String message) {
+        throw new TrabError(line, message);
+    }
+
+    public static void discard(Object o) {
+    }
+
+    public static Object first(Object a, Object b) {
+        return a;
+    }
+
+    // Globals.
+
+    public static Object get(Object value, int line) {
+        if (value == UNDEFINED) throw new TrabError(line, "Cannot access unassigned variable");
+        return value;
+    }
+
+    public static Object defined(Object value, int line) {
+        if (value == UNDEFINED) throw new TrabError(line, "Cannot assign undefined variable");
+        return value;
+    }
+
+    public static Object fresh(Object value, int line) {
+        if (value != UNDEFINED) throw new TrabError(line, "Variable cannot be redefined in same context");
+        return value;
+    }
+
+    public static Object assign(Object checked, Object value) {
+        return value;
+    }
+
+    // Operators.
+
+    public static boolean truthy(int line, Object o) {
+        if (o instanceof Boolean) return (Boolean) o;
+        throw new TrabError(line, "Operand must be boolean");
+    }
+
+    private static Double checkNumber(int line, Object o) {
+        if (o instanceof Double) return (Double) o;
+        throw new TrabError(line, "Operand must be a number");
+    }
+
+    // Lists are only ever made by list(), slice() and the interpreter, all as lists of Object.
+    @SuppressWarnings("unchecked")
+    private static List<Object> checkList(int line, Object o) {
+        if (o instanceof List) return (List<Object>) o;
+        throw new TrabError(line, "Operand must be a list");
+    }
+
+    private static void checkNumbers(int line, Object left, Object right) {
+        if (!(left instanceof Double && right instanceof Double))
+            throw new TrabError(line, "Operands must be numbers");
+    }
+
+    public static Object add(int line, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return (Double) left + (Double) right;
+        if (left instanceof String || right instanceof String) return stringify(left) + stringify(right);
+        throw new TrabError(line, "Invalid types");
+    }
+
+    public static Object subtract(int line, Object left, Object right) {
+        checkNumbers(line, left, right);
+        return (Double) left - (Double) right;
+    }
+
+    public static Object multiply(int line, Object left, Object right) {
+        checkNumbers(line, left, right);
+        return (Double) left * (Double) right;
+    }
+
+    public static Object divide(int line, Object left, Object right) {
+        checkNumbers(line, left, right);
+        return (Double) left / (Double) right;
+    }
+
+    public static Object modulo(int line, Object left, Object right) {
+        checkNumbers(line, left, right);
+        return (Double) left % (Double) right;
+    }
+
+    public static Object power(int line, Object left, Object right) {
+        checkNumbers(line, left, right);
+        return Math.pow((Double) left, (Double) right);
+    }
+
+    public static Object less(int line, Object left, Object right) {
+        checkNumbers(line, left, right);
+        return (Double) left < (Double) right;
+    }
+
+    public static Object lessEqual(int line, Object left, Object right) {
+        checkNumbers(line, left, right);
+        return (Double) left <= (Double) right;
+    }
+
+    public static Object greater(int line, Object left, Object right) {
+        checkNumbers(line, left, right);
+        return (Double) left > (Double) right;
+    }
+
+    public static Object greaterEqual(int line, Object left, Object right) {
+        checkNumbers(line, left, right);
+        return (Double) left >= (Double) right;
+    }
+
+    public static Object equal(int line, Object left, Object right) {
+        return left.equals(right);
+    }
+
+    /**
+     * Operators the interpreter has no case for evaluate to nothing.
+     */
+    public static Object none(int line, Object left, Object right) {
+        return null;
+    }
+
+    public static Object compound(char operator, int line, Object value, Object current) {
+        double v = checkNumber(line, value);
+        double c = checkNumber(line, current);
+        switch (operator) {
+            case '+':
+                return v + c;
+            case '-':
+                return c - v;
+            case '*':
+                return c * v;
+            case '/':
+                return c / v;
+            case '%':
+                return c % v;
+            default:
+                return Math.pow(c, v);
+        }
+    }
+
+    public static Object negate(int line, Object o) {
+        return -1.0 * checkNumber(line, o);
+    }
+
+    public static Object not(int line, Object o) {
+        return !truthy(line, o);
+    }
+
+    public static Object increment(int line, Object o, double delta) {
+        return checkNumber(line, o) + delta;
+    }
+
+    public static Object command(int line, Object command) {
+        if (!(command instanceof String)) throw new TrabError(line, "Operand must be a string");
+        try {
+            Process p = Runtime.getRuntime().exec((String) command);
+            BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()));
+            String output = "";
+            while (in.ready()) output += in.readLine() + "\n";
+            return output.trim();
+        } catch (Exception e) {
+            return new TrabNull();
+        }
+    }
+
+    // Calls and methods.
+
+    public static Fn callable(Object callee, int arguments, int line) {
+        if (!(callee instanceof Fn))
+            throw new TrabError(line, "Only Lambdas, Functions, and Methods can be called");
+        Fn fn = (Fn) callee;
+        if (fn.arity() != arguments)
+            throw new TrabError(line, "Expected " + fn.arity() + " arguments but got " + arguments);
+        return fn;
+    }
+
+    public static Fn method(Object receiver, String name, int arguments, int line) {
+        return callable(property(receiver, name, line), arguments, line);
+    }
+
+    public static Fn property(Object receiver, String name, int line) {
+        CompiledClass owner;
+        if (receiver instanceof List) owner = INTERNAL_LIST;
+        else if (receiver instanceof CompiledClass) owner = (CompiledClass) receiver;
+        else throw new TrabError(line, "Can only call '.' on class");
+        Fn method = owner.getFunction(name);
+        if (method == null) throw new TrabError(line, "Method " + name + " does not exist");
+        if (receiver instanceof List) return bind(method, receiver);
+        return method;
+    }
+
+    private static Fn bind(Fn method, Object receiver) {
+        return new Fn(method.arity() - 1, method.toString()) {
+            @Override
+            public Object callN(Object[] arguments) {
+                Object[] bound = new Object[arguments.length + 1];
+                bound[0] = receiver;
+                System.arraycopy(arguments, 0, bound, 1, arguments.length);
+                return method.callN(bound);
+            }
+        };
+    }
+
+    // Lists and strings.
+
+    public static List<Object> list(Object... values) {
+        return new ArrayList<>(Arrays.asList(values));
+    }
+
+    public static Object index(int line, Object left, Object index) {
+        if (left instanceof List) {
+            if (index instanceof Double) {
+                List<?> list = (List<?>) left;
+                int ind = (int) (double) (Double) index;
+                if (ind < 0) ind += list.size();
+                if (ind < 0 || ind >= list.size()) throw new TrabError(line, "List index out of bounds");
+                return list.get(ind);
+            } else throw new TrabError(line, "Index must be number");
+        } else if (left instanceof String) {
+            int ind = (int) (double) (Double) index;
+            if (ind < 0 || ind >= ((String) left).length()) throw new TrabError(line, "String index out of bounds");
+            return ((String) left).substring(ind, ind + 1);
+        } else throw new TrabError(line, "Index can only be called on list");
+    }
+
+    public static Object slice(int line, Object left, Object start, Object end, Object step) {
+        if (!(left instanceof List) && !(left instanceof String))
+            throw new TrabError(line, "Index can only be called on list");
+        if (start != null) checkNumber(line, start);
+        if (end != null) checkNumber(line, end);
+        if (step != null) checkNumber(line, step);
+        int size = left instanceof List ? ((List<?>) left).size() : ((String) left).length();
+        int s = start == null ? 0 : (int) (double) (Double) start;
+        int e = end == null ? size : (int) (double) (Double) end;
+        int st = step == null ? 1 : (int) (double) (Double) step;
+        if (s < 0) s += size;
+        if (e < 0) e += size;
+        if (left instanceof List) {
+            List<?> list = (List<?>) left;
+            List<Object> n = new ArrayList<>();
+            if (st < 0) for (int i = e - 1; i >= s; i += st) n.add(list.get(i));
+            else for (int i = s; i < e; i += st) n.add(list.get(i));
+            return n;
+        }
+        String string = (String) left;
+        StringBuilder n = new StringBuilder();
+        if (st < 0) for (int i = e - 1; i >= s; i += st) n.append(string, i, i + 1);
+        else for (int i = s; i < e; i += st) n.append(string, i, i + 1);
+        return n.toString();
+    }
+
+    public static String stringify(Object o) {
+        if (o instanceof Double) {
+            String s = o.toString();
+            return s.endsWith(".0") ? s.substring(0, s.length() - 2) : s;
+        }
+        if (o instanceof List) {
+            StringBuilder buf = new StringBuilder("[");
+            for (Object element : (List<?>) o) buf.append(stringify(element)).append(", ");
+            buf.setLength(buf.length() - 2);
+            return buf.append("]").toString();
+        }
+        return o.toString();
+    }
+}
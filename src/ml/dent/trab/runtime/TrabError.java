@@ -0,0 +1,15 @@
+package ml.dent.trab.runtime;
+
+/**
+ * A runtime error in a compiled program, reported like the interpreter reports one.
+ */
+public class TrabError extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public final int line;
+
+    TrabError(int line, String message) {
+        super(message, null, false, false);
+        this.line = line;
+    }
+}
@@ -1,2 +1,6 @@
 module trab {
-}
\ No newline at end of file
+    requires java.compiler;
+    // Only ScanBench uses it, to count allocations, and runs without it.
+    requires static jdk.management;
+    exports ml.dent.trab.runtime;
+}
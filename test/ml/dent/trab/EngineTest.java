@@ -0,0 +1,56 @@
+package ml.dent.trab;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Checks how {@link Engine} reports the outcome of a script. Run against the compiled sources:
+ * {@code java -cp out:test-out ml.dent.trab.EngineTest}.
+ */
+public class EngineTest {
+    public static void main(String[] args) throws InterruptedException {
+        warningOnlyScriptSucceeds(false);
+        warningOnlyScriptSucceeds(true);
+        runtimeErrorFails();
+        optionsArePerEngine();
+        System.out.println("EngineTest passed");
+    }
+
+    // 1 - "a" always fails, so type inference warns about it, but it never runs.
+    private static void warningOnlyScriptSucceeds(boolean useVm) throws InterruptedException {
+        try (Engine engine = new Engine(1, List.of(), useVm)) {
+            Engine.Result result = engine.runAll(List.of("fn never() -> 1 - \"a\"\nprint(\"ok\")\n"), "").get(0);
+            check(result.succeeded(), "a script with only a warning failed: " + result.errors);
+            check(result.errors.isEmpty(), "warnings were reported as errors: " + result.errors);
+            check(result.warnings.size() == 1, "expected one warning, got " + result.warnings);
+            check(result.output.endsWith("ok\n"), "script did not run: " + result.output);
+        }
+    }
+
+    private static void runtimeErrorFails() throws InterruptedException {
+        try (Engine engine = new Engine(1, List.of(), false)) {
+            Engine.Result result = engine.runAll(List.of("var x = 1\nx()\n"), "").get(0);
+            check(!result.succeeded(), "a script with a runtime error succeeded");
+            check(result.warnings.isEmpty(), "unexpected warnings: " + result.warnings);
+        }
+    }
+
+    // Two engines at once, one allowing far shallower recursion than the other.
+    private static void optionsArePerEngine() throws InterruptedException {
+        String program = "fn down(n) {\n    if (n == 0) return 0\n    return 1 + down(n - 1)\n}\nprint(down(50))\n";
+        try (Engine shallow = new Engine(1, List.of(), Options.DEFAULT.maxDepth(10).jit(false));
+             Engine deep = new Engine(1, List.of(), Options.DEFAULT)) {
+            Future<Engine.Result> failing = shallow.submit(program, "");
+            Future<Engine.Result> passing = deep.submit(program, "");
+            check(!failing.get().succeeded(), "recursion past --max-depth 10 succeeded");
+            check(passing.get().output.equals("50\n"), "default depth failed: " + passing.get().errors);
+        } catch (ExecutionException e) {
+            throw new AssertionError(e.getCause());
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+}